@@ -214,6 +214,51 @@ public interface AnalogInput extends Closeable {
 	public float getVoltageBuffered() throws InterruptedException,
 			ConnectionLostException;
 
+	/**
+	 * Reads several samples from the internal buffer at once. This method
+	 * blocks like {@link #readBuffered()} until at least one sample is
+	 * available, then copies as many samples as are available, up to len.
+	 * This is much cheaper than reading the samples one by one.
+	 * 
+	 * @param dst
+	 *            Receives the samples, oldest first, scaled to the range
+	 *            [0,1].
+	 * @param off
+	 *            The index of dst at which to store the first sample.
+	 * @param len
+	 *            The maximum number of samples to read.
+	 * @return The number of samples read, at least 1 unless len is 0.
+	 * @throws InterruptedException
+	 *             The calling thread has been interrupted.
+	 * @throws ConnectionLostException
+	 *             The connection with the IOIO is lost.
+	 * @see #getReadFrameNumber()
+	 */
+	public int readBuffered(float[] dst, int off, int len)
+			throws InterruptedException, ConnectionLostException;
+
+	/**
+	 * Same as {@link #readBuffered(float[], int, int)}, but stores the raw
+	 * samples, in the range [0,1023].
+	 */
+	public int readBuffered(short[] dst, int off, int len)
+			throws InterruptedException, ConnectionLostException;
+
+	/**
+	 * Gets the frame number of the first sample returned by the last call to
+	 * one of the readBuffered() methods. The IOIO samples all open analog
+	 * inputs in the same frames, numbered consecutively since the connection
+	 * has been established, one frame every 1/{@link #getSampleRate()}
+	 * seconds. Samples of different pins with the same frame number have been
+	 * taken at the same time, and the samples of one read belong to
+	 * consecutive frames.
+	 * 
+	 * @return The frame number, or -1 if no sample has been read yet.
+	 * @throws ConnectionLostException
+	 *             The connection with the IOIO is lost.
+	 */
+	public long getReadFrameNumber() throws ConnectionLostException;
+
 	/**
 	 * Gets the sample rate used for obtaining buffered samples.
 	 * 
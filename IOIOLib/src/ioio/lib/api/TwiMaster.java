@@ -30,6 +30,10 @@ package ioio.lib.api;
 
 import ioio.lib.api.exception.ConnectionLostException;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 /**
  * An interface for controlling a TWI module, in TWI bus-master mode, enabling
  * communication with multiple TWI-enabled slave modules.
@@ -101,6 +105,46 @@ public interface TwiMaster extends Closeable {
 		 */
 		public boolean waitReady() throws ConnectionLostException,
 				InterruptedException;
+
+		/**
+		 * Wait at most the given time until the asynchronous call which
+		 * returned this instance is complete.
+		 * 
+		 * @return true if TWI transaction succeeded.
+		 * 
+		 * @throws ConnectionLostException
+		 *             Connection with the IOIO has been lost.
+		 * @throws InterruptedException
+		 *             This operation has been interrupted.
+		 * @throws TimeoutException
+		 *             The call has not completed in time. Responses carry no
+		 *             call ID and are matched to the calls in order, so if
+		 *             the response has been lost, every later response would
+		 *             be matched to the wrong call. Therefore a timeout
+		 *             cancels all pending calls of the module, and the module
+		 *             does not accept any more calls: close it and open it
+		 *             again.
+		 */
+		public boolean waitReady(long timeout, TimeUnit unit)
+				throws ConnectionLostException, InterruptedException,
+				TimeoutException;
+
+		/**
+		 * Abandon the asynchronous call: it stays queued on the IOIO, but its
+		 * response will be discarded when it arrives instead of being written
+		 * to the read buffer. Waiting threads get a
+		 * {@link CancellationException}.
+		 * <p>
+		 * Cancelling does not help if the response never arrives: the next
+		 * response is then taken for it. This is detected only if that
+		 * response does not have the expected size, or if no later call is
+		 * pending, so that {@link #waitReady(long, TimeUnit)} times out. If
+		 * responses may be lost, do not keep several calls with responses of
+		 * the same size pending at a time.
+		 * 
+		 * @return false if the call has already completed.
+		 */
+		public boolean cancel();
 	}
 
 	/**
@@ -140,9 +184,21 @@ public interface TwiMaster extends Closeable {
 	 * immediately and provides a {@link Result} object on which the client can
 	 * wait for the result.
 	 * 
+	 * @throws IllegalStateException
+	 *             A response to a previous call has been lost: a wait has
+	 *             timed out (see {@link Result#waitReady(long, TimeUnit)}),
+	 *             or a response has not had the size its call expects. All
+	 *             pending calls have been cancelled; close the module and
+	 *             open it again.
 	 * @see #writeRead(int, boolean, byte[], int, byte[], int)
 	 */
 	public Result writeReadAsync(int address, boolean tenBitAddr,
 			byte[] writeData, int writeSize, byte[] readData, int readSize)
 			throws ConnectionLostException;
+
+	/**
+	 * @return The number of timed waits on a {@link Result} which have
+	 *         timed out.
+	 */
+	public long getTimeoutCount();
 }
@@ -36,6 +36,9 @@ import java.io.IOException;
 
 class AnalogInputImpl extends AbstractPin implements AnalogInput,
 		InputPinListener {
+	private static final float SCALE = 1.0f / 1023.0f;
+
+	private final IncomingState incomingState_;
 	private int value_;
 	private boolean valid_ = false;
 
@@ -45,9 +48,14 @@ class AnalogInputImpl extends AbstractPin implements AnalogInput,
 	int bufferReadCursor_;
 	int bufferWriteCursor_;
 	int bufferOverflowCount_ = 0;
+	// the frame number of the newest sample in the buffer
+	long bufferNewestFrame_;
+	long readFrame_ = -1;
 
-	AnalogInputImpl(IOIOImpl ioio, int pin) throws ConnectionLostException {
+	AnalogInputImpl(IOIOImpl ioio, IncomingState incomingState, int pin)
+			throws ConnectionLostException {
 		super(ioio, pin);
+		incomingState_ = incomingState;
 	}
 
 	@Override
@@ -112,6 +120,7 @@ class AnalogInputImpl extends AbstractPin implements AnalogInput,
 		bufferReadCursor_ = 0;
 		bufferWriteCursor_ = 0;
 		bufferOverflowCount_ = 0;
+		readFrame_ = -1;
 	}
 
 	@Override
@@ -121,6 +130,90 @@ class AnalogInputImpl extends AbstractPin implements AnalogInput,
 		return (float) bufferPull() / 1023.0f;
 	}
 
+	@Override
+	public synchronized int readBuffered(float[] dst, int off, int len)
+			throws InterruptedException, ConnectionLostException {
+		checkRange(dst.length, off, len);
+		awaitBuffered(len);
+		int count = Math.min(len, bufferSize_);
+		// copy the contiguous segments of the ring
+		int remaining = count;
+		while (remaining > 0) {
+			int segment = Math.min(remaining, bufferCapacity_
+					- bufferReadCursor_);
+			short[] buffer = buffer_;
+			for (int i = bufferReadCursor_, end = i + segment; i < end; ++i) {
+				dst[off++] = buffer[i] * SCALE;
+			}
+			consume(segment);
+			remaining -= segment;
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized int readBuffered(short[] dst, int off, int len)
+			throws InterruptedException, ConnectionLostException {
+		checkRange(dst.length, off, len);
+		awaitBuffered(len);
+		int count = Math.min(len, bufferSize_);
+		int remaining = count;
+		while (remaining > 0) {
+			int segment = Math.min(remaining, bufferCapacity_
+					- bufferReadCursor_);
+			System.arraycopy(buffer_, bufferReadCursor_, dst, off, segment);
+			consume(segment);
+			off += segment;
+			remaining -= segment;
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized long getReadFrameNumber()
+			throws ConnectionLostException {
+		return readFrame_;
+	}
+
+	private static void checkRange(int length, int off, int len) {
+		if (off < 0 || len < 0 || off + len > length) {
+			throw new IndexOutOfBoundsException("Invalid range: " + off + "+"
+					+ len + " of " + length);
+		}
+	}
+
+	/*
+	 * (non-javadoc)
+	 * called while holding the lock of this. Waits until the buffer is not
+	 * empty (unless len is 0) and records the frame of its oldest sample.
+	 */
+	private void awaitBuffered(int len) throws InterruptedException,
+			ConnectionLostException {
+		if (buffer_ == null) {
+			throw new IllegalStateException(
+					"Need to call setBuffer() before reading buffered values.");
+		}
+		while (len > 0 && bufferSize_ == 0 && state_ == State.OPEN) {
+			wait();
+		}
+		checkState();
+		if (bufferSize_ > 0) {
+			readFrame_ = bufferNewestFrame_ - bufferSize_ + 1;
+		}
+	}
+
+	/*
+	 * (non-javadoc)
+	 * called while holding the lock of this
+	 */
+	private void consume(int count) {
+		bufferReadCursor_ += count;
+		if (bufferReadCursor_ == bufferCapacity_) {
+			bufferReadCursor_ = 0;
+		}
+		bufferSize_ -= count;
+	}
+
 	@Override
 	public float getVoltageBuffered() throws InterruptedException,
 			ConnectionLostException {
@@ -140,24 +233,15 @@ class AnalogInputImpl extends AbstractPin implements AnalogInput,
 		if (bufferWriteCursor_ == bufferCapacity_) {
 			bufferWriteCursor_ = 0;
 		}
+		bufferNewestFrame_ = incomingState_.getAnalogFrameNumber();
 		notifyAll();
 	}
 
 	private synchronized short bufferPull() throws InterruptedException,
 			ConnectionLostException {
-		if (buffer_ == null) {
-			throw new IllegalStateException(
-					"Need to call setBuffer() before reading buffered values.");
-		}
-		while (bufferSize_ == 0 && state_ == State.OPEN) {
-			wait();
-		}
-		checkState();
-		short result = buffer_[bufferReadCursor_++];
-		if (bufferReadCursor_ == bufferCapacity_) {
-			bufferReadCursor_ = 0;
-		}
-		--bufferSize_;
+		awaitBuffered(1);
+		short result = buffer_[bufferReadCursor_];
+		consume(1);
 		return result;
 	}
 
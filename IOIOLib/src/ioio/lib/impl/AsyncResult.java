@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *  
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ * 
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Completion state of a request whose response is delivered by the incoming
+ * thread. Completing, cancelling and waking the waiting thread are lock-free,
+ * so the incoming thread never blocks on a client holding a monitor.
+ * 
+ * The IOIO answers the requests of a module in order and responses carry no
+ * request ID, so a request which has been cancelled stays in its module's
+ * queue and its response is discarded when it arrives. A response which never
+ * arrives cannot be told apart from a late one; the modules treat a timeout or
+ * a response of the wrong size as a lost response and refuse further requests
+ * until they are reopened.
+ */
+abstract class AsyncResult {
+	private static final int PENDING = 0;
+	private static final int COMPLETING = 1;
+	private static final int SUCCEEDED = 2;
+	private static final int FAILED = 3;
+	private static final int CANCELLED = 4;
+
+	private final AtomicInteger state_ = new AtomicInteger(PENDING);
+	private volatile Thread waiter_;
+	private volatile long sentNanos_;
+
+	/**
+	 * @return Whether the module has been disconnected or closed, in which case
+	 *         waiting threads give up.
+	 */
+	protected abstract boolean isDisconnected();
+
+	/**
+	 * Called by the incoming thread before storing the response.
+	 * 
+	 * @return false iff the request has been cancelled, in which case the
+	 *         response must be discarded.
+	 */
+	boolean beginCompletion() {
+		return state_.compareAndSet(PENDING, COMPLETING);
+	}
+
+	/**
+	 * Called by the incoming thread after storing the response.
+	 */
+	void endCompletion(boolean success) {
+		state_.set(success ? SUCCEEDED : FAILED);
+		wakeUp();
+	}
+
+	/**
+	 * Completes a request which does not expect a response.
+	 */
+	void complete() {
+		state_.set(SUCCEEDED);
+	}
+
+	/**
+	 * Called when the request is handed to the protocol.
+	 */
+	void sent() {
+		sentNanos_ = System.nanoTime();
+	}
+
+	/**
+	 * @return The time since {@link #sent()} has been called.
+	 */
+	long getNanosSinceSent() {
+		return System.nanoTime() - sentNanos_;
+	}
+
+	void wakeUp() {
+		Thread waiter = waiter_;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	/**
+	 * @return false iff the request has completed already. Once this method
+	 *         returns, the response will not be stored anymore.
+	 */
+	public boolean cancel() {
+		while (true) {
+			int state = state_.get();
+			if (state == PENDING) {
+				if (state_.compareAndSet(PENDING, CANCELLED)) {
+					wakeUp();
+					return true;
+				}
+			} else if (state == COMPLETING) {
+				// the response is being copied, which takes no time
+				Thread.yield();
+			} else {
+				return state == CANCELLED;
+			}
+		}
+	}
+
+	/**
+	 * Waits until the request has completed or the module has been
+	 * disconnected.
+	 * 
+	 * @return Whether the request has succeeded. Callers have to check for a
+	 *         disconnection if it has not.
+	 */
+	boolean await() throws InterruptedException {
+		try {
+			return await(-1);
+		} catch (TimeoutException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Waits until the request has completed, the module has been disconnected
+	 * or the timeout has elapsed.
+	 * 
+	 * @param timeoutNanos
+	 *            The longest time to wait, or a negative value to wait without
+	 *            a timeout.
+	 * @return Whether the request has succeeded. Callers have to check for a
+	 *         disconnection if it has not.
+	 */
+	boolean await(long timeoutNanos) throws InterruptedException,
+			TimeoutException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		waiter_ = Thread.currentThread();
+		try {
+			while (true) {
+				int state = state_.get();
+				if (state == SUCCEEDED) {
+					return true;
+				} else if (state == FAILED) {
+					return false;
+				} else if (state == CANCELLED) {
+					throw new CancellationException();
+				} else if (isDisconnected()) {
+					return false;
+				}
+				if (timeoutNanos < 0) {
+					LockSupport.park(this);
+				} else {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						throw new TimeoutException();
+					}
+					LockSupport.parkNanos(this, remaining);
+				}
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			waiter_ = null;
+		}
+	}
+}
@@ -33,26 +33,29 @@ import java.io.OutputStream;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
-class FlowControlledOutputStream extends OutputStream {
+class FlowControlledOutputStream extends OutputStream implements
+		OutgoingScheduler.Client {
 	interface Sender {
 		void send(byte[] data, int size);
 	}
 
 	private final Sender sender_;
+	private final OutgoingScheduler scheduler_;
 	private final BlockingQueue<Byte> queue_ = new ArrayBlockingQueue<Byte>(
 			Constants.BUFFER_SIZE);
-	private final FlushThread thread_ = new FlushThread();
 	private final int maxPacket_;
 	private final byte[] packet_;
 
 	private int readyToSend_ = 0;
 	private boolean closed_ = false;
 
-	public FlowControlledOutputStream(Sender sender, int maxPacket) {
+	public FlowControlledOutputStream(Sender sender, int maxPacket,
+			OutgoingScheduler scheduler) {
 		sender_ = sender;
 		maxPacket_ = maxPacket;
 		packet_ = new byte[maxPacket];
-		thread_.start();
+		scheduler_ = scheduler;
+		scheduler_.register(this);
 	}
 
 	@Override
@@ -81,12 +84,12 @@ class FlowControlledOutputStream extends OutputStream {
 		if (closed_) {
 			throw new IOException("Stream has been closed");
 		}
-		notifyAll();
+		scheduler_.wakeUp();
 	}
 
 	synchronized public void readyToSend(int numBytes) {
 		readyToSend_ += numBytes;
-		notifyAll();
+		scheduler_.wakeUp();
 	}
 
 	@Override
@@ -96,32 +99,27 @@ class FlowControlledOutputStream extends OutputStream {
 		}
 		closed_ = true;
 		notifyAll();
-		thread_.interrupt();
+		scheduler_.unregister(this);
 	}
 
-	class FlushThread extends Thread {
-		@Override
-		public void run() {
-			super.run();
-			try {
-				while (true) {
-					int toSend;
-					synchronized (FlowControlledOutputStream.this) {
-						while (readyToSend_ == 0 || queue_.isEmpty()) {
-							FlowControlledOutputStream.this.wait();
-						}
-						toSend = Math.min(maxPacket_,
-								Math.min(readyToSend_, queue_.size()));
-						for (int i = 0; i < toSend; ++i) {
-							packet_[i] = queue_.remove();
-						}
-						readyToSend_ -= toSend;
-						FlowControlledOutputStream.this.notifyAll();
-					}
-					sender_.send(packet_, toSend);
+	@Override
+	public void sendPending() {
+		// packet_ is only used by the scheduler thread
+		while (true) {
+			int toSend;
+			synchronized (this) {
+				if (closed_ || readyToSend_ == 0 || queue_.isEmpty()) {
+					return;
+				}
+				toSend = Math.min(maxPacket_,
+						Math.min(readyToSend_, queue_.size()));
+				for (int i = 0; i < toSend; ++i) {
+					packet_[i] = queue_.remove();
 				}
-			} catch (InterruptedException e) {
+				readyToSend_ -= toSend;
+				notifyAll();
 			}
+			sender_.send(packet_, toSend);
 		}
 	}
 }
@@ -32,7 +32,7 @@ import java.io.IOException;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
-class FlowControlledPacketSender {
+class FlowControlledPacketSender implements OutgoingScheduler.Client {
 	interface Packet {
 		int getSize();
 	}
@@ -42,16 +42,28 @@ class FlowControlledPacketSender {
 	}
 
 	private final Sender sender_;
+	private final OutgoingScheduler scheduler_;
+	private final ModuleStats stats_;
 	private final BlockingQueue<Packet> queue_ = new ArrayBlockingQueue<Packet>(
 			Constants.PACKET_BUFFER_SIZE);
-	private final FlushThread thread_ = new FlushThread();
+	// the times the packets in queue_ have been queued, a ring starting at
+	// queuedHead_
+	private final long[] queuedNanos_ = new long[Constants.PACKET_BUFFER_SIZE];
+	private int queuedHead_ = 0;
+	// whether the head of the queue lacks credits, and since when
+	private boolean waitingForCredit_ = false;
+	private long creditWaitSince_;
 
 	private int readyToSend_ = 0;
 	private boolean closed_ = false;
+	private boolean killed_ = false;
 
-	public FlowControlledPacketSender(Sender sender) {
+	public FlowControlledPacketSender(Sender sender,
+			OutgoingScheduler scheduler, ModuleStats stats) {
 		sender_ = sender;
-		thread_.start();
+		scheduler_ = scheduler;
+		stats_ = stats;
+		scheduler_.register(this);
 	}
 
 	synchronized public void flush() throws IOException {
@@ -78,41 +90,64 @@ class FlowControlledPacketSender {
 		if (closed_) {
 			throw new IllegalStateException("Stream has been closed");
 		}
-		notifyAll();
+		queuedNanos_[(queuedHead_ + queue_.size() - 1) % queuedNanos_.length] = System
+				.nanoTime();
+		scheduler_.wakeUp();
 	}
 
 	synchronized public void readyToSend(int numBytes) {
 		readyToSend_ += numBytes;
-		notifyAll();
+		scheduler_.wakeUp();
 	}
 
 	synchronized public void close() {
 		closed_ = true;
-		thread_.interrupt();
+		stop();
 	}
 
 	synchronized public void kill() {
-		thread_.interrupt();
+		stop();
+	}
+
+	private void stop() {
+		if (!killed_) {
+			killed_ = true;
+			scheduler_.unregister(this);
+		}
+		notifyAll();
 	}
 
-	class FlushThread extends Thread {
-		@Override
-		public void run() {
-			super.run();
-			try {
-				while (true) {
-					synchronized (FlowControlledPacketSender.this) {
-						while (queue_.isEmpty()
-								|| readyToSend_ < queue_.peek().getSize()) {
-							FlowControlledPacketSender.this.wait();
-						}
-						FlowControlledPacketSender.this.notifyAll();
-						readyToSend_ -= queue_.peek().getSize();
+	@Override
+	public void sendPending() {
+		while (true) {
+			Packet packet;
+			synchronized (this) {
+				packet = queue_.peek();
+				if (killed_ || packet == null) {
+					return;
+				}
+				long now = System.nanoTime();
+				if (readyToSend_ < packet.getSize()) {
+					if (!waitingForCredit_) {
+						waitingForCredit_ = true;
+						creditWaitSince_ = now;
 					}
-					sender_.send(queue_.remove());
+					return;
+				}
+				long queuedNanos = queuedNanos_[queuedHead_];
+				long creditWait = 0;
+				if (waitingForCredit_) {
+					waitingForCredit_ = false;
+					creditWait = now - creditWaitSince_;
 				}
-			} catch (InterruptedException e) {
+				stats_.packetSent(packet.getSize(), now - queuedNanos
+						- creditWait, creditWait);
+				readyToSend_ -= packet.getSize();
+				queue_.remove();
+				queuedHead_ = (queuedHead_ + 1) % queuedNanos_.length;
+				notifyAll();
 			}
+			sender_.send(packet);
 		}
 	}
 }
@@ -71,7 +71,12 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 	private ModuleAllocator incapAllocatorDouble_;
 	private ModuleAllocator incapAllocatorSingle_;
 	IOIOProtocol protocol_;
+	final OutgoingScheduler outgoingScheduler_ = new OutgoingScheduler(this);
+	ModuleStats[] twiStats_;
+	ModuleStats[] spiStats_;
 	private State state_ = State.INIT;
+	private long coalescingMaxDelayNanos_ = 0;
+	private int coalescingMaxBytes_ = 1;
 	private Board.Hardware hardware_;
 
 	public IOIOImpl(IOIOConnection con) {
@@ -99,12 +104,19 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 					}
 					protocol_ = new IOIOProtocol(connection_.getInputStream(),
 							connection_.getOutputStream(), incomingState_);
+					if (coalescingMaxDelayNanos_ != 0) {
+						protocol_.setWriteCoalescing(coalescingMaxDelayNanos_,
+								coalescingMaxBytes_);
+					}
 					// Once this block exits, a disconnect will also involve
 					// softClose().
 				}
 			} catch (ConnectionLostException e) {
 				incomingState_.handleConnectionLost();
 				throw e;
+			} catch (IOException e) {
+				incomingState_.handleConnectionLost();
+				throw new ConnectionLostException(e);
 			}
 			Log.v(TAG, "Waiting for handshake");
 			incomingState_.waitConnectionEstablished();
@@ -176,12 +188,22 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 		pwmAllocator_ = new ModuleAllocator(hardware_.numPwmModules(), "PWM");
 		uartAllocator_ = new ModuleAllocator(hardware_.numUartModules(), "UART");
 		spiAllocator_ = new ModuleAllocator(hardware_.numSpiModules(), "SPI");
+		twiStats_ = createStats(hardware_.numTwiModules(), "TWI");
+		spiStats_ = createStats(hardware_.numSpiModules(), "SPI");
 		incapAllocatorDouble_ = new ModuleAllocator(
 				hardware_.incapDoubleModules(), "INCAP_DOUBLE");
 		incapAllocatorSingle_ = new ModuleAllocator(
 				hardware_.incapSingleModules(), "INCAP_SINGLE");
 	}
 
+	private static ModuleStats[] createStats(int num, String name) {
+		ModuleStats[] stats = new ModuleStats[num];
+		for (int i = 0; i < num; ++i) {
+			stats[i] = new ModuleStats(name + i);
+		}
+		return stats;
+	}
+
 	private void checkInterfaceVersion() throws IncompatibilityException,
 			ConnectionLostException, InterruptedException {
 		try {
@@ -411,7 +433,8 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 		checkState();
 		hardware_.checkSupportsAnalogInput(pin);
 		checkPinFree(pin);
-		AnalogInputImpl result = new AnalogInputImpl(this, pin);
+		AnalogInputImpl result = new AnalogInputImpl(this, incomingState_,
+				pin);
 		addDisconnectListener(result);
 		openPins_[pin] = true;
 		incomingState_.addInputPinListener(pin, result);
@@ -743,4 +766,115 @@ public class IOIOImpl implements IOIO, DisconnectListener {
 			throw new ConnectionLostException(e);
 		}
 	}
+
+	/**
+	 * Lets the commands of consecutive calls be written to the connection
+	 * together, see {@link IOIOProtocol#setWriteCoalescing(long, int)}. May be
+	 * called before connecting; the setting applies to later connections too.
+	 * 
+	 * @param maxDelayNanos
+	 *            The longest time a command is held back. 0 disables
+	 *            coalescing (the default).
+	 * @param maxBytes
+	 *            The number of pending bytes which causes an immediate write.
+	 */
+	public synchronized void setWriteCoalescing(long maxDelayNanos,
+			int maxBytes) throws ConnectionLostException {
+		if (maxDelayNanos < 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("Invalid coalescing window: "
+					+ maxDelayNanos + "ns, " + maxBytes + " bytes");
+		}
+		coalescingMaxDelayNanos_ = maxDelayNanos;
+		coalescingMaxBytes_ = maxBytes;
+		if (protocol_ != null) {
+			try {
+				protocol_.setWriteCoalescing(maxDelayNanos, maxBytes);
+			} catch (IOException e) {
+				throw new ConnectionLostException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of writes to the current connection.
+	 */
+	public synchronized long getWriteCount() {
+		return protocol_ == null ? 0 : protocol_.getWriteCount();
+	}
+
+	/**
+	 * @return The mean number of bytes per write to the current connection.
+	 */
+	public synchronized float getMeanBytesPerWrite() {
+		if (protocol_ == null) {
+			return 0;
+		}
+		long writes = protocol_.getWriteCount();
+		return writes == 0 ? 0 : (float) protocol_.getBytesWritten() / writes;
+	}
+
+	/**
+	 * @return The number of bytes written to the current connection.
+	 */
+	public synchronized long getBytesSent() {
+		return protocol_ == null ? 0 : protocol_.getBytesWritten();
+	}
+
+	/**
+	 * @return The number of bytes read from the current connection.
+	 */
+	public synchronized long getBytesReceived() {
+		return protocol_ == null ? 0 : protocol_.getBytesRead();
+	}
+
+	/**
+	 * @return The number of commands sent over the current connection.
+	 */
+	public synchronized long getPacketsSent() {
+		return protocol_ == null ? 0 : protocol_.getCommandsWritten();
+	}
+
+	/**
+	 * @return The number of messages received over the current connection.
+	 */
+	public synchronized long getPacketsReceived() {
+		return protocol_ == null ? 0 : protocol_.getPacketsRead();
+	}
+
+	/**
+	 * @return The mean number of commands sent per second since the current
+	 *         connection has been established. For the rate over a shorter
+	 *         interval, sample {@link #getPacketsSent()} periodically.
+	 */
+	public synchronized float getPacketsSentPerSecond() {
+		return protocol_ == null ? 0 : protocol_.getCommandsWritten() * 1e9f
+				/ protocol_.getAgeNanos();
+	}
+
+	/**
+	 * @return The mean number of messages received per second since the
+	 *         current connection has been established.
+	 */
+	public synchronized float getPacketsReceivedPerSecond() {
+		return protocol_ == null ? 0 : protocol_.getPacketsRead() * 1e9f
+				/ protocol_.getAgeNanos();
+	}
+
+	/**
+	 * @return The statistics of the given TWI module over the current
+	 *         connection, which are updated in place; null before the first
+	 *         connection has been established.
+	 */
+	public synchronized ModuleStats getTwiStats(int twiNum) {
+		return twiStats_ == null ? null : twiStats_[twiNum];
+	}
+
+	/**
+	 * @return The statistics of the given SPI module over the current
+	 *         connection, which are updated in place; null before the first
+	 *         connection has been established.
+	 */
+	public synchronized ModuleStats getSpiStats(int spiNum) {
+		return spiStats_ == null ? null : spiStats_[spiNum];
+	}
 }
@@ -38,11 +38,7 @@ import ioio.lib.spi.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Set;
+import java.util.Arrays;
 
 class IOIOProtocol {
 	static final int HARD_RESET                          = 0x00;
@@ -126,6 +122,9 @@ class IOIOProtocol {
 
 	private static final String TAG = "IOIOProtocol";
 
+	static final int MIN_INPUT_BUFFER_SIZE = 256;
+	static final int DEFAULT_INPUT_BUFFER_SIZE = 1024;
+
 	enum PwmScale {
 		SCALE_1X(1, 0), SCALE_8X(8, 3), SCALE_64X(64, 2), SCALE_256X(256, 1);
 
@@ -142,6 +141,22 @@ class IOIOProtocol {
 	private int pos_ = 0;
 	private int batchCounter_ = 0;
 
+	// Write coalescing: disabled while maxDelayNanos_ is 0.
+	private long maxDelayNanos_ = 0;
+	private int maxCoalescedBytes_ = 0;
+	private boolean flushPending_ = false;
+	private long flushPendingSince_;
+	private Thread coalescingThread_;
+	private boolean closed_ = false;
+
+	private long writes_ = 0;
+	private long bytesWritten_ = 0;
+	private long commandsWritten_ = 0;
+	// written by the incoming thread only
+	private volatile long bytesRead_ = 0;
+	private volatile long packetsRead_ = 0;
+	private final long createdNanos_ = System.nanoTime();
+
 	private void writeByte(int b) throws IOException {
 		assert (b >= 0 && b < 256);
 		if (pos_ == outbuf_.length) {
@@ -156,20 +171,169 @@ class IOIOProtocol {
 		++batchCounter_;
 	}
 	
+	private void beginCommand() {
+		++commandsWritten_;
+		beginBatch();
+	}
+
 	public synchronized void endBatch() throws IOException {
 		if (--batchCounter_ == 0) {
-			flush();
+			if (maxDelayNanos_ == 0 || pos_ >= maxCoalescedBytes_) {
+				flush();
+			} else if (pos_ > 0) {
+				long now = System.nanoTime();
+				if (!flushPending_) {
+					flushPending_ = true;
+					flushPendingSince_ = now;
+					notifyAll();
+				} else if (now - flushPendingSince_ >= maxDelayNanos_) {
+					flush();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Enables or disables write coalescing. When enabled, the commands of
+	 * consecutive batches (every command is a batch of its own unless
+	 * {@link #beginBatch()} has been called) are accumulated and written to
+	 * the connection together, once maxBytes have been collected or at most
+	 * maxDelayNanos after the first of them has been completed. This trades
+	 * latency for fewer write calls, which is worthwhile for connections with
+	 * a large per-write overhead, such as Bluetooth.
+	 * 
+	 * @param maxDelayNanos
+	 *            The longest time a completed command is held back. 0 disables
+	 *            coalescing, i.e. every batch is written when it ends.
+	 * @param maxBytes
+	 *            The number of pending bytes which causes an immediate write.
+	 */
+	public synchronized void setWriteCoalescing(long maxDelayNanos,
+			int maxBytes) throws IOException {
+		if (maxDelayNanos < 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("Invalid coalescing window: "
+					+ maxDelayNanos + "ns, " + maxBytes + " bytes");
+		}
+		if (maxBytes > outbuf_.length) {
+			outbuf_ = Arrays.copyOf(outbuf_, maxBytes);
+		}
+		maxDelayNanos_ = maxDelayNanos;
+		maxCoalescedBytes_ = maxBytes;
+		if (maxDelayNanos == 0) {
+			if (batchCounter_ == 0 && pos_ > 0) {
+				flush();
+			}
+		} else if (coalescingThread_ == null) {
+			coalescingThread_ = new CoalescingThread();
+			coalescingThread_.start();
 		}
+		notifyAll();
+	}
+
+	/**
+	 * @return The number of writes to the connection.
+	 */
+	public synchronized long getWriteCount() {
+		return writes_;
+	}
+
+	/**
+	 * @return The number of bytes written to the connection.
+	 */
+	public synchronized long getBytesWritten() {
+		return bytesWritten_;
+	}
+
+	/**
+	 * @return The number of commands sent to the IOIO.
+	 */
+	public synchronized long getCommandsWritten() {
+		return commandsWritten_;
+	}
+
+	/**
+	 * @return The number of bytes read from the connection.
+	 */
+	public long getBytesRead() {
+		return bytesRead_;
+	}
+
+	/**
+	 * @return The number of messages received from the IOIO.
+	 */
+	public long getPacketsRead() {
+		return packetsRead_;
+	}
+
+	/**
+	 * @return The time since this protocol instance has been created.
+	 */
+	public long getAgeNanos() {
+		return System.nanoTime() - createdNanos_;
 	}
 
 	private void flush() throws IOException {
+		flushPending_ = false;
+		if (pos_ == 0) {
+			return;
+		}
 		try {
+			++writes_;
+			bytesWritten_ += pos_;
 			out_.write(outbuf_, 0, pos_);
 		} finally {
 			pos_ = 0;
 		}
 	}
 
+	/**
+	 * Writes commands held back by coalescing right away.
+	 */
+	private void flushCoalesced() throws IOException {
+		if (batchCounter_ == 0) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes pending coalesced commands once their delay has elapsed.
+	 */
+	class CoalescingThread extends Thread {
+		CoalescingThread() {
+			super("IOIO write coalescing");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			synchronized (IOIOProtocol.this) {
+				try {
+					while (!closed_) {
+						if (maxDelayNanos_ == 0 || !flushPending_
+								|| batchCounter_ > 0) {
+							IOIOProtocol.this.wait();
+							continue;
+						}
+						long remaining = flushPendingSince_ + maxDelayNanos_
+								- System.nanoTime();
+						if (remaining > 0) {
+							IOIOProtocol.this.wait(remaining / 1000000,
+									(int) (remaining % 1000000));
+							continue;
+						}
+						try {
+							flush();
+						} catch (IOException e) {
+							Log.e(TAG, "Coalesced write failed", e);
+						}
+					}
+				} catch (InterruptedException e) {
+				}
+				coalescingThread_ = null;
+			}
+		}
+	}
+
 	private void writeTwoBytes(int i) throws IOException {
 		writeByte(i & 0xFF);
 		writeByte(i >> 8);
@@ -182,25 +346,28 @@ class IOIOProtocol {
 	}
 
 	synchronized public void hardReset() throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(HARD_RESET);
 		writeByte('I');
 		writeByte('O');
 		writeByte('I');
 		writeByte('O');
 		endBatch();
+		flushCoalesced();
 	}
 
 	synchronized public void softReset() throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SOFT_RESET);
 		endBatch();
+		flushCoalesced();
 	}
 
 	synchronized public void softClose() throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SOFT_CLOSE);
 		endBatch();
+		flushCoalesced();
 	}
 
 	synchronized public void checkInterface(byte[] interfaceId)
@@ -209,7 +376,7 @@ class IOIOProtocol {
 			throw new IllegalArgumentException(
 					"interface ID must be exactly 8 bytes long");
 		}
-		beginBatch();
+		beginCommand();
 		writeByte(CHECK_INTERFACE);
 		for (int i = 0; i < 8; ++i) {
 			writeByte(interfaceId[i]);
@@ -219,7 +386,7 @@ class IOIOProtocol {
 
 	synchronized public void setDigitalOutLevel(int pin, boolean level)
 			throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_DIGITAL_OUT_LEVEL);
 		writeByte(pin << 2 | (level ? 1 : 0));
 		endBatch();
@@ -227,7 +394,7 @@ class IOIOProtocol {
 
 	synchronized public void setPinPwm(int pin, int pwmNum, boolean enable)
 			throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_PIN_PWM);
 		writeByte(pin & 0x3F);
 		writeByte((enable ? 0x80 : 0x00) | (pwmNum & 0x0F));
@@ -236,7 +403,7 @@ class IOIOProtocol {
 
 	synchronized public void setPwmDutyCycle(int pwmNum, int dutyCycle,
 			int fraction) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_PWM_DUTY_CYCLE);
 		writeByte(pwmNum << 2 | fraction);
 		writeTwoBytes(dutyCycle);
@@ -245,7 +412,7 @@ class IOIOProtocol {
 
 	synchronized public void setPwmPeriod(int pwmNum, int period, PwmScale scale)
 			throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_PWM_PERIOD);
 		writeByte(((scale.encoding & 0x02) << 6) | (pwmNum << 1)
 				| (scale.encoding & 0x01));
@@ -255,7 +422,7 @@ class IOIOProtocol {
 
 	synchronized public void setPinIncap(int pin, int incapNum, boolean enable)
 			throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_PIN_INCAP);
 		writeByte(pin);
 		writeByte(incapNum | (enable ? 0x80 : 0x00));
@@ -264,7 +431,7 @@ class IOIOProtocol {
 
 	synchronized public void incapClose(int incapNum, boolean double_prec)
 			throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(INCAP_CONFIGURE);
 		writeByte(incapNum);
 		writeByte(double_prec ? 0x80 : 0x00);
@@ -273,7 +440,7 @@ class IOIOProtocol {
 
 	synchronized public void incapConfigure(int incapNum, boolean double_prec,
 			int mode, int clock) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(INCAP_CONFIGURE);
 		writeByte(incapNum);
 		writeByte((double_prec ? 0x80 : 0x00) | (mode << 3) | clock);
@@ -283,7 +450,7 @@ class IOIOProtocol {
 	synchronized public void i2cWriteRead(int i2cNum, boolean tenBitAddr,
 			int address, int writeSize, int readSize, byte[] writeData)
 			throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(I2C_WRITE_READ);
 		writeByte(((address >> 8) << 6) | (tenBitAddr ? 0x20 : 0x00) | i2cNum);
 		writeByte(address & 0xFF);
@@ -297,7 +464,7 @@ class IOIOProtocol {
 
 	synchronized public void setPinDigitalOut(int pin, boolean value,
 			DigitalOutput.Spec.Mode mode) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_PIN_DIGITAL_OUT);
 		writeByte((pin << 2)
 				| (mode == DigitalOutput.Spec.Mode.OPEN_DRAIN ? 0x01 : 0x00)
@@ -313,7 +480,7 @@ class IOIOProtocol {
 		} else if (mode == DigitalInput.Spec.Mode.PULL_DOWN) {
 			pull = 2;
 		}
-		beginBatch();
+		beginCommand();
 		writeByte(SET_PIN_DIGITAL_IN);
 		writeByte((pin << 2) | pull);
 		endBatch();
@@ -321,7 +488,7 @@ class IOIOProtocol {
 
 	synchronized public void setChangeNotify(int pin, boolean changeNotify)
 			throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_CHANGE_NOTIFY);
 		writeByte((pin << 2) | (changeNotify ? 0x01 : 0x00));
 		endBatch();
@@ -333,7 +500,7 @@ class IOIOProtocol {
 	}
 
 	synchronized public void setPinAnalogIn(int pin) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_PIN_ANALOG_IN);
 		writeByte(pin);
 		endBatch();
@@ -341,7 +508,7 @@ class IOIOProtocol {
 
 	synchronized public void setAnalogInSampling(int pin, boolean enable)
 			throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_ANALOG_IN_SAMPLING);
 		writeByte((enable ? 0x80 : 0x00) | (pin & 0x3F));
 		endBatch();
@@ -354,7 +521,7 @@ class IOIOProtocol {
 					"A maximum of 64 bytes can be sent in one uartData message. Got: "
 							+ numBytes);
 		}
-		beginBatch();
+		beginCommand();
 		writeByte(UART_DATA);
 		writeByte((numBytes - 1) | uartNum << 6);
 		for (int i = 0; i < numBytes; ++i) {
@@ -368,7 +535,7 @@ class IOIOProtocol {
 			throws IOException {
 		int parbits = parity == Uart.Parity.EVEN ? 1
 				: (parity == Uart.Parity.ODD ? 2 : 0);
-		beginBatch();
+		beginCommand();
 		writeByte(UART_CONFIG);
 		writeByte((uartNum << 6) | (speed4x ? 0x08 : 0x00)
 				| (stopbits == Uart.StopBits.TWO ? 0x04 : 0x00) | parbits);
@@ -377,7 +544,7 @@ class IOIOProtocol {
 	}
 
 	synchronized public void uartClose(int uartNum) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(UART_CONFIG);
 		writeByte(uartNum << 6);
 		writeTwoBytes(0);
@@ -386,7 +553,7 @@ class IOIOProtocol {
 
 	synchronized public void setPinUart(int pin, int uartNum, boolean tx,
 			boolean enable) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_PIN_UART);
 		writeByte(pin);
 		writeByte((enable ? 0x80 : 0x00) | (tx ? 0x40 : 0x00) | uartNum);
@@ -395,7 +562,7 @@ class IOIOProtocol {
 
 	synchronized public void spiConfigureMaster(int spiNum,
 			SpiMaster.Config config) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SPI_CONFIGURE_MASTER);
 		writeByte((spiNum << 5) | SCALE_DIV[config.rate.ordinal()]);
 		writeByte((config.sampleOnTrailing ? 0x00 : 0x02)
@@ -404,7 +571,7 @@ class IOIOProtocol {
 	}
 
 	synchronized public void spiClose(int spiNum) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SPI_CONFIGURE_MASTER);
 		writeByte(spiNum << 5);
 		writeByte(0x00);
@@ -413,7 +580,7 @@ class IOIOProtocol {
 
 	synchronized public void setPinSpi(int pin, int mode, boolean enable,
 			int spiNum) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_PIN_SPI);
 		writeByte(pin);
 		writeByte((1 << 4) | (mode << 2) | spiNum);
@@ -425,7 +592,7 @@ class IOIOProtocol {
 			throws IOException {
 		final boolean dataNeqTotal = (dataBytes != totalBytes);
 		final boolean resNeqTotal = (responseBytes != totalBytes);
-		beginBatch();
+		beginCommand();
 		writeByte(SPI_MASTER_REQUEST);
 		writeByte((spiNum << 6) | ssPin);
 		writeByte((dataNeqTotal ? 0x80 : 0x00) | (resNeqTotal ? 0x40 : 0x00)
@@ -446,67 +613,67 @@ class IOIOProtocol {
 			boolean smbusLevels) throws IOException {
 		int rateBits = (rate == Rate.RATE_1MHz ? 3
 				: (rate == Rate.RATE_400KHz ? 2 : 1));
-		beginBatch();
+		beginCommand();
 		writeByte(I2C_CONFIGURE_MASTER);
 		writeByte((smbusLevels ? 0x80 : 0) | (rateBits << 5) | i2cNum);
 		endBatch();
 	}
 
 	synchronized public void i2cClose(int i2cNum) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(I2C_CONFIGURE_MASTER);
 		writeByte(i2cNum);
 		endBatch();
 	}
 
 	synchronized public void icspOpen() throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(ICSP_CONFIG);
 		writeByte(0x01);
 		endBatch();
 	}
 
 	synchronized public void icspClose() throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(ICSP_CONFIG);
 		writeByte(0x00);
 		endBatch();
 	}
 
 	synchronized public void icspEnter() throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(ICSP_PROG_ENTER);
 		endBatch();
 	}
 
 	synchronized public void icspExit() throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(ICSP_PROG_EXIT);
 		endBatch();
 	}
 
 	synchronized public void icspSix(int instruction) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(ICSP_SIX);
 		writeThreeBytes(instruction);
 		endBatch();
 	}
 
 	synchronized public void icspRegout() throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(ICSP_REGOUT);
 		endBatch();
 	}
 	
 	synchronized public void setPinCapSense(int pinNum) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_PIN_CAPSENSE);
 		writeByte(pinNum & 0x3F);
 		endBatch();
 	}
 
 	synchronized public void setCapSenseSampling(int pinNum, boolean enable) throws IOException {
-		beginBatch();
+		beginCommand();
 		writeByte(SET_CAPSENSE_SAMPLING);
 		writeByte((pinNum & 0x3F) | (enable ? 0x80 : 0x00));
 		endBatch();
@@ -533,14 +700,19 @@ class IOIOProtocol {
 
 		public void handleAnalogPinStatus(int pin, boolean open);
 
-		public void handleReportAnalogInStatus(List<Integer> pins,
-				List<Integer> values);
+		/**
+		 * The arrays are owned by the caller and reused for the next frame,
+		 * only the first numPins entries are valid.
+		 */
+		public void handleReportAnalogInStatus(int[] pins, int[] values,
+				int numPins);
 
 		public void handleUartOpen(int uartNum);
 
 		public void handleUartClose(int uartNum);
 
-		public void handleUartData(int uartNum, int numBytes, byte data[]);
+		public void handleUartData(int uartNum, int numBytes, byte data[],
+				int offset);
 
 		public void handleUartReportTxStatus(int uartNum, int bytesRemaining);
 
@@ -549,7 +721,7 @@ class IOIOProtocol {
 		public void handleSpiClose(int spiNum);
 
 		public void handleSpiData(int spiNum, int ssPin, byte data[],
-				int dataBytes);
+				int offset, int dataBytes);
 
 		public void handleSpiReportTxStatus(int spiNum, int bytesRemaining);
 
@@ -557,7 +729,8 @@ class IOIOProtocol {
 
 		public void handleI2cClose(int i2cNum);
 
-		public void handleI2cResult(int i2cNum, int size, byte[] data);
+		public void handleI2cResult(int i2cNum, int size, byte[] data,
+				int offset);
 
 		public void handleI2cReportTxStatus(int spiNum, int bytesRemaining);
 
@@ -567,9 +740,10 @@ class IOIOProtocol {
 
 		void handleIcspReportRxStatus(int bytesRemaining);
 
-		void handleIcspResult(int size, byte[] data);
+		void handleIcspResult(int size, byte[] data, int offset);
 
-		public void handleIncapReport(int incapNum, int size, byte[] data);
+		public void handleIncapReport(int incapNum, int size, byte[] data,
+				int offset);
 
 		public void handleIncapClose(int incapNum);
 
@@ -583,41 +757,73 @@ class IOIOProtocol {
 	class IncomingThread extends Thread {
 		private int readOffset_ = 0;
 		private int validBytes_ = 0;
-		private byte[] inbuf_ = new byte[64];
-
-		private List<Integer> analogPinValues_ = new ArrayList<Integer>();
-		private List<Integer> analogFramePins_ = new ArrayList<Integer>();
-		private List<Integer> newFramePins_ = new ArrayList<Integer>();
-		private Set<Integer> removedPins_ = new HashSet<Integer>();
-		private Set<Integer> addedPins_ = new HashSet<Integer>();
+		// Payloads are handed to the handler as slices of this buffer, so it
+		// has to hold the largest one (an I2C result of up to 255 bytes).
+		private final byte[] inbuf_;
+
+		// Pin numbers are transmitted as bytes, so a frame has at most 256
+		// pins and a set of pins fits into 4 longs.
+		private int[] analogPinValues_ = new int[256];
+		private int[] analogFramePins_ = new int[256];
+		private int[] newFramePins_ = new int[256];
+		private int numAnalogFramePins_ = 0;
+		private int numNewFramePins_ = 0;
+		private long[] analogFramePinSet_ = new long[4];
+		private long[] newFramePinSet_ = new long[4];
 
 		private void calculateAnalogFrameDelta() {
-			removedPins_.clear();
-			removedPins_.addAll(analogFramePins_);
-			addedPins_.clear();
-			addedPins_.addAll(newFramePins_);
-			// Remove the intersection from both.
-			for (Iterator<Integer> it = removedPins_.iterator(); it.hasNext();) {
-				Integer current = it.next();
-				if (addedPins_.contains(current)) {
-					it.remove();
-					addedPins_.remove(current);
+			// Report all removed pins before the added ones.
+			for (int i = 0; i < newFramePinSet_.length; ++i) {
+				long removed = analogFramePinSet_[i] & ~newFramePinSet_[i];
+				for (; removed != 0; removed &= removed - 1) {
+					handler_.handleAnalogPinStatus(
+							i * 64 + Long.numberOfTrailingZeros(removed), false);
+				}
+			}
+			for (int i = 0; i < newFramePinSet_.length; ++i) {
+				long added = newFramePinSet_[i] & ~analogFramePinSet_[i];
+				for (; added != 0; added &= added - 1) {
+					handler_.handleAnalogPinStatus(
+							i * 64 + Long.numberOfTrailingZeros(added), true);
 				}
 			}
 			// swap
-			List<Integer> temp = analogFramePins_;
+			int[] tempPins = analogFramePins_;
 			analogFramePins_ = newFramePins_;
-			newFramePins_ = temp;
+			newFramePins_ = tempPins;
+			numAnalogFramePins_ = numNewFramePins_;
+			long[] tempSet = analogFramePinSet_;
+			analogFramePinSet_ = newFramePinSet_;
+			newFramePinSet_ = tempSet;
+		}
+
+		private void clearAnalogFrame() {
+			numAnalogFramePins_ = 0;
+			for (int i = 0; i < analogFramePinSet_.length; ++i) {
+				analogFramePinSet_[i] = 0;
+			}
+		}
+
+		IncomingThread(int bufferSize) {
+			inbuf_ = new byte[bufferSize];
 		}
 
 		private void fillBuf() throws IOException {
+			readOffset_ = 0;
+			validBytes_ = 0;
+			appendToBuf();
+		}
+
+		private void appendToBuf() throws IOException {
 			try {
-				validBytes_ = in_.read(inbuf_, 0, inbuf_.length);
-				if (validBytes_ <= 0) {
+				int read = in_.read(inbuf_, validBytes_, inbuf_.length
+						- validBytes_);
+				if (read <= 0) {
 					throw new IOException("Unexpected stream closure");
 				}
-				//Log.v(TAG, "received " + validBytes_ + " bytes");
-				readOffset_ = 0;
+				//Log.v(TAG, "received " + read + " bytes");
+				validBytes_ += read;
+				bytesRead_ += read;
 			} catch (IOException e) {
 				Log.i(TAG, "IOIO disconnected");
 				throw e;
@@ -634,10 +840,32 @@ class IOIOProtocol {
 			return b;
 		}
 
-		private void readBytes(int size, byte[] buffer) throws IOException {
-			for (int i = 0; i < size; ++i) {
-				buffer[i] = (byte) readByte();
+		/**
+		 * Makes the next size bytes available in inbuf_ and consumes them.
+		 * 
+		 * @return The offset of the bytes within inbuf_. They are valid until
+		 *         the next read.
+		 */
+		private int readSlice(int size) throws IOException {
+			if (validBytes_ - readOffset_ < size) {
+				if (inbuf_.length - readOffset_ < size) {
+					// move the partial payload to the front
+					validBytes_ -= readOffset_;
+					System.arraycopy(inbuf_, readOffset_, inbuf_, 0,
+							validBytes_);
+					readOffset_ = 0;
+				}
+				while (validBytes_ - readOffset_ < size) {
+					appendToBuf();
+				}
 			}
+			int offset = readOffset_;
+			readOffset_ += size;
+			return offset;
+		}
+
+		private void readBytes(int size, byte[] buffer) throws IOException {
+			System.arraycopy(inbuf_, readSlice(size), buffer, 0, size);
 		}
 
 		@Override
@@ -648,10 +876,11 @@ class IOIOProtocol {
 			int arg2;
 			int numPins;
 			int size;
-			byte[] data = new byte[256];
 			try {
 				while (true) {
-					switch (arg1 = readByte()) {
+					arg1 = readByte();
+					++packetsRead_;
+					switch (arg1) {
 					case ESTABLISH_CONNECTION:
 						if (readByte() != 'I' || readByte() != 'O'
 								|| readByte() != 'I' || readByte() != 'O') {
@@ -670,7 +899,7 @@ class IOIOProtocol {
 						break;
 
 					case SOFT_RESET:
-						analogFramePins_.clear();
+						clearAnalogFrame();
 						handler_.handleSoftReset();
 						break;
 
@@ -696,32 +925,30 @@ class IOIOProtocol {
 
 					case REPORT_ANALOG_IN_FORMAT:
 						numPins = readByte();
-						newFramePins_.clear();
+						numNewFramePins_ = numPins;
+						for (int i = 0; i < newFramePinSet_.length; ++i) {
+							newFramePinSet_[i] = 0;
+						}
 						for (int i = 0; i < numPins; ++i) {
-							newFramePins_.add(readByte());
+							int pin = readByte();
+							newFramePins_[i] = pin;
+							newFramePinSet_[pin >> 6] |= 1L << pin;
 						}
 						calculateAnalogFrameDelta();
-						for (Integer i : removedPins_) {
-							handler_.handleAnalogPinStatus(i, false);
-						}
-						for (Integer i : addedPins_) {
-							handler_.handleAnalogPinStatus(i, true);
-						}
 						break;
 
 					case REPORT_ANALOG_IN_STATUS:
-						numPins = analogFramePins_.size();
+						numPins = numAnalogFramePins_;
 						int header = 0;
-						analogPinValues_.clear();
 						for (int i = 0; i < numPins; ++i) {
 							if (i % 4 == 0) {
 								header = readByte();
 							}
-							analogPinValues_.add((readByte() << 2) | (header & 0x03));
+							analogPinValues_[i] = (readByte() << 2) | (header & 0x03);
 							header >>= 2;
 						}
 						handler_.handleReportAnalogInStatus(analogFramePins_,
-								analogPinValues_);
+								analogPinValues_, numPins);
 						break;
 
 					case UART_REPORT_TX_STATUS:
@@ -733,11 +960,9 @@ class IOIOProtocol {
 
 					case UART_DATA:
 						arg1 = readByte();
-						for (int i = 0; i < (arg1 & 0x3F) + 1; ++i) {
-							data[i] = (byte) readByte();
-						}
-						handler_.handleUartData(arg1 >> 6, (arg1 & 0x3F) + 1,
-								data);
+						size = (arg1 & 0x3F) + 1;
+						handler_.handleUartData(arg1 >> 6, size, inbuf_,
+								readSlice(size));
 						break;
 
 					case UART_STATUS:
@@ -752,11 +977,9 @@ class IOIOProtocol {
 					case SPI_DATA:
 						arg1 = readByte();
 						arg2 = readByte();
-						for (int i = 0; i < (arg1 & 0x3F) + 1; ++i) {
-							data[i] = (byte) readByte();
-						}
-						handler_.handleSpiData(arg1 >> 6, arg2 & 0x3F, data,
-								(arg1 & 0x3F) + 1);
+						size = (arg1 & 0x3F) + 1;
+						handler_.handleSpiData(arg1 >> 6, arg2 & 0x3F, inbuf_,
+								readSlice(size), size);
 						break;
 
 					case SPI_REPORT_TX_STATUS:
@@ -787,12 +1010,9 @@ class IOIOProtocol {
 					case I2C_RESULT:
 						arg1 = readByte();
 						arg2 = readByte();
-						if (arg2 != 0xFF) {
-							for (int i = 0; i < arg2; ++i) {
-								data[i] = (byte) readByte();
-							}
-						}
-						handler_.handleI2cResult(arg1 & 0x03, arg2, data);
+						// 0xFF signals a failed transaction without payload
+						handler_.handleI2cResult(arg1 & 0x03, arg2, inbuf_,
+								arg2 != 0xFF ? readSlice(arg2) : readOffset_);
 						break;
 
 					case I2C_REPORT_TX_STATUS:
@@ -814,9 +1034,7 @@ class IOIOProtocol {
 						break;
 
 					case ICSP_RESULT:
-						data[0] = (byte) readByte();
-						data[1] = (byte) readByte();
-						handler_.handleIcspResult(2, data);
+						handler_.handleIcspResult(2, inbuf_, readSlice(2));
 						break;
 
 					case ICSP_CONFIG:
@@ -843,8 +1061,8 @@ class IOIOProtocol {
 						if (size == 0) {
 							size = 4;
 						}
-						readBytes(size, data);
-						handler_.handleIncapReport(arg1 & 0x0F, size, data);
+						handler_.handleIncapReport(arg1 & 0x0F, size, inbuf_,
+								readSlice(size));
 						break;
 
 					case SOFT_CLOSE:
@@ -873,6 +1091,10 @@ class IOIOProtocol {
 					}
 				}
 			} catch (IOException e) {
+				synchronized (IOIOProtocol.this) {
+					closed_ = true;
+					IOIOProtocol.this.notifyAll();
+				}
 				handler_.handleConnectionLost();
 			}
 		}
@@ -881,13 +1103,28 @@ class IOIOProtocol {
 	private final InputStream in_;
 	private final OutputStream out_;
 	private final IncomingHandler handler_;
-	private final IncomingThread thread_ = new IncomingThread();
+	private final IncomingThread thread_;
 
 	public IOIOProtocol(InputStream in, OutputStream out,
 			IncomingHandler handler) {
+		this(in, out, handler, DEFAULT_INPUT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param inputBufferSize
+	 *            The number of bytes to read from the connection at once. At
+	 *            least {@link #MIN_INPUT_BUFFER_SIZE}.
+	 */
+	public IOIOProtocol(InputStream in, OutputStream out,
+			IncomingHandler handler, int inputBufferSize) {
+		if (inputBufferSize < MIN_INPUT_BUFFER_SIZE) {
+			throw new IllegalArgumentException("Input buffer too small: "
+					+ inputBufferSize);
+		}
 		in_ = in;
 		out_ = out;
 		handler_ = handler;
+		thread_ = new IncomingThread(inputBufferSize);
 		thread_.start();
 	}
 }
@@ -46,9 +46,10 @@ class IcspMasterImpl extends AbstractResource implements IcspMaster,
 	}
 
 	@Override
-	synchronized public void dataReceived(byte[] data, int size) {
+	synchronized public void dataReceived(byte[] data, int offset, int size) {
 		assert (size == 2);
-		int result = (byteToInt(data[1]) << 8) | byteToInt(data[0]);
+		int result = (byteToInt(data[offset + 1]) << 8)
+				| byteToInt(data[offset]);
 		resultQueue_.add(result);
 		notifyAll();
 	}
@@ -67,8 +67,8 @@ class IncapImpl extends AbstractPin implements DataModuleListener,
 	}
 
 	@Override
-	public synchronized void dataReceived(byte[] data, int size) {
-		lastDuration_ = ByteArrayToLong(data, size);
+	public synchronized void dataReceived(byte[] data, int offset, int size) {
+		lastDuration_ = ByteArrayToLong(data, offset, size);
 		if (pulseQueue_.size() == MAX_QUEUE_LEN) {
 			pulseQueue_.remove();
 		}
@@ -77,12 +77,12 @@ class IncapImpl extends AbstractPin implements DataModuleListener,
 		notifyAll();
 	}
 
-	private static long ByteArrayToLong(byte[] data, int size) {
+	private static long ByteArrayToLong(byte[] data, int offset, int size) {
 		long result = 0;
 		int i = size;
 		while (i-- > 0) {
 			result <<= 8;
-			result |= ((int) data[i]) & 0xFF;
+			result |= ((int) data[offset + i]) & 0xFF;
 		}
 		if (result == 0) {
 			result = 1 << (size * 8);
@@ -34,7 +34,6 @@ import ioio.lib.impl.IOIOProtocol.IncomingHandler;
 import ioio.lib.spi.Log;
 
 import java.util.HashSet;
-import java.util.List;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -55,7 +54,10 @@ class IncomingState implements IncomingHandler {
 	}
 
 	interface DataModuleListener {
-		void dataReceived(byte[] data, int size);
+		/**
+		 * data is owned by the caller and only valid during the call.
+		 */
+		void dataReceived(byte[] data, int offset, int size);
 
 		void reportAdditionalBuffer(int bytesToAdd);
 	}
@@ -110,9 +112,9 @@ class IncomingState implements IncomingHandler {
 			}
 		}
 
-		void dataReceived(byte[] data, int size) {
+		void dataReceived(byte[] data, int offset, int size) {
 			assert (currentOpen_);
-			listeners_.peek().dataReceived(data, size);
+			listeners_.peek().dataReceived(data, offset, size);
 		}
 
 		public void reportAdditionalBuffer(int bytesRemaining) {
@@ -133,6 +135,8 @@ class IncomingState implements IncomingHandler {
 	public String bootloaderId_;
 	public String firmwareId_;
 	public Board board_;
+	// written by the incoming thread only
+	private volatile long analogFrameNumber_ = 0;
 
 	synchronized public void waitConnectionEstablished()
 			throws InterruptedException, ConnectionLostException {
@@ -189,6 +193,14 @@ class IncomingState implements IncomingHandler {
 		spiStates_[spiNum].pushListener(listener);
 	}
 
+	/**
+	 * @return The number of analog frames received since the connection has
+	 *         been established, i.e. the number of the current frame.
+	 */
+	long getAnalogFrameNumber() {
+		return analogFrameNumber_;
+	}
+
 	synchronized public void addDisconnectListener(DisconnectListener listener)
 			throws ConnectionLostException {
 		checkNotDisconnected();
@@ -273,9 +285,10 @@ class IncomingState implements IncomingHandler {
 	}
 
 	@Override
-	public void handleUartData(int uartNum, int numBytes, byte[] data) {
+	public void handleUartData(int uartNum, int numBytes, byte[] data,
+			int offset) {
 		// logMethod("handleUartData", uartNum, numBytes, data);
-		uartStates_[uartNum].dataReceived(data, numBytes);
+		uartStates_[uartNum].dataReceived(data, offset, numBytes);
 	}
 
 	@Override
@@ -386,9 +399,10 @@ class IncomingState implements IncomingHandler {
 	}
 
 	@Override
-	public void handleSpiData(int spiNum, int ssPin, byte[] data, int dataBytes) {
+	public void handleSpiData(int spiNum, int ssPin, byte[] data, int offset,
+			int dataBytes) {
 		// logMethod("handleSpiData", spiNum, ssPin, data, dataBytes);
-		spiStates_[spiNum].dataReceived(data, dataBytes);
+		spiStates_[spiNum].dataReceived(data, offset, dataBytes);
 	}
 
 	@Override
@@ -410,11 +424,12 @@ class IncomingState implements IncomingHandler {
 	}
 
 	@Override
-	public void handleReportAnalogInStatus(List<Integer> pins,
-			List<Integer> values) {
+	public void handleReportAnalogInStatus(int[] pins, int[] values,
+			int numPins) {
 		// logMethod("handleReportAnalogInStatus", pins, values);
-		for (int i = 0; i < pins.size(); ++i) {
-			intputPinStates_[pins.get(i)].setValue(values.get(i));
+		++analogFrameNumber_;
+		for (int i = 0; i < numPins; ++i) {
+			intputPinStates_[pins[i]].setValue(values[i]);
 		}
 	}
 
@@ -425,15 +440,16 @@ class IncomingState implements IncomingHandler {
 	}
 
 	@Override
-	public void handleI2cResult(int i2cNum, int size, byte[] data) {
+	public void handleI2cResult(int i2cNum, int size, byte[] data, int offset) {
 		// logMethod("handleI2cResult", i2cNum, size, data);
-		twiStates_[i2cNum].dataReceived(data, size);
+		twiStates_[i2cNum].dataReceived(data, offset, size);
 	}
 
 	@Override
-	public void handleIncapReport(int incapNum, int size, byte[] data) {
+	public void handleIncapReport(int incapNum, int size, byte[] data,
+			int offset) {
 		// logMethod("handleIncapReport", incapNum, size, data);
-		incapStates_[incapNum].dataReceived(data, size);
+		incapStates_[incapNum].dataReceived(data, offset, size);
 	}
 
 	@Override
@@ -449,9 +465,9 @@ class IncomingState implements IncomingHandler {
 	}
 
 	@Override
-	public void handleIcspResult(int size, byte[] data) {
+	public void handleIcspResult(int size, byte[] data, int offset) {
 		// logMethod("handleIcspResult", size, data);
-		icspState_.dataReceived(data, size);
+		icspState_.dataReceived(data, offset, size);
 	}
 
 	@Override
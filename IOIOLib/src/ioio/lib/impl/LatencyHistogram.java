@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *  
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ * 
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with power-of-two buckets: bucket i counts the
+ * durations d with 2^(i-1) <= d < 2^i nanoseconds (bucket 0 counts zero
+ * durations). Recording neither allocates nor locks, so it is cheap enough to
+ * be left enabled; queries may run concurrently with recording and see a
+ * consistent count per bucket, though not necessarily across buckets.
+ */
+public class LatencyHistogram {
+	/** The number of buckets. */
+	public static final int NUM_BUCKETS = 64;
+
+	private final AtomicLongArray buckets_ = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count_ = new AtomicLong();
+	private final AtomicLong sumNanos_ = new AtomicLong();
+	private final AtomicLong maxNanos_ = new AtomicLong();
+
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets_.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+		count_.incrementAndGet();
+		sumNanos_.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxNanos_.get())) {
+			if (maxNanos_.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of recorded durations.
+	 */
+	public long getCount() {
+		return count_.get();
+	}
+
+	public long getMeanNanos() {
+		long count = count_.get();
+		return count == 0 ? 0 : sumNanos_.get() / count;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos_.get();
+	}
+
+	/**
+	 * @return The number of recorded durations in the given bucket.
+	 */
+	public long getBucket(int bucket) {
+		return buckets_.get(bucket);
+	}
+
+	/**
+	 * @return The (exclusive) upper bound of the durations counted in the
+	 *         given bucket, in nanoseconds.
+	 */
+	public static long getBucketLimitNanos(int bucket) {
+		return bucket == NUM_BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+	}
+
+	/**
+	 * @param fraction
+	 *            The fraction of durations, between 0 and 1, e.g. 0.99 for the
+	 *            99th percentile.
+	 * @return An upper bound of the given percentile, which is at most twice
+	 *         the exact value (and never above the maximum).
+	 */
+	public long getPercentileNanos(double fraction) {
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; ++i) {
+			count += buckets_.get(i);
+		}
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; ++i) {
+			seen += buckets_.get(i);
+			if (seen >= rank && seen > 0) {
+				return Math.min(getBucketLimitNanos(i), maxNanos_.get());
+			}
+		}
+		return 0;
+	}
+
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; ++i) {
+			buckets_.set(i, 0);
+		}
+		count_.set(0);
+		sumNanos_.set(0);
+		maxNanos_.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "n=" + getCount() + " mean=" + getMeanNanos() / 1000
+				+ "us p99<=" + getPercentileNanos(0.99) / 1000 + "us max="
+				+ getMaxNanos() / 1000 + "us";
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *  
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ * 
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic and latency statistics of one flow-controlled module (TWI or SPI),
+ * see {@link IOIOImpl#getTwiStats(int)} and {@link IOIOImpl#getSpiStats(int)}.
+ * 
+ * Every request passes through three stages, each with its own histogram:
+ * <ul>
+ * <li>queue wait: from being queued until it is first at the head of the
+ * module's queue with nothing but credits missing, or until it is sent;</li>
+ * <li>credit wait: at the head of the queue, waiting for the IOIO to report
+ * enough free buffer space;</li>
+ * <li>round trip: from handing it to the protocol until its response has
+ * arrived (requests without a response are not counted).</li>
+ * </ul>
+ */
+public class ModuleStats {
+	private final String name_;
+	private final AtomicLong packetsSent_ = new AtomicLong();
+	private final AtomicLong bytesSent_ = new AtomicLong();
+	private final AtomicLong responses_ = new AtomicLong();
+	private final AtomicLong bytesReceived_ = new AtomicLong();
+	private final LatencyHistogram queueWait_ = new LatencyHistogram();
+	private final LatencyHistogram creditWait_ = new LatencyHistogram();
+	private final LatencyHistogram roundTrip_ = new LatencyHistogram();
+
+	ModuleStats(String name) {
+		name_ = name;
+	}
+
+	void packetSent(int size, long queueWaitNanos, long creditWaitNanos) {
+		packetsSent_.incrementAndGet();
+		bytesSent_.addAndGet(size);
+		queueWait_.record(queueWaitNanos);
+		creditWait_.record(creditWaitNanos);
+	}
+
+	void responseReceived(int size, long roundTripNanos) {
+		responses_.incrementAndGet();
+		bytesReceived_.addAndGet(size);
+		roundTrip_.record(roundTripNanos);
+	}
+
+	/**
+	 * @return The name of the module, e.g. "TWI1".
+	 */
+	public String getName() {
+		return name_;
+	}
+
+	public long getPacketsSent() {
+		return packetsSent_.get();
+	}
+
+	/**
+	 * @return The number of bytes sent, as counted against the IOIO's buffer.
+	 */
+	public long getBytesSent() {
+		return bytesSent_.get();
+	}
+
+	public long getResponsesReceived() {
+		return responses_.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived_.get();
+	}
+
+	public LatencyHistogram getQueueWait() {
+		return queueWait_;
+	}
+
+	public LatencyHistogram getCreditWait() {
+		return creditWait_;
+	}
+
+	public LatencyHistogram getRoundTrip() {
+		return roundTrip_;
+	}
+
+	public void reset() {
+		packetsSent_.set(0);
+		bytesSent_.set(0);
+		responses_.set(0);
+		bytesReceived_.set(0);
+		queueWait_.reset();
+		creditWait_.reset();
+		roundTrip_.reset();
+	}
+
+	@Override
+	public String toString() {
+		return name_ + ": sent " + getPacketsSent() + " (" + getBytesSent()
+				+ " bytes), received " + getResponsesReceived() + " ("
+				+ getBytesReceived() + " bytes); queue wait " + queueWait_
+				+ "; credit wait " + creditWait_ + "; round trip "
+				+ roundTrip_;
+	}
+}
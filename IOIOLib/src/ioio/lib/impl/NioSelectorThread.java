@@ -0,0 +1,130 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *  
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ * 
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.spi.Log;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread serving the non-blocking channels of all socket
+ * connections. Registrations and changes of interest are passed to it as
+ * tasks, since they must not race with a selection in progress.
+ */
+class NioSelectorThread extends Thread {
+	private static final String TAG = "NioSelectorThread";
+
+	interface Handler {
+		/**
+		 * Called on the selector thread when the key is ready for some of its
+		 * operations of interest.
+		 */
+		void ready(SelectionKey key);
+	}
+
+	private static NioSelectorThread instance_;
+
+	private final Selector selector_;
+	private final Queue<Runnable> tasks_ = new ConcurrentLinkedQueue<Runnable>();
+
+	static synchronized NioSelectorThread getInstance() throws IOException {
+		if (instance_ == null) {
+			instance_ = new NioSelectorThread(Selector.open());
+			instance_.start();
+		}
+		return instance_;
+	}
+
+	private NioSelectorThread(Selector selector) {
+		super("IOIO socket selector");
+		selector_ = selector;
+		setDaemon(true);
+	}
+
+	Selector getSelector() {
+		return selector_;
+	}
+
+	/**
+	 * Runs the task on the selector thread, before the next selection.
+	 */
+	void execute(Runnable task) {
+		tasks_.add(task);
+		selector_.wakeup();
+	}
+
+	/**
+	 * Adds operations to the interest set of the key.
+	 */
+	void addInterest(final SelectionKey key, final int ops) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				key.interestOps(key.interestOps() | ops);
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Runnable task;
+			while ((task = tasks_.poll()) != null) {
+				try {
+					task.run();
+				} catch (CancelledKeyException e) {
+					// the channel has been closed meanwhile
+				}
+			}
+			try {
+				selector_.select();
+			} catch (IOException e) {
+				Log.e(TAG, "Selection failed", e);
+				continue;
+			}
+			Iterator<SelectionKey> keys = selector_.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					if (key.isValid()) {
+						((Handler) key.attachment()).ready(key);
+					}
+				} catch (CancelledKeyException e) {
+				}
+			}
+		}
+	}
+}
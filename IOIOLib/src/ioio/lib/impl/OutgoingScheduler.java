@@ -0,0 +1,155 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *  
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ * 
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.spi.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sends the queued data of all flow-controlled modules of one IOIO (TWI, SPI,
+ * UART) from a single thread.
+ * 
+ * Each module keeps its own queue and its own count of bytes the IOIO is
+ * ready to accept, and wakes the scheduler whenever either of them grows.
+ * The scheduler then lets every module send whatever its credits allow, all
+ * within one protocol batch, so packets of several modules end up in the same
+ * write to the connection. The thread is started when the first module
+ * registers and terminates when the last one is gone.
+ */
+class OutgoingScheduler {
+	private static final String TAG = "OutgoingScheduler";
+
+	interface Client {
+		/**
+		 * Called on the scheduler thread. Sends as much of the queued data as
+		 * the current credits allow, without blocking.
+		 */
+		void sendPending();
+	}
+
+	private final IOIOImpl ioio_;
+
+	// guarded by this
+	private Client[] clients_ = new Client[0];
+	private boolean pending_ = false;
+	private Thread thread_;
+
+	private long passes_ = 0;
+
+	OutgoingScheduler(IOIOImpl ioio) {
+		ioio_ = ioio;
+	}
+
+	synchronized void register(Client client) {
+		Client[] clients = Arrays.copyOf(clients_, clients_.length + 1);
+		clients[clients_.length] = client;
+		clients_ = clients;
+		if (thread_ == null) {
+			thread_ = new SchedulerThread();
+			thread_.start();
+		}
+	}
+
+	synchronized void unregister(Client client) {
+		for (int i = 0; i < clients_.length; ++i) {
+			if (clients_[i] == client) {
+				Client[] clients = new Client[clients_.length - 1];
+				System.arraycopy(clients_, 0, clients, 0, i);
+				System.arraycopy(clients_, i + 1, clients, i, clients.length
+						- i);
+				clients_ = clients;
+				notifyAll();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Signals that some module has new data or new credits.
+	 */
+	synchronized void wakeUp() {
+		if (!pending_) {
+			pending_ = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return The number of times the modules have been served, each resulting
+	 *         in (at most) one write to the connection.
+	 */
+	synchronized long getPasses() {
+		return passes_;
+	}
+
+	class SchedulerThread extends Thread {
+		SchedulerThread() {
+			super("IOIO outgoing");
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Client[] clients;
+				synchronized (OutgoingScheduler.this) {
+					try {
+						while (!pending_ && clients_.length > 0) {
+							OutgoingScheduler.this.wait();
+						}
+					} catch (InterruptedException e) {
+						thread_ = null;
+						return;
+					}
+					if (clients_.length == 0) {
+						thread_ = null;
+						return;
+					}
+					pending_ = false;
+					clients = clients_;
+					++passes_;
+				}
+				IOIOProtocol protocol = ioio_.protocol_;
+				protocol.beginBatch();
+				try {
+					for (Client client : clients) {
+						client.sendPending();
+					}
+				} finally {
+					try {
+						protocol.endBatch();
+					} catch (IOException e) {
+						Log.e(TAG, "Caught exception", e);
+					}
+				}
+			}
+		}
+	}
+}
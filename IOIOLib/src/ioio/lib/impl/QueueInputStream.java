@@ -32,34 +32,53 @@ import ioio.lib.spi.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
 
+/**
+ * An input stream fed by a single producer thread (the thread calling
+ * {@link #write(byte[], int, int)}) through a byte ring buffer.
+ * 
+ * Bytes are transferred in bulk using {@link System#arraycopy}. The producer
+ * never takes the lock of this stream unless a reader is waiting for data:
+ * the read and write positions are volatile and only ever advanced by the
+ * consumer and producer side respectively. Readers synchronize among each
+ * other.
+ */
 class QueueInputStream extends InputStream {
 	private enum State {
 		OPEN, CLOSED, KILLED
 	};
 
-	private final Queue<Byte> queue_ = new ArrayBlockingQueue<Byte>(
-			Constants.BUFFER_SIZE);
-	private State state_ = State.OPEN;
+	private final byte[] buffer_;
+	private final int mask_;
+	// Free-running positions, the number of buffered bytes is their
+	// difference (which is correct even after they overflow).
+	private volatile int readPos_ = 0;
+	private volatile int writePos_ = 0;
+	private volatile boolean readerWaiting_ = false;
+	private volatile State state_ = State.OPEN;
+
+	QueueInputStream() {
+		this(Constants.BUFFER_SIZE);
+	}
+
+	QueueInputStream(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity));
+		if (size < capacity) {
+			size <<= 1;
+		}
+		buffer_ = new byte[size];
+		mask_ = size - 1;
+	}
 
 	@Override
 	synchronized public int read() throws IOException {
-		try {
-			while (state_ == State.OPEN && queue_.isEmpty()) {
-				wait();
-			}
-			if (state_ == State.KILLED) {
-				throw new IOException("Stream has been closed");
-			}
-			if (state_ == State.CLOSED && queue_.isEmpty()) {
-				return -1;
-			}
-			return ((int) queue_.remove()) & 0xFF;
-		} catch (InterruptedException e) {
-			throw new IOException("Interrupted");
+		if (!awaitData()) {
+			return -1;
 		}
+		int readPos = readPos_;
+		int b = buffer_[readPos & mask_] & 0xFF;
+		readPos_ = readPos + 1;
+		return b;
 	}
 
 	@Override
@@ -67,42 +86,71 @@ class QueueInputStream extends InputStream {
 		if (len == 0) {
 			return 0;
 		}
-		try {
-			while (state_ == State.OPEN && queue_.isEmpty()) {
-				wait();
-			}
-			if (state_ == State.KILLED) {
-				throw new IOException("Stream has been closed");
-			}
-			if (state_ == State.CLOSED && queue_.isEmpty()) {
-				return -1;
-			}
-			if (len > queue_.size()) {
-				len = queue_.size();
-			}
-			for (int i = 0; i < len; ++i) {
-				b[off++] = queue_.remove();
+		if (!awaitData()) {
+			return -1;
+		}
+		int readPos = readPos_;
+		int available = writePos_ - readPos;
+		if (len > available) {
+			len = available;
+		}
+		int index = readPos & mask_;
+		int first = Math.min(len, buffer_.length - index);
+		System.arraycopy(buffer_, index, b, off, first);
+		System.arraycopy(buffer_, 0, b, off + first, len - first);
+		readPos_ = readPos + len;
+		return len;
+	}
+
+	/**
+	 * Waits until data is available or the stream is closed. Must be called
+	 * with the lock of this held.
+	 * 
+	 * @return false if the stream has been closed and all data has been read.
+	 */
+	private boolean awaitData() throws IOException {
+		if (writePos_ == readPos_ && state_ == State.OPEN) {
+			readerWaiting_ = true;
+			try {
+				// The producer reads readerWaiting_ after publishing
+				// writePos_, so either it notifies or we see the data.
+				while (state_ == State.OPEN && writePos_ == readPos_) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			} finally {
+				readerWaiting_ = false;
 			}
-			return len;
-		} catch (InterruptedException e) {
-			throw new IOException("Interrupted");
 		}
+		if (state_ == State.KILLED) {
+			throw new IOException("Stream has been closed");
+		}
+		return writePos_ != readPos_;
 	}
 
-	synchronized public void write(byte[] data, int size) {
-		for (int i = 0; i < size; ++i) {
-			if (queue_.size() == Constants.BUFFER_SIZE) {
-				Log.e("QueueInputStream", "Buffer overflow, discarding data");
-				break;
+	public void write(byte[] data, int offset, int size) {
+		int writePos = writePos_;
+		int free = buffer_.length - (writePos - readPos_);
+		if (size > free) {
+			Log.e("QueueInputStream", "Buffer overflow, discarding data");
+			size = free;
+		}
+		int index = writePos & mask_;
+		int first = Math.min(size, buffer_.length - index);
+		System.arraycopy(data, offset, buffer_, index, first);
+		System.arraycopy(data, offset + first, buffer_, 0, size - first);
+		writePos_ = writePos + size;
+		if (readerWaiting_) {
+			synchronized (this) {
+				notifyAll();
 			}
-			queue_.add(data[i]);
 		}
-		notifyAll();
 	}
 
 	@Override
-	synchronized public int available() throws IOException {
-		return queue_.size();
+	public int available() throws IOException {
+		return writePos_ - readPos_;
 	}
 
 	@Override
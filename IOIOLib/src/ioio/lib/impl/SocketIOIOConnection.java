@@ -35,21 +35,75 @@ import ioio.lib.spi.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
-public class SocketIOIOConnection implements IOIOConnection {
+/**
+ * A connection to a IOIO over TCP, accepting a single connection on the
+ * given port.
+ * 
+ * The channels of all socket connections are non-blocking and served by one
+ * shared selector thread ({@link NioSelectorThread}), which accepts the
+ * connection and moves received data from a direct buffer into this
+ * connection's input buffer. Writes go straight to the channel from the
+ * writing thread; only what the socket does not take at once is left to the
+ * selector thread.
+ */
+public class SocketIOIOConnection implements IOIOConnection,
+		NioSelectorThread.Handler {
 	private static final String TAG = "SocketIOIOConnection";
+
+	/** The default size of the socket's and the connection's buffers. */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
 	private final int port_;
-	private ServerSocket server_ = null;
-	private Socket socket_ = null;
-	private boolean disconnect_ = false;
-	private boolean server_owned_by_connect_ = true;
-	private boolean socket_owned_by_connect_ = true;
-	
+	private final boolean tcpNoDelay_;
+	private final int bufferSize_;
+	private NioSelectorThread selector_;
+
+	// guarded by this
+	private ServerSocketChannel server_ = null;
+	private SocketChannel channel_ = null;
+	private SelectionKey key_ = null;
+	private volatile boolean disconnect_ = false;
+	private boolean eof_ = false;
+	private IOException acceptError_ = null;
+
+	// incoming data, guarded by this
+	private final byte[] inbuf_;
+	private int inReadPos_ = 0;
+	private int inSize_ = 0;
+	private boolean readPaused_ = false;
+	private final ByteBuffer readBuffer_;
+
+	// outgoing data which the socket has not taken yet, guarded by itself
+	private final ByteBuffer writeBuffer_;
+	private boolean writeInterest_ = false;
+
 	public SocketIOIOConnection(int port) {
+		this(port, true, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param tcpNoDelay
+	 *            Whether to disable Nagle's algorithm, so that small commands
+	 *            are sent without delay.
+	 * @param bufferSize
+	 *            The size of the socket's send and receive buffers as well as
+	 *            of this connection's own buffers.
+	 */
+	public SocketIOIOConnection(int port, boolean tcpNoDelay, int bufferSize) {
 		port_ = port;
+		tcpNoDelay_ = tcpNoDelay;
+		bufferSize_ = bufferSize;
+		inbuf_ = new byte[bufferSize];
+		readBuffer_ = ByteBuffer.allocateDirect(bufferSize);
+		writeBuffer_ = ByteBuffer.allocateDirect(bufferSize);
 	}
 
 	@Override
@@ -59,87 +113,328 @@ public class SocketIOIOConnection implements IOIOConnection {
 				if (disconnect_) {
 					throw new ConnectionLostException();
 				}
+				selector_ = NioSelectorThread.getInstance();
 				Log.v(TAG, "Creating server socket");
-				server_ = new ServerSocket(port_);
-				server_owned_by_connect_ = false;
+				server_ = ServerSocketChannel.open();
+				server_.socket().setReuseAddress(true);
+				server_.socket().bind(new InetSocketAddress(port_));
+				server_.configureBlocking(false);
 			}
+			selector_.execute(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (SocketIOIOConnection.this) {
+						if (server_ == null) {
+							return;
+						}
+						try {
+							server_.register(selector_.getSelector(),
+									SelectionKey.OP_ACCEPT,
+									SocketIOIOConnection.this);
+						} catch (ClosedChannelException e) {
+							// disconnected meanwhile
+						}
+					}
+				}
+			});
 			Log.v(TAG, "Waiting for TCP connection");
-			socket_ = server_.accept();
-			Log.v(TAG, "TCP connected");
 			synchronized (this) {
+				while (channel_ == null && !disconnect_ && acceptError_ == null) {
+					wait();
+				}
+				if (acceptError_ != null) {
+					throw acceptError_;
+				}
 				if (disconnect_) {
-					socket_.close();
 					throw new ConnectionLostException();
 				}
-				socket_owned_by_connect_ = false;
 			}
+			Log.v(TAG, "TCP connected");
 		} catch (IOException e) {
 			synchronized (this) {
 				disconnect_ = true;
-				if (server_owned_by_connect_ && server_ != null) {
-					try {
-						server_.close();
-					} catch (IOException e1) {
-						Log.e(TAG, "Unexpected exception", e1);
-					}
-				}
-				if (socket_owned_by_connect_ && socket_ != null) {
-					try {
-						socket_.close();
-					} catch (IOException e1) {
-						Log.e(TAG, "Unexpected exception", e1);
-					}
-				}
-				if (e instanceof SocketException && e.getMessage().equals("Permission denied")) {
+				closeServer();
+				if (e instanceof SocketException
+						&& "Permission denied".equals(e.getMessage())) {
 					Log.e(TAG, "Did you forget to declare uses-permission of android.permission.INTERNET?");
 				}
 				throw new ConnectionLostException(e);
 			}
+		} catch (InterruptedException e) {
+			disconnect();
+			throw new ConnectionLostException(e);
 		}
 	}
 
 	@Override
-	synchronized public void disconnect() {
-		if (disconnect_) {
-			return;
-		}
-		Log.v(TAG, "Client initiated disconnect");
-		disconnect_ = true;
-		if (!server_owned_by_connect_) {
-			try {
-				server_.close();
-			} catch (IOException e1) {
-				Log.e(TAG, "Unexpected exception", e1);
+	public void disconnect() {
+		synchronized (this) {
+			if (disconnect_) {
+				return;
 			}
-		}
-		if (!socket_owned_by_connect_) {
-			try {
-				socket_.shutdownOutput();
-			} catch (IOException e1) {
+			Log.v(TAG, "Client initiated disconnect");
+			disconnect_ = true;
+			closeServer();
+			if (channel_ != null) {
+				// like closing the stream: the board closes the connection
+				// in response, which ends the input
+				try {
+					channel_.socket().shutdownOutput();
+				} catch (IOException e) {
+				}
 			}
+			notifyAll();
+		}
+		synchronized (writeBuffer_) {
+			writeBuffer_.notifyAll();
 		}
 	}
 
 	@Override
 	public InputStream getInputStream() throws ConnectionLostException {
-		try {
-			return socket_.getInputStream();
-		} catch (IOException e) {
-			throw new ConnectionLostException(e);
-		}
+		return input_;
 	}
 
 	@Override
 	public OutputStream getOutputStream() throws ConnectionLostException {
-		try {
-			return socket_.getOutputStream();
-		} catch (IOException e) {
-			throw new ConnectionLostException(e);
-		}
+		return output_;
 	}
 
 	@Override
 	public boolean canClose() {
 		return true;
 	}
+
+	/*
+	 * (non-javadoc)
+	 * called while holding the lock of this
+	 */
+	private void closeServer() {
+		if (server_ != null) {
+			try {
+				server_.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Unexpected exception", e);
+			}
+			server_ = null;
+		}
+	}
+
+	@Override
+	public void ready(SelectionKey key) {
+		if (key.isAcceptable()) {
+			accept();
+			return;
+		}
+		if (key.isReadable()) {
+			receive(key);
+		}
+		if (key.isValid() && key.isWritable()) {
+			synchronized (writeBuffer_) {
+				try {
+					sendBuffered();
+				} catch (IOException e) {
+					Log.i(TAG, "Write failed: " + e.getMessage());
+					closeChannel();
+				}
+				if (writeBuffer_.position() == 0) {
+					writeInterest_ = false;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				}
+				writeBuffer_.notifyAll();
+			}
+		}
+	}
+
+	private void accept() {
+		SocketChannel channel;
+		synchronized (this) {
+			try {
+				if (server_ == null) {
+					return;
+				}
+				channel = server_.accept();
+				if (channel == null) {
+					return;
+				}
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(tcpNoDelay_);
+				channel.socket().setReceiveBufferSize(bufferSize_);
+				channel.socket().setSendBufferSize(bufferSize_);
+			} catch (IOException e) {
+				acceptError_ = e;
+				notifyAll();
+				return;
+			}
+			closeServer();
+			try {
+				key_ = channel.register(selector_.getSelector(),
+						SelectionKey.OP_READ, this);
+			} catch (ClosedChannelException e) {
+				acceptError_ = e;
+				notifyAll();
+				return;
+			}
+			channel_ = channel;
+			notifyAll();
+		}
+	}
+
+	private void receive(SelectionKey key) {
+		boolean eof = false;
+		synchronized (this) {
+			int free = inbuf_.length - inSize_;
+			readBuffer_.clear();
+			readBuffer_.limit(Math.min(free, readBuffer_.capacity()));
+			int read;
+			try {
+				read = channel_.read(readBuffer_);
+			} catch (IOException e) {
+				Log.i(TAG, "Read failed: " + e.getMessage());
+				read = -1;
+			}
+			if (read < 0) {
+				eof = true;
+			} else {
+				readBuffer_.flip();
+				int writePos = (inReadPos_ + inSize_) % inbuf_.length;
+				int first = Math.min(read, inbuf_.length - writePos);
+				readBuffer_.get(inbuf_, writePos, first);
+				readBuffer_.get(inbuf_, 0, read - first);
+				inSize_ += read;
+				if (inSize_ == inbuf_.length) {
+					// let the socket's buffer fill up until the reader catches
+					// up
+					readPaused_ = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				}
+				notifyAll();
+			}
+		}
+		if (eof) {
+			closeChannel();
+		}
+	}
+
+	private void closeChannel() {
+		synchronized (this) {
+			if (channel_ != null) {
+				try {
+					channel_.close();
+				} catch (IOException e) {
+				}
+			}
+			eof_ = true;
+			notifyAll();
+		}
+		synchronized (writeBuffer_) {
+			writeBuffer_.notifyAll();
+		}
+	}
+
+	/*
+	 * (non-javadoc)
+	 * called while holding the lock of writeBuffer_
+	 */
+	private void sendBuffered() throws IOException {
+		writeBuffer_.flip();
+		try {
+			channel_.write(writeBuffer_);
+		} finally {
+			writeBuffer_.compact();
+		}
+	}
+
+	private final InputStream input_ = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			synchronized (SocketIOIOConnection.this) {
+				try {
+					while (inSize_ == 0 && !eof_) {
+						SocketIOIOConnection.this.wait();
+					}
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+				if (inSize_ == 0) {
+					return -1;
+				}
+				int read = Math.min(len, inSize_);
+				int first = Math.min(read, inbuf_.length - inReadPos_);
+				System.arraycopy(inbuf_, inReadPos_, b, off, first);
+				System.arraycopy(inbuf_, 0, b, off + first, read - first);
+				inReadPos_ = (inReadPos_ + read) % inbuf_.length;
+				inSize_ -= read;
+				if (readPaused_) {
+					readPaused_ = false;
+					selector_.addInterest(key_, SelectionKey.OP_READ);
+				}
+				return read;
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized (SocketIOIOConnection.this) {
+				return inSize_;
+			}
+		}
+
+		@Override
+		public void close() {
+			// e.g. by IOIOProtocol on a protocol error
+			closeChannel();
+		}
+	};
+
+	private final OutputStream output_ = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (writeBuffer_) {
+				while (len > 0) {
+					if (!channel_.isOpen() || disconnect_) {
+						throw new IOException("Connection closed");
+					}
+					int count = Math.min(len, writeBuffer_.remaining());
+					if (count == 0) {
+						try {
+							writeBuffer_.wait();
+						} catch (InterruptedException e) {
+							throw new IOException("Interrupted");
+						}
+						continue;
+					}
+					writeBuffer_.put(b, off, count);
+					off += count;
+					len -= count;
+					if (!writeInterest_) {
+						sendBuffered();
+						if (writeBuffer_.position() > 0) {
+							writeInterest_ = true;
+							selector_.addInterest(key_, SelectionKey.OP_WRITE);
+						}
+					}
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			closeChannel();
+		}
+	};
 }
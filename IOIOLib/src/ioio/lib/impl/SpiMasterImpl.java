@@ -40,24 +40,49 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 class SpiMasterImpl extends AbstractResource implements SpiMaster,
 		DataModuleListener, Sender {
-	public class SpiResult implements Result {
-		boolean ready_;
+	public class SpiResult extends AsyncResult implements Result {
 		final byte[] data_;
+		final int readSize_;
 		
-		SpiResult(byte[] data) {
+		SpiResult(byte[] data, int readSize) {
 			data_ = data;
+			readSize_ = readSize;
 		}
 
 		@Override
-		public synchronized void waitReady() throws ConnectionLostException,
+		protected boolean isDisconnected() {
+			return disconnected_;
+		}
+
+		@Override
+		public void waitReady() throws ConnectionLostException,
 				InterruptedException {
-			while (!ready_ && state_ != State.DISCONNECTED) {
-				wait();
+			if (!await()) {
+				checkState();
+			}
+		}
+
+		@Override
+		public void waitReady(long timeout, TimeUnit unit)
+				throws ConnectionLostException, InterruptedException,
+				TimeoutException {
+			boolean success;
+			try {
+				success = await(unit.toNanos(timeout));
+			} catch (TimeoutException e) {
+				timeouts_.incrementAndGet();
+				desynchronize();
+				throw e;
+			}
+			if (!success) {
+				checkState();
 			}
-			checkState();
 		}
 	}
 
@@ -67,6 +92,7 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster,
 		int ssPin_;
 		int readSize_;
 		int totalSize_;
+		SpiResult result_;
 
 		@Override
 		public int getSize() {
@@ -75,8 +101,8 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster,
 	}
 
 	private final Queue<SpiResult> pendingRequests_ = new ConcurrentLinkedQueue<SpiMasterImpl.SpiResult>();
-	private final FlowControlledPacketSender outgoing_ = new FlowControlledPacketSender(
-			this);
+	private final FlowControlledPacketSender outgoing_;
+	private final ModuleStats stats_;
 
 	private final int spiNum_;
 	private final Map<Integer, Integer> ssPinToIndex_;
@@ -84,11 +110,18 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster,
 	private final int mosiPinNum_;
 	private final int misoPinNum_;
 	private final int clkPinNum_;
+	private final AtomicLong timeouts_ = new AtomicLong();
+	private volatile boolean disconnected_ = false;
+	// set when a response has been lost, see desynchronize()
+	private volatile boolean desynchronized_ = false;
 
 	SpiMasterImpl(IOIOImpl ioio, int spiNum, int mosiPinNum, int misoPinNum,
 			int clkPinNum, int[] ssPins) throws ConnectionLostException {
 		super(ioio);
 		spiNum_ = spiNum;
+		stats_ = ioio.spiStats_[spiNum];
+		outgoing_ = new FlowControlledPacketSender(this,
+				ioio.outgoingScheduler_, stats_);
 		mosiPinNum_ = mosiPinNum;
 		misoPinNum_ = misoPinNum;
 		clkPinNum_ = clkPinNum;
@@ -99,14 +132,30 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster,
 		}
 	}
 
+	/**
+	 * Called when a response has not arrived in time or a response does not
+	 * have the size its request expects. Responses carry no request ID and are
+	 * matched to the pending requests in order, so if one has been lost, every
+	 * later response would complete the wrong request. All pending requests
+	 * are cancelled and no more requests are accepted: the module has to be
+	 * closed and opened again, which starts with an empty queue on the IOIO.
+	 * 
+	 * Lock-free, as it is called by the incoming thread, too.
+	 */
+	private void desynchronize() {
+		desynchronized_ = true;
+		for (SpiResult result : pendingRequests_) {
+			result.cancel();
+		}
+	}
+
 	@Override
 	synchronized public void disconnected() {
 		super.disconnected();
 		outgoing_.kill();
+		disconnected_ = true;
 		for (SpiResult tr : pendingRequests_) {
-			synchronized (tr) {
-				tr.notify();
-			}
+			tr.wakeUp();
 		}
 	}
 
@@ -124,7 +173,7 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster,
 			int writeSize, int totalSize, byte[] readData, int readSize)
 			throws ConnectionLostException {
 		checkState();
-		SpiResult result = new SpiResult(readData);
+		SpiResult result = new SpiResult(readData, readSize);
 
 		OutgoingPacket p = new OutgoingPacket();
 		p.writeSize_ = writeSize;
@@ -132,13 +181,20 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster,
 		p.readSize_ = readSize;
 		p.ssPin_ = indexToSsPin_[slave];
 		p.totalSize_ = totalSize;
+		p.result_ = result;
 
-		if (p.readSize_ > 0) {
-			synchronized (this) {
+		synchronized (this) {
+			checkSynchronized();
+			if (p.readSize_ > 0) {
 				pendingRequests_.add(result);
+				if (desynchronized_) {
+					// desynchronize() might have missed the request
+					result.cancel();
+				}
 			}
-		} else {
-			result.ready_ = true;
+		}
+		if (p.readSize_ == 0) {
+			result.complete();
 		}
 		try {
 			outgoing_.write(p);
@@ -155,16 +211,34 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster,
 		writeRead(0, writeData, writeSize, totalSize, readData, readSize);
 	}
 
+	private void checkSynchronized() {
+		if (desynchronized_) {
+			throw new IllegalStateException(
+					"An SPI response has been lost, close and reopen the module");
+		}
+	}
+
 	@Override
-	public void dataReceived(byte[] data, int size) {
+	public void dataReceived(byte[] data, int offset, int size) {
 		SpiResult result = pendingRequests_.remove();
-		synchronized (result) {
-			result.ready_ = true;
-			System.arraycopy(data, 0, result.data_, 0, size);
-			result.notify();
+		stats_.responseReceived(size, result.getNanosSinceSent());
+		if (size != result.readSize_) {
+			// the response belongs to a later request: one has been lost
+			desynchronize();
+			result.cancel();
+			return;
+		}
+		if (result.beginCompletion()) {
+			System.arraycopy(data, offset, result.data_, 0, size);
+			result.endCompletion(true);
 		}
 	}
 
+	@Override
+	public long getTimeoutCount() {
+		return timeouts_.get();
+	}
+
 	@Override
 	public void reportAdditionalBuffer(int bytesRemaining) {
 		outgoing_.readyToSend(bytesRemaining);
@@ -186,6 +260,7 @@ class SpiMasterImpl extends AbstractResource implements SpiMaster,
 	@Override
 	public void send(Packet packet) {
 		OutgoingPacket p = (OutgoingPacket) packet;
+		p.result_.sent();
 		try {
 			ioio_.protocol_.spiMasterRequest(spiNum_, p.ssPin_, p.writeData_,
 					p.writeSize_, p.totalSize_, p.readSize_);
@@ -38,26 +38,52 @@ import ioio.lib.spi.Log;
 import java.io.IOException;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 class TwiMasterImpl extends AbstractResource implements TwiMaster,
 		DataModuleListener, Sender {
-	class TwiResult implements Result {
-		boolean ready_ = false;
-		boolean success_;
+	class TwiResult extends AsyncResult implements Result {
 		final byte[] data_;
+		final int readSize_;
 		
-		public TwiResult(byte[] data) {
+		public TwiResult(byte[] data, int readSize) {
 			data_ = data;
+			readSize_ = readSize;
 		}
 
 		@Override
-		public synchronized boolean waitReady() throws ConnectionLostException,
+		protected boolean isDisconnected() {
+			return disconnected_;
+		}
+
+		@Override
+		public boolean waitReady() throws ConnectionLostException,
 				InterruptedException {
-			while (!ready_ && state_ != State.DISCONNECTED) {
-				wait();
+			boolean success = await();
+			if (!success) {
+				checkState();
 			}
-			checkState();
-			return success_;
+			return success;
+		}
+
+		@Override
+		public boolean waitReady(long timeout, TimeUnit unit)
+				throws ConnectionLostException, InterruptedException,
+				TimeoutException {
+			boolean success;
+			try {
+				success = await(unit.toNanos(timeout));
+			} catch (TimeoutException e) {
+				timeouts_.incrementAndGet();
+				desynchronize();
+				throw e;
+			}
+			if (!success) {
+				checkState();
+			}
+			return success;
 		}
 	}
 
@@ -67,6 +93,7 @@ class TwiMasterImpl extends AbstractResource implements TwiMaster,
 		boolean tenBitAddr_;
 		int addr_;
 		int readSize_;
+		TwiResult result_;
 
 		@Override
 		public int getSize() {
@@ -76,23 +103,46 @@ class TwiMasterImpl extends AbstractResource implements TwiMaster,
 	}
 
 	private final Queue<TwiResult> pendingRequests_ = new ConcurrentLinkedQueue<TwiMasterImpl.TwiResult>();
-	private final FlowControlledPacketSender outgoing_ = new FlowControlledPacketSender(
-			this);
+	private final FlowControlledPacketSender outgoing_;
+	private final ModuleStats stats_;
 	private final int twiNum_;
+	private final AtomicLong timeouts_ = new AtomicLong();
+	private volatile boolean disconnected_ = false;
+	// set when a response has been lost, see desynchronize()
+	private volatile boolean desynchronized_ = false;
 
 	TwiMasterImpl(IOIOImpl ioio, int twiNum) throws ConnectionLostException {
 		super(ioio);
 		twiNum_ = twiNum;
+		stats_ = ioio.twiStats_[twiNum];
+		outgoing_ = new FlowControlledPacketSender(this,
+				ioio.outgoingScheduler_, stats_);
+	}
+
+	/**
+	 * Called when a response has not arrived in time or a response does not
+	 * have the size its request expects. Responses carry no request ID and are
+	 * matched to the pending requests in order, so if one has been lost, every
+	 * later response would complete the wrong request. All pending requests
+	 * are cancelled and no more requests are accepted: the module has to be
+	 * closed and opened again, which starts with an empty queue on the IOIO.
+	 * 
+	 * Lock-free, as it is called by the incoming thread, too.
+	 */
+	private void desynchronize() {
+		desynchronized_ = true;
+		for (TwiResult result : pendingRequests_) {
+			result.cancel();
+		}
 	}
 
 	@Override
 	synchronized public void disconnected() {
 		super.disconnected();
 		outgoing_.kill();
+		disconnected_ = true;
 		for (TwiResult tr : pendingRequests_) {
-			synchronized (tr) {
-				tr.notify();
-			}
+			tr.wakeUp();
 		}
 	}
 
@@ -110,7 +160,7 @@ class TwiMasterImpl extends AbstractResource implements TwiMaster,
 			byte[] writeData, int writeSize, byte[] readData, int readSize)
 			throws ConnectionLostException {
 		checkState();
-		TwiResult result = new TwiResult(readData);
+		TwiResult result = new TwiResult(readData, readSize);
 
 		OutgoingPacket p = new OutgoingPacket();
 		p.writeSize_ = writeSize;
@@ -118,9 +168,15 @@ class TwiMasterImpl extends AbstractResource implements TwiMaster,
 		p.tenBitAddr_ = tenBitAddr;
 		p.readSize_ = readSize;
 		p.addr_ = address;
+		p.result_ = result;
 
 		synchronized (this) {
+			checkSynchronized();
 			pendingRequests_.add(result);
+			if (desynchronized_) {
+				// desynchronize() might have missed the request
+				result.cancel();
+			}
 			try {
 				outgoing_.write(p);
 			} catch (IOException e) {
@@ -130,19 +186,38 @@ class TwiMasterImpl extends AbstractResource implements TwiMaster,
 		return result;
 	}
 
+	private void checkSynchronized() {
+		if (desynchronized_) {
+			throw new IllegalStateException(
+					"A TWI response has been lost, close and reopen the module");
+		}
+	}
+
 	@Override
-	public void dataReceived(byte[] data, int size) {
+	public void dataReceived(byte[] data, int offset, int size) {
 		TwiResult result = pendingRequests_.remove();
-		synchronized (result) {
-			result.ready_ = true;
-			result.success_ = (size != 0xFF);
-			if (result.success_ && size > 0) {
-				System.arraycopy(data, 0, result.data_, 0, size);
+		stats_.responseReceived(size != 0xFF ? size : 0,
+				result.getNanosSinceSent());
+		boolean success = (size != 0xFF);
+		if (success && size != result.readSize_) {
+			// the response belongs to a later request: one has been lost
+			desynchronize();
+			result.cancel();
+			return;
+		}
+		if (result.beginCompletion()) {
+			if (success && size > 0) {
+				System.arraycopy(data, offset, result.data_, 0, size);
 			}
-			result.notify();
+			result.endCompletion(success);
 		}
 	}
 
+	@Override
+	public long getTimeoutCount() {
+		return timeouts_.get();
+	}
+
 	@Override
 	public void reportAdditionalBuffer(int bytesRemaining) {
 		outgoing_.readyToSend(bytesRemaining);
@@ -158,6 +233,7 @@ class TwiMasterImpl extends AbstractResource implements TwiMaster,
 	@Override
 	public void send(Packet packet) {
 		OutgoingPacket p = (OutgoingPacket) packet;
+		p.result_.sent();
 		try {
 			ioio_.protocol_.i2cWriteRead(twiNum_, p.tenBitAddr_, p.addr_,
 					p.writeSize_, p.readSize_, p.writeData_);
@@ -45,7 +45,8 @@ class UartImpl extends AbstractResource implements DataModuleListener, Sender, U
 	private final int uartNum_;
 	private final int rxPinNum_;
 	private final int txPinNum_;
-	private final FlowControlledOutputStream outgoing_ = new FlowControlledOutputStream(this, MAX_PACKET);
+	private final FlowControlledOutputStream outgoing_ = new FlowControlledOutputStream(this, MAX_PACKET,
+			ioio_.outgoingScheduler_);
 	private final QueueInputStream incoming_ = new QueueInputStream();
 	
 	public UartImpl(IOIOImpl ioio, int txPin, int rxPin, int uartNum) throws ConnectionLostException {
@@ -56,8 +57,8 @@ class UartImpl extends AbstractResource implements DataModuleListener, Sender, U
 	}
 
 	@Override
-	public void dataReceived(byte[] data, int size) {
-		incoming_.write(data, size);
+	public void dataReceived(byte[] data, int offset, int size) {
+		incoming_.write(data, offset, size);
 	}
 
 	@Override
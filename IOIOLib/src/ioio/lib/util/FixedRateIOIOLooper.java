@@ -0,0 +1,171 @@
+package ioio.lib.util;
+
+import ioio.lib.api.IOIO;
+import ioio.lib.api.exception.ConnectionLostException;
+
+/**
+ * A {@link BaseIOIOLooper} which runs its {@link #periodic()} method at a fixed
+ * rate.
+ *
+ * Instead of sleeping for a fixed time between iterations (which lets the
+ * period drift with the time the iteration itself takes), every iteration is
+ * started at a deadline: the deadlines are spaced by the period, independent
+ * of how long the iterations take. If an iteration takes longer than the
+ * period (an overrun), the deadlines which have already passed are skipped,
+ * so the loop does not try to catch up with a burst of iterations.
+ *
+ * The number of iterations and overruns as well as the jitter (how late an
+ * iteration has been started relative to its deadline) are recorded and can
+ * be queried from any thread.
+ */
+public abstract class FixedRateIOIOLooper extends BaseIOIOLooper {
+	private long periodNanos_;
+	private long nextDeadline_;
+	private boolean scheduled_;
+	private IOIO scheduledIoio_;
+
+	private long iterations_;
+	private long overruns_;
+	private long jitterSumNanos_;
+	private long maxJitterNanos_;
+
+	/**
+	 * @param rateHz
+	 *            The target number of iterations per second.
+	 */
+	protected FixedRateIOIOLooper(float rateHz) {
+		setRate(rateHz);
+	}
+
+	/**
+	 * Changes the target rate. Takes effect with the next iteration.
+	 *
+	 * @param rateHz
+	 *            The target number of iterations per second.
+	 */
+	public synchronized void setRate(float rateHz) {
+		if (rateHz <= 0) {
+			throw new IllegalArgumentException("Rate must be positive: "
+					+ rateHz);
+		}
+		periodNanos_ = (long) (1000000000L / rateHz);
+	}
+
+	/**
+	 * @return The target number of iterations per second.
+	 */
+	public synchronized float getRate() {
+		return 1e9f / periodNanos_;
+	}
+
+	/**
+	 * Waits for the next deadline and then calls {@link #periodic()}.
+	 */
+	@Override
+	public final void loop() throws ConnectionLostException,
+			InterruptedException {
+		long periodNanos;
+		synchronized (this) {
+			periodNanos = periodNanos_;
+		}
+
+		long now = System.nanoTime();
+		if (!scheduled_ || scheduledIoio_ != ioio_) {
+			// first iteration after (re-)connecting
+			scheduled_ = true;
+			scheduledIoio_ = ioio_;
+			nextDeadline_ = now;
+		}
+
+		long remaining = nextDeadline_ - now;
+		if (remaining > 0) {
+			Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+			now = System.nanoTime();
+		}
+
+		long jitter = Math.max(0, now - nextDeadline_);
+		synchronized (this) {
+			iterations_++;
+			jitterSumNanos_ += jitter;
+			if (jitter > maxJitterNanos_) {
+				maxJitterNanos_ = jitter;
+			}
+		}
+
+		periodic();
+
+		nextDeadline_ += periodNanos;
+		long end = System.nanoTime();
+		if (end - nextDeadline_ > 0) {
+			long missedPeriods = (end - nextDeadline_) / periodNanos + 1;
+			long lateNanos = end - nextDeadline_;
+			nextDeadline_ += missedPeriods * periodNanos;
+			synchronized (this) {
+				overruns_++;
+			}
+			overrun(lateNanos);
+		}
+	}
+
+	/**
+	 * Subclasses implement this method instead of {@link #loop()}. It is
+	 * called once per period.
+	 *
+	 * @throws ConnectionLostException
+	 *             The connection to the IOIO has been lost.
+	 * @throws InterruptedException
+	 *             The thread has been interrupted.
+	 */
+	protected abstract void periodic() throws ConnectionLostException,
+			InterruptedException;
+
+	/**
+	 * Called after an iteration which has not finished before the next
+	 * deadline. The default implementation does nothing.
+	 *
+	 * @param lateNanos
+	 *            How long after the next deadline the iteration has
+	 *            finished.
+	 */
+	protected void overrun(long lateNanos) {
+	}
+
+	/**
+	 * @return The number of iterations since the last reset of the
+	 *         statistics.
+	 */
+	public synchronized long getIterations() {
+		return iterations_;
+	}
+
+	/**
+	 * @return The number of iterations which have taken longer than the
+	 *         period since the last reset of the statistics.
+	 */
+	public synchronized long getOverruns() {
+		return overruns_;
+	}
+
+	/**
+	 * @return The mean delay between the deadline and the start of an
+	 *         iteration, in nanoseconds.
+	 */
+	public synchronized long getMeanJitterNanos() {
+		return iterations_ == 0 ? 0 : jitterSumNanos_ / iterations_;
+	}
+
+	/**
+	 * @return The maximum delay between the deadline and the start of an
+	 *         iteration, in nanoseconds.
+	 */
+	public synchronized long getMaxJitterNanos() {
+		return maxJitterNanos_;
+	}
+
+	public synchronized void resetStatistics() {
+		iterations_ = 0;
+		overruns_ = 0;
+		jitterSumNanos_ = 0;
+		maxJitterNanos_ = 0;
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *  
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ * 
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */package ioio.lib.impl;
+
+import ioio.lib.api.SpiMaster;
+import ioio.lib.api.TwiMaster;
+import ioio.lib.api.Uart;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Measures the library's throughput and latency against an
+ * {@link IOIOEmulator}, so it runs on a build machine without a board:
+ * <ul>
+ * <li>TWI: transactions per second and round trip latency to a device at
+ * 0x69 which answers immediately, with 1 and with 8 requests in flight;</li>
+ * <li>SPI: the same with 8 requests in flight;</li>
+ * <li>UART: loopback throughput in MB/s. The emulator does not limit the baud
+ * rate, so the input buffer may overflow; only the bytes received count.</li>
+ * </ul>
+ * As the emulator answers without any bus delay, the numbers show the
+ * overhead of the library (and of the protocol over an in-process pipe), not
+ * the speed of a board.
+ * 
+ * Usage: EmulatorLoadTest [seconds per measurement, default 3]
+ */
+public class EmulatorLoadTest {
+	private static final int TWI_ADDRESS = 0x69;
+
+	public static void main(String[] args) throws Exception {
+		long durationMs = args.length > 0 ? Long.parseLong(args[0]) * 1000
+				: 3000;
+
+		IOIOEmulator emulator = new IOIOEmulator();
+		emulator.addTwiDevice(1, TWI_ADDRESS, new IOIOEmulator.TwiDevice() {
+			@Override
+			public int writeRead(byte[] writeData, int writeSize,
+					byte[] readData, int readSize) {
+				for (int i = 0; i < readSize; ++i) {
+					readData[i] = writeData[0];
+				}
+				return IOIOEmulator.TWI_ACK;
+			}
+		});
+		IOIOImpl ioio = new IOIOImpl(emulator.createConnection());
+		ioio.waitForConnect();
+		try {
+			TwiMaster twi = ioio.openTwiMaster(1, TwiMaster.Rate.RATE_1MHz,
+					false);
+			for (int inFlight : new int[] { 1, 8 }) {
+				ioio.getTwiStats(1).reset();
+				long transactions = runTwi(twi, inFlight, durationMs);
+				report("TWI, " + inFlight + " in flight", transactions,
+						durationMs, ioio.getTwiStats(1));
+			}
+			twi.close();
+
+			SpiMaster spi = ioio.openSpiMaster(3, 6, 7, 27,
+					SpiMaster.Rate.RATE_8M);
+			ioio.getSpiStats(0).reset();
+			long transactions = runSpi(spi, 8, durationMs);
+			report("SPI, 8 in flight", transactions, durationMs,
+					ioio.getSpiStats(0));
+			spi.close();
+
+			Uart uart = ioio.openUart(13, 14, 1000000, Uart.Parity.NONE,
+					Uart.StopBits.ONE);
+			long bytes = runUart(uart, durationMs);
+			System.out.printf("UART loopback: %.2f MB/s%n", bytes * 1e-3
+					/ durationMs);
+			uart.close();
+		} finally {
+			ioio.disconnect();
+			ioio.waitForDisconnect();
+		}
+	}
+
+	private static long runTwi(TwiMaster twi, int inFlight, long durationMs)
+			throws Exception {
+		Queue<TwiMaster.Result> results = new ArrayDeque<TwiMaster.Result>();
+		byte[] request = { 0x10 };
+		byte[] response = new byte[8];
+		long transactions = 0;
+		long end = System.currentTimeMillis() + durationMs;
+		while (System.currentTimeMillis() < end) {
+			while (results.size() < inFlight) {
+				results.add(twi.writeReadAsync(TWI_ADDRESS, false, request,
+						request.length, response, response.length));
+			}
+			if (!results.remove().waitReady()) {
+				throw new IllegalStateException("TWI transaction failed");
+			}
+			++transactions;
+		}
+		while (!results.isEmpty()) {
+			results.remove().waitReady();
+		}
+		return transactions;
+	}
+
+	private static long runSpi(SpiMaster spi, int inFlight, long durationMs)
+			throws Exception {
+		Queue<SpiMaster.Result> results = new ArrayDeque<SpiMaster.Result>();
+		byte[] request = { 1, 2, 3, 4 };
+		byte[] response = new byte[4];
+		long transactions = 0;
+		long end = System.currentTimeMillis() + durationMs;
+		while (System.currentTimeMillis() < end) {
+			while (results.size() < inFlight) {
+				results.add(spi.writeReadAsync(0, request, request.length,
+						request.length, response, response.length));
+			}
+			results.remove().waitReady();
+			++transactions;
+		}
+		while (!results.isEmpty()) {
+			results.remove().waitReady();
+		}
+		return transactions;
+	}
+
+	private static long runUart(Uart uart, long durationMs) throws Exception {
+		final OutputStream out = uart.getOutputStream();
+		final InputStream in = uart.getInputStream();
+		final byte[] chunk = new byte[1024];
+		final long end = System.currentTimeMillis() + durationMs;
+		Thread writer = new Thread("load test UART writer") {
+			@Override
+			public void run() {
+				try {
+					while (System.currentTimeMillis() < end) {
+						out.write(chunk);
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		writer.start();
+		byte[] buffer = new byte[4096];
+		long bytes = 0;
+		while (System.currentTimeMillis() < end) {
+			// poll, so the measurement ends on time even if no data arrives
+			if (in.available() == 0) {
+				Thread.yield();
+				continue;
+			}
+			bytes += in.read(buffer, 0, buffer.length);
+		}
+		writer.join();
+		return bytes;
+	}
+
+	private static void report(String name, long transactions,
+			long durationMs, ModuleStats stats) {
+		System.out.printf("%s: %d transactions/s%n  %s%n", name, transactions
+				* 1000 / durationMs, stats);
+	}
+}
@@ -0,0 +1,882 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *  
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ * 
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import ioio.lib.api.IOIOConnection;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.spi.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-process emulation of the IOIO firmware, for exercising and
+ * benchmarking the library without hardware.
+ * 
+ * Connections created by {@link #createConnection()} speak the IOIO protocol
+ * of an SPRK0020 board (interface IOIO0004). The emulated board acknowledges
+ * digital, PWM, analog, UART, SPI, TWI and input-capture commands the way the
+ * firmware does, including the transmit-buffer reports the library's flow
+ * control depends on:
+ * <ul>
+ * <li>Digital outputs and PWM settings are recorded and can be queried.</li>
+ * <li>Digital inputs report the levels set by
+ * {@link #setDigitalInput(int, boolean)}.</li>
+ * <li>Analog inputs are sampled from an {@link AnalogSource} at a fixed frame
+ * rate.</li>
+ * <li>UART and SPI are looped back: the data written is received.</li>
+ * <li>TWI transactions are served by the {@link TwiDevice}s added with
+ * {@link #addTwiDevice(int, int, TwiDevice)}; other addresses are not
+ * acknowledged.</li>
+ * </ul>
+ * ICSP and cap-sense commands are accepted but not emulated.
+ * 
+ * Not part of the library: this class lives in the test source tree, which
+ * only the PC project (target/pc, linked as test_common) compiles, together
+ * with {@link IOIOEmulatorTest} and {@link EmulatorLoadTest}. The Android
+ * library project does not include it.
+ */
+public class IOIOEmulator {
+	private static final String TAG = "IOIOEmulator";
+
+	private static final byte[] HARDWARE_ID = { 'S', 'P', 'R', 'K', '0', '0',
+			'2', '0' };
+	private static final byte[] BOOTLOADER_ID = { 'E', 'M', 'U', 'L', '0',
+			'0', '0', '1' };
+	private static final byte[] FIRMWARE_ID = { 'E', 'M', 'U', 'L', '0', '0',
+			'0', '1' };
+	private static final byte[] INTERFACE_ID = { 'I', 'O', 'I', 'O', '0', '0',
+			'0', '4' };
+
+	private static final int NUM_PINS = 49;
+	private static final int NUM_PWM = 9;
+	private static final int NUM_UART = 4;
+	private static final int NUM_SPI = 3;
+	private static final int NUM_TWI = 3;
+	private static final int TX_BUFFER_SIZE = 1024;
+	private static final int PIPE_SIZE = 64 * 1024;
+
+	/** An emulated TWI slave. */
+	public interface TwiDevice {
+		/**
+		 * Handles a transaction addressed to this device. Called on the
+		 * emulator's thread.
+		 * 
+		 * @return {@link IOIOEmulator#TWI_ACK} if readData has been filled,
+		 *         {@link IOIOEmulator#TWI_NACK} to fail the transaction or
+		 *         {@link IOIOEmulator#TWI_NO_RESPONSE} to emulate a result
+		 *         that gets lost. As the library pairs results with requests
+		 *         in order, the following results are then delivered to the
+		 *         wrong requests.
+		 */
+		int writeRead(byte[] writeData, int writeSize, byte[] readData,
+				int readSize);
+	}
+
+	public static final int TWI_ACK = 0;
+	public static final int TWI_NACK = 1;
+	public static final int TWI_NO_RESPONSE = 2;
+
+	/** Provides the samples of the emulated analog inputs. */
+	public interface AnalogSource {
+		/**
+		 * @param frame
+		 *            The number of the frame, counting from 0 for each
+		 *            connection.
+		 * @return The 10-bit sample of the pin.
+		 */
+		int sample(int pin, long frame);
+	}
+
+	private final List<Map<Integer, TwiDevice>> twiDevices_;
+	private final boolean[] digitalInputs_ = new boolean[NUM_PINS];
+	private AnalogSource analogSource_ = new AnalogSource() {
+		@Override
+		public int sample(int pin, long frame) {
+			return 0;
+		}
+	};
+	private float analogFrameRateHz_ = 1000;
+	private Connection current_;
+
+	public IOIOEmulator() {
+		twiDevices_ = new ArrayList<Map<Integer, TwiDevice>>(NUM_TWI);
+		for (int i = 0; i < NUM_TWI; ++i) {
+			twiDevices_.add(new HashMap<Integer, TwiDevice>());
+		}
+	}
+
+	/**
+	 * @return A new connection to the emulated board. Like a physical board,
+	 *         it serves one connection at a time: connecting drops the
+	 *         previous connection.
+	 */
+	public IOIOConnection createConnection() {
+		return new Connection();
+	}
+
+	public synchronized void addTwiDevice(int twiNum, int address,
+			TwiDevice device) {
+		twiDevices_.get(twiNum).put(address, device);
+	}
+
+	public synchronized void setAnalogSource(AnalogSource source) {
+		analogSource_ = source;
+	}
+
+	/**
+	 * @param rateHz
+	 *            The number of analog frames per second sent while any analog
+	 *            input is open.
+	 */
+	public synchronized void setAnalogFrameRate(float rateHz) {
+		if (rateHz <= 0) {
+			throw new IllegalArgumentException("Rate must be positive: "
+					+ rateHz);
+		}
+		analogFrameRateHz_ = rateHz;
+	}
+
+	/**
+	 * Sets the level of an input pin, which is reported if the pin is an
+	 * open digital input.
+	 */
+	public void setDigitalInput(int pin, boolean level) {
+		Connection connection;
+		synchronized (this) {
+			digitalInputs_[pin] = level;
+			connection = current_;
+		}
+		if (connection != null) {
+			connection.digitalInputChanged(pin, level);
+		}
+	}
+
+	/**
+	 * @return The level of the pin if it is a digital output of the current
+	 *         connection, otherwise false.
+	 */
+	public boolean getDigitalOutput(int pin) {
+		Connection connection = getCurrent();
+		return connection != null && connection.getDigitalOutput(pin);
+	}
+
+	/**
+	 * @return The raw duty cycle register of the PWM module of the current
+	 *         connection, in timer ticks, or -1 if it is not configured.
+	 */
+	public int getPwmDutyCycle(int pwmNum) {
+		Connection connection = getCurrent();
+		return connection == null ? -1 : connection.getPwmDutyCycle(pwmNum);
+	}
+
+	/**
+	 * @return The raw period register of the PWM module of the current
+	 *         connection, or -1 if it is not configured.
+	 */
+	public int getPwmPeriod(int pwmNum) {
+		Connection connection = getCurrent();
+		return connection == null ? -1 : connection.getPwmPeriod(pwmNum);
+	}
+
+	/**
+	 * @return The number of commands the current connection has processed.
+	 */
+	public long getCommandCount() {
+		Connection connection = getCurrent();
+		return connection == null ? 0 : connection.getCommandCount();
+	}
+
+	private synchronized Connection getCurrent() {
+		return current_;
+	}
+
+	private synchronized boolean getDigitalInput(int pin) {
+		return digitalInputs_[pin];
+	}
+
+	private synchronized TwiDevice getTwiDevice(int twiNum, int address) {
+		return twiDevices_.get(twiNum).get(address);
+	}
+
+	private synchronized AnalogSource getAnalogSource() {
+		return analogSource_;
+	}
+
+	private synchronized float getAnalogFrameRate() {
+		return analogFrameRateHz_;
+	}
+
+	/**
+	 * A bounded, blocking byte queue with an input and an output end.
+	 */
+	static class Pipe {
+		private final byte[] buffer_;
+		private int readPos_ = 0;
+		private int size_ = 0;
+		private boolean closed_ = false;
+
+		final InputStream input = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Pipe.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() {
+				synchronized (Pipe.this) {
+					return size_;
+				}
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		final OutputStream output = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Pipe.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		Pipe(int size) {
+			buffer_ = new byte[size];
+		}
+
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				while (size_ == 0 && !closed_) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			if (size_ == 0) {
+				return -1;
+			}
+			int read = Math.min(len, size_);
+			int first = Math.min(read, buffer_.length - readPos_);
+			System.arraycopy(buffer_, readPos_, b, off, first);
+			System.arraycopy(buffer_, 0, b, off + first, read - first);
+			readPos_ = (readPos_ + read) % buffer_.length;
+			size_ -= read;
+			notifyAll();
+			return read;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			try {
+				while (len > 0) {
+					while (size_ == buffer_.length && !closed_) {
+						wait();
+					}
+					if (closed_) {
+						throw new IOException("Pipe closed");
+					}
+					int writePos = (readPos_ + size_) % buffer_.length;
+					int count = Math.min(len, Math.min(buffer_.length - size_,
+							buffer_.length - writePos));
+					System.arraycopy(b, off, buffer_, writePos, count);
+					size_ += count;
+					off += count;
+					len -= count;
+					notifyAll();
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+		}
+
+		synchronized void close() {
+			closed_ = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * One connection to the emulated board, holding the state of the board's
+	 * modules. Responses are written while holding this connection's lock, so
+	 * that the firmware and the analog sampling thread do not interleave.
+	 */
+	private class Connection implements IOIOConnection {
+		private final Pipe toBoard_ = new Pipe(PIPE_SIZE);
+		private final Pipe toHost_ = new Pipe(PIPE_SIZE);
+		private final InputStream in_ = toBoard_.input;
+		private final OutputStream out_ = toHost_.output;
+		private final byte[] outbuf_ = new byte[300];
+		private int outPos_ = 0;
+
+		private boolean disconnected_ = false;
+		private Thread firmwareThread_;
+		private Thread analogThread_;
+
+		// guarded by this
+		private final boolean[] digitalOutputs_ = new boolean[NUM_PINS];
+		private final boolean[] changeNotify_ = new boolean[NUM_PINS];
+		private final boolean[] analogSampling_ = new boolean[NUM_PINS];
+		private final int[] analogPins_ = new int[NUM_PINS];
+		private int numAnalogPins_ = 0;
+		private long analogFrame_ = 0;
+		private final int[] pwmDutyCycle_ = new int[NUM_PWM];
+		private final int[] pwmPeriod_ = new int[NUM_PWM];
+		private final boolean[] uartOpen_ = new boolean[NUM_UART];
+		private final boolean[] spiOpen_ = new boolean[NUM_SPI];
+		private final boolean[] twiOpen_ = new boolean[NUM_TWI];
+		private long commands_ = 0;
+
+		// used by the firmware thread only
+		private final byte[] data_ = new byte[256];
+		private final byte[] response_ = new byte[256];
+
+		@Override
+		public void waitForConnect() throws ConnectionLostException {
+			Connection previous;
+			synchronized (IOIOEmulator.this) {
+				previous = current_;
+				current_ = this;
+			}
+			if (previous != null) {
+				previous.disconnect();
+			}
+			synchronized (this) {
+				if (disconnected_) {
+					throw new ConnectionLostException();
+				}
+				resetModules();
+				firmwareThread_ = new Thread("IOIO emulator") {
+					@Override
+					public void run() {
+						runFirmware();
+					}
+				};
+				firmwareThread_.setDaemon(true);
+				firmwareThread_.start();
+			}
+		}
+
+		@Override
+		public void disconnect() {
+			synchronized (this) {
+				disconnected_ = true;
+				notifyAll();
+			}
+			toBoard_.close();
+			toHost_.close();
+			synchronized (IOIOEmulator.this) {
+				if (current_ == this) {
+					current_ = null;
+				}
+			}
+		}
+
+		@Override
+		public InputStream getInputStream() throws ConnectionLostException {
+			return toHost_.input;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws ConnectionLostException {
+			return toBoard_.output;
+		}
+
+		@Override
+		public boolean canClose() {
+			return true;
+		}
+
+		synchronized boolean getDigitalOutput(int pin) {
+			return digitalOutputs_[pin];
+		}
+
+		synchronized int getPwmDutyCycle(int pwmNum) {
+			return pwmPeriod_[pwmNum] == 0 ? -1 : pwmDutyCycle_[pwmNum];
+		}
+
+		synchronized int getPwmPeriod(int pwmNum) {
+			return pwmPeriod_[pwmNum] == 0 ? -1 : pwmPeriod_[pwmNum];
+		}
+
+		synchronized long getCommandCount() {
+			return commands_;
+		}
+
+		synchronized void digitalInputChanged(int pin, boolean level) {
+			if (changeNotify_[pin]) {
+				try {
+					writeByte(IOIOProtocol.REPORT_DIGITAL_IN_STATUS);
+					writeByte((pin << 2) | (level ? 1 : 0));
+					flush();
+				} catch (IOException e) {
+					// the firmware thread notices the disconnection
+				}
+			}
+		}
+
+		private void resetModules() {
+			for (int i = 0; i < NUM_PINS; ++i) {
+				digitalOutputs_[i] = false;
+				changeNotify_[i] = false;
+				analogSampling_[i] = false;
+			}
+			numAnalogPins_ = 0;
+			for (int i = 0; i < NUM_PWM; ++i) {
+				pwmDutyCycle_[i] = 0;
+				pwmPeriod_[i] = 0;
+			}
+			for (int i = 0; i < NUM_UART; ++i) {
+				uartOpen_[i] = false;
+			}
+			for (int i = 0; i < NUM_SPI; ++i) {
+				spiOpen_[i] = false;
+			}
+			for (int i = 0; i < NUM_TWI; ++i) {
+				twiOpen_[i] = false;
+			}
+		}
+
+		private void writeByte(int b) throws IOException {
+			if (outPos_ == outbuf_.length) {
+				flush();
+			}
+			outbuf_[outPos_++] = (byte) b;
+		}
+
+		private void writeBytes(byte[] b, int size) throws IOException {
+			for (int i = 0; i < size; ++i) {
+				writeByte(b[i] & 0xFF);
+			}
+		}
+
+		private void flush() throws IOException {
+			try {
+				out_.write(outbuf_, 0, outPos_);
+			} finally {
+				outPos_ = 0;
+			}
+		}
+
+		private int readByte() throws IOException {
+			int b = in_.read();
+			if (b < 0) {
+				throw new IOException("Connection closed");
+			}
+			return b;
+		}
+
+		private void readBytes(byte[] buffer, int size) throws IOException {
+			for (int i = 0; i < size; ++i) {
+				buffer[i] = (byte) readByte();
+			}
+		}
+
+		private void reportTxStatus(int command, int module, int bytes)
+				throws IOException {
+			writeByte(command);
+			writeByte(module | ((bytes & 0x3F) << 2));
+			writeByte(bytes >> 6);
+		}
+
+		private void runFirmware() {
+			try {
+				synchronized (this) {
+					writeByte(IOIOProtocol.ESTABLISH_CONNECTION);
+					writeByte('I');
+					writeByte('O');
+					writeByte('I');
+					writeByte('O');
+					writeBytes(HARDWARE_ID, 8);
+					writeBytes(BOOTLOADER_ID, 8);
+					writeBytes(FIRMWARE_ID, 8);
+					flush();
+				}
+				while (true) {
+					int command = readByte();
+					synchronized (this) {
+						++commands_;
+						if (!processCommand(command)) {
+							break;
+						}
+						// like the firmware, respond as soon as there is no
+						// further input pending
+						if (in_.available() == 0) {
+							flush();
+						}
+					}
+				}
+			} catch (IOException e) {
+				Log.v(TAG, "Connection closed: " + e.getMessage());
+			}
+			disconnect();
+		}
+
+		/**
+		 * @return false if the board closes the connection.
+		 */
+		private boolean processCommand(int command) throws IOException {
+			int arg1;
+			int arg2;
+			int size;
+			switch (command) {
+			case IOIOProtocol.HARD_RESET:
+				readBytes(data_, 4);
+				Log.d(TAG, "Hard reset");
+				return false;
+
+			case IOIOProtocol.SOFT_RESET:
+				resetModules();
+				writeByte(IOIOProtocol.SOFT_RESET);
+				break;
+
+			case IOIOProtocol.CHECK_INTERFACE:
+				readBytes(data_, 8);
+				boolean supported = true;
+				for (int i = 0; i < 8; ++i) {
+					supported &= data_[i] == INTERFACE_ID[i];
+				}
+				writeByte(IOIOProtocol.CHECK_INTERFACE_RESPONSE);
+				writeByte(supported ? 1 : 0);
+				break;
+
+			case IOIOProtocol.SET_PIN_DIGITAL_OUT:
+				arg1 = readByte();
+				digitalOutputs_[arg1 >> 2] = (arg1 & 0x02) != 0;
+				changeNotify_[arg1 >> 2] = false;
+				break;
+
+			case IOIOProtocol.SET_DIGITAL_OUT_LEVEL:
+				arg1 = readByte();
+				digitalOutputs_[arg1 >> 2] = (arg1 & 0x01) != 0;
+				break;
+
+			case IOIOProtocol.SET_PIN_DIGITAL_IN:
+				readByte();
+				break;
+
+			case IOIOProtocol.SET_CHANGE_NOTIFY:
+				arg1 = readByte();
+				changeNotify_[arg1 >> 2] = (arg1 & 0x01) != 0;
+				writeByte(IOIOProtocol.SET_CHANGE_NOTIFY);
+				writeByte(arg1);
+				if (changeNotify_[arg1 >> 2]) {
+					writeByte(IOIOProtocol.REPORT_DIGITAL_IN_STATUS);
+					writeByte((arg1 & ~0x03)
+							| (getDigitalInput(arg1 >> 2) ? 1 : 0));
+				}
+				break;
+
+			case IOIOProtocol.SET_PIN_PWM:
+				readBytes(data_, 2);
+				break;
+
+			case IOIOProtocol.SET_PWM_DUTY_CYCLE:
+				arg1 = readByte();
+				pwmDutyCycle_[arg1 >> 2] = readByte() | (readByte() << 8);
+				break;
+
+			case IOIOProtocol.SET_PWM_PERIOD:
+				arg1 = readByte();
+				pwmPeriod_[(arg1 >> 1) & 0x0F] = readByte() | (readByte() << 8);
+				break;
+
+			case IOIOProtocol.SET_PIN_ANALOG_IN:
+				readByte();
+				break;
+
+			case IOIOProtocol.SET_ANALOG_IN_SAMPLING:
+				arg1 = readByte();
+				setAnalogSampling(arg1 & 0x3F, (arg1 & 0x80) != 0);
+				break;
+
+			case IOIOProtocol.UART_CONFIG:
+				arg1 = readByte();
+				arg2 = readByte() | (readByte() << 8);
+				uartOpen_[arg1 >> 6] = arg2 != 0;
+				writeByte(IOIOProtocol.UART_STATUS);
+				writeByte((arg2 != 0 ? 0x80 : 0x00) | (arg1 >> 6));
+				if (arg2 != 0) {
+					reportTxStatus(IOIOProtocol.UART_REPORT_TX_STATUS,
+							arg1 >> 6, TX_BUFFER_SIZE);
+				}
+				break;
+
+			case IOIOProtocol.UART_DATA:
+				arg1 = readByte();
+				size = (arg1 & 0x3F) + 1;
+				readBytes(data_, size);
+				if (uartOpen_[arg1 >> 6]) {
+					// loopback
+					writeByte(IOIOProtocol.UART_DATA);
+					writeByte(arg1);
+					writeBytes(data_, size);
+					reportTxStatus(IOIOProtocol.UART_REPORT_TX_STATUS,
+							arg1 >> 6, size);
+				}
+				break;
+
+			case IOIOProtocol.SET_PIN_UART:
+				readBytes(data_, 2);
+				break;
+
+			case IOIOProtocol.SPI_CONFIGURE_MASTER:
+				arg1 = readByte();
+				readByte();
+				spiOpen_[arg1 >> 5] = (arg1 & 0x1F) != 0;
+				writeByte(IOIOProtocol.SPI_STATUS);
+				writeByte((spiOpen_[arg1 >> 5] ? 0x80 : 0x00) | (arg1 >> 5));
+				if (spiOpen_[arg1 >> 5]) {
+					reportTxStatus(IOIOProtocol.SPI_REPORT_TX_STATUS,
+							arg1 >> 5, TX_BUFFER_SIZE);
+				}
+				break;
+
+			case IOIOProtocol.SPI_MASTER_REQUEST:
+				processSpiRequest();
+				break;
+
+			case IOIOProtocol.SET_PIN_SPI:
+				readBytes(data_, 2);
+				break;
+
+			case IOIOProtocol.I2C_CONFIGURE_MASTER:
+				arg1 = readByte();
+				twiOpen_[arg1 & 0x03] = (arg1 & 0x60) != 0;
+				writeByte(IOIOProtocol.I2C_STATUS);
+				writeByte((twiOpen_[arg1 & 0x03] ? 0x80 : 0x00) | (arg1 & 0x03));
+				if (twiOpen_[arg1 & 0x03]) {
+					reportTxStatus(IOIOProtocol.I2C_REPORT_TX_STATUS,
+							arg1 & 0x03, TX_BUFFER_SIZE);
+				}
+				break;
+
+			case IOIOProtocol.I2C_WRITE_READ:
+				processTwiRequest();
+				break;
+
+			case IOIOProtocol.ICSP_SIX:
+				readBytes(data_, 3);
+				break;
+
+			case IOIOProtocol.ICSP_REGOUT:
+			case IOIOProtocol.ICSP_PROG_ENTER:
+			case IOIOProtocol.ICSP_PROG_EXIT:
+				break;
+
+			case IOIOProtocol.ICSP_CONFIG:
+				arg1 = readByte();
+				writeByte(IOIOProtocol.ICSP_CONFIG);
+				writeByte(arg1 & 0x01);
+				break;
+
+			case IOIOProtocol.INCAP_CONFIGURE:
+				arg1 = readByte();
+				arg2 = readByte();
+				writeByte(IOIOProtocol.INCAP_STATUS);
+				writeByte(((arg2 & 0x38) != 0 ? 0x80 : 0x00) | (arg1 & 0x0F));
+				break;
+
+			case IOIOProtocol.SET_PIN_INCAP:
+				readBytes(data_, 2);
+				break;
+
+			case IOIOProtocol.SOFT_CLOSE:
+				writeByte(IOIOProtocol.SOFT_CLOSE);
+				flush();
+				return false;
+
+			case IOIOProtocol.SET_PIN_CAPSENSE:
+				readByte();
+				break;
+
+			case IOIOProtocol.SET_CAPSENSE_SAMPLING:
+				arg1 = readByte();
+				writeByte(IOIOProtocol.SET_CAPSENSE_SAMPLING);
+				writeByte(arg1);
+				break;
+
+			default:
+				Log.e(TAG, "Received unexpected command: 0x"
+						+ Integer.toHexString(command));
+				return false;
+			}
+			return true;
+		}
+
+		private void processSpiRequest() throws IOException {
+			int arg1 = readByte();
+			int arg2 = readByte();
+			int spiNum = arg1 >> 6;
+			int ssPin = arg1 & 0x3F;
+			int totalBytes = (arg2 & 0x3F) + 1;
+			int dataBytes = (arg2 & 0x80) != 0 ? readByte() : totalBytes;
+			int responseBytes = (arg2 & 0x40) != 0 ? readByte() : totalBytes;
+			readBytes(data_, dataBytes);
+			if (!spiOpen_[spiNum]) {
+				return;
+			}
+			// loopback: MISO receives what MOSI sends, 0xFF after the data
+			for (int i = dataBytes; i < totalBytes; ++i) {
+				data_[i] = (byte) 0xFF;
+			}
+			if (responseBytes > 0) {
+				writeByte(IOIOProtocol.SPI_DATA);
+				writeByte((spiNum << 6) | (responseBytes - 1));
+				writeByte(ssPin);
+				for (int i = totalBytes - responseBytes; i < totalBytes; ++i) {
+					writeByte(data_[i] & 0xFF);
+				}
+			}
+			reportTxStatus(IOIOProtocol.SPI_REPORT_TX_STATUS, spiNum,
+					dataBytes + 4);
+		}
+
+		private void processTwiRequest() throws IOException {
+			int arg1 = readByte();
+			int address = ((arg1 >> 6) << 8) | readByte();
+			int twiNum = arg1 & 0x03;
+			int writeSize = readByte();
+			int readSize = readByte();
+			readBytes(data_, writeSize);
+			if (!twiOpen_[twiNum]) {
+				return;
+			}
+			TwiDevice device = getTwiDevice(twiNum, address);
+			int status = device == null ? TWI_NACK : device.writeRead(data_,
+					writeSize, response_, readSize);
+			if (status == TWI_ACK) {
+				writeByte(IOIOProtocol.I2C_RESULT);
+				writeByte(twiNum);
+				writeByte(readSize);
+				writeBytes(response_, readSize);
+			} else if (status == TWI_NACK) {
+				writeByte(IOIOProtocol.I2C_RESULT);
+				writeByte(twiNum);
+				writeByte(0xFF);
+			}
+			reportTxStatus(IOIOProtocol.I2C_REPORT_TX_STATUS, twiNum,
+					writeSize + 4);
+		}
+
+		private void setAnalogSampling(int pin, boolean enable)
+				throws IOException {
+			if (analogSampling_[pin] == enable) {
+				return;
+			}
+			analogSampling_[pin] = enable;
+			numAnalogPins_ = 0;
+			for (int i = 0; i < NUM_PINS; ++i) {
+				if (analogSampling_[i]) {
+					analogPins_[numAnalogPins_++] = i;
+				}
+			}
+			writeByte(IOIOProtocol.REPORT_ANALOG_IN_FORMAT);
+			writeByte(numAnalogPins_);
+			for (int i = 0; i < numAnalogPins_; ++i) {
+				writeByte(analogPins_[i]);
+			}
+			if (numAnalogPins_ > 0 && analogThread_ == null) {
+				analogThread_ = new Thread("IOIO emulator analog") {
+					@Override
+					public void run() {
+						runAnalogSampling();
+					}
+				};
+				analogThread_.setDaemon(true);
+				analogThread_.start();
+			}
+		}
+
+		private void runAnalogSampling() {
+			AnalogSource source = getAnalogSource();
+			long periodNanos = (long) (1e9 / getAnalogFrameRate());
+			long nextFrame = System.nanoTime();
+			byte[] values = new byte[4];
+			synchronized (this) {
+				try {
+					while (!disconnected_ && numAnalogPins_ > 0) {
+						long remaining = nextFrame - System.nanoTime();
+						if (remaining > 0) {
+							wait(remaining / 1000000, (int) (remaining % 1000000));
+							continue;
+						}
+						nextFrame += periodNanos;
+						writeByte(IOIOProtocol.REPORT_ANALOG_IN_STATUS);
+						for (int i = 0; i < numAnalogPins_; i += 4) {
+							int groupSize = Math.min(4, numAnalogPins_ - i);
+							int header = 0;
+							for (int j = 0; j < groupSize; ++j) {
+								int value = source.sample(analogPins_[i + j],
+										analogFrame_) & 0x3FF;
+								header |= (value & 0x03) << (2 * j);
+								values[j] = (byte) (value >> 2);
+							}
+							writeByte(header);
+							writeBytes(values, groupSize);
+						}
+						++analogFrame_;
+						flush();
+					}
+				} catch (IOException e) {
+					// the firmware thread notices the disconnection
+				} catch (InterruptedException e) {
+				} finally {
+					// still holding the lock, so sampling which is enabled
+					// from now on starts a new thread
+					analogThread_ = null;
+				}
+			}
+		}
+	}
+}
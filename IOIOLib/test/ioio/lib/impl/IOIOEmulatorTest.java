@@ -0,0 +1,268 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *  
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ * 
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import ioio.lib.api.AnalogInput;
+import ioio.lib.api.DigitalInput;
+import ioio.lib.api.DigitalOutput;
+import ioio.lib.api.IOIO;
+import ioio.lib.api.PwmOutput;
+import ioio.lib.api.SpiMaster;
+import ioio.lib.api.TwiMaster;
+import ioio.lib.api.Uart;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives {@link IOIOImpl} through an {@link IOIOEmulator}, one module type at
+ * a time.
+ */
+public class IOIOEmulatorTest {
+	private static final int TWI_ADDRESS = 0x69;
+	private static final long TIMEOUT_MS = 2000;
+
+	private IOIOEmulator emulator_;
+	private IOIOImpl ioio_;
+
+	@Before
+	public void connect() throws Exception {
+		emulator_ = new IOIOEmulator();
+		ioio_ = new IOIOImpl(emulator_.createConnection());
+		ioio_.waitForConnect();
+	}
+
+	@After
+	public void disconnect() throws Exception {
+		ioio_.disconnect();
+		ioio_.waitForDisconnect();
+	}
+
+	@Test
+	public void connects() throws Exception {
+		assertEquals(IOIO.State.CONNECTED, ioio_.getState());
+		assertEquals("SPRK0020",
+				ioio_.getImplVersion(IOIO.VersionType.HARDWARE_VER));
+	}
+
+	@Test
+	public void digitalOutput() throws Exception {
+		DigitalOutput out = ioio_.openDigitalOutput(10, true);
+		assertTrue(waitForDigitalOutput(10, true));
+		out.write(false);
+		assertTrue(waitForDigitalOutput(10, false));
+		out.close();
+	}
+
+	private boolean waitForDigitalOutput(int pin, boolean level)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (emulator_.getDigitalOutput(pin) != level) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	@Test
+	public void digitalInput() throws Exception {
+		emulator_.setDigitalInput(11, true);
+		DigitalInput in = ioio_.openDigitalInput(11);
+		in.waitForValue(true);
+		emulator_.setDigitalInput(11, false);
+		in.waitForValue(false);
+		assertFalse(in.read());
+		in.close();
+	}
+
+	@Test
+	public void pwm() throws Exception {
+		PwmOutput pwm = ioio_.openPwmOutput(12, 1000);
+		pwm.setDutyCycle(0.5f);
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (emulator_.getPwmDutyCycle(0) <= 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		int period = emulator_.getPwmPeriod(0);
+		assertTrue(period > 0);
+		// the duty cycle register is about half the period
+		assertEquals(period / 2, emulator_.getPwmDutyCycle(0), period / 100 + 1);
+		pwm.close();
+	}
+
+	@Test
+	public void analogInput() throws Exception {
+		emulator_.setAnalogSource(new IOIOEmulator.AnalogSource() {
+			@Override
+			public int sample(int pin, long frame) {
+				return pin == 40 ? 256 : 0;
+			}
+		});
+		AnalogInput in = ioio_.openAnalogInput(40);
+		assertEquals(256 / 1023f, in.read(), 1e-3f);
+		in.close();
+	}
+
+	@Test
+	public void uartLoopback() throws Exception {
+		Uart uart = ioio_.openUart(13, 14, 115200, Uart.Parity.NONE,
+				Uart.StopBits.ONE);
+		OutputStream out = uart.getOutputStream();
+		InputStream in = uart.getInputStream();
+		byte[] data = new byte[300];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = (byte) i;
+		}
+		out.write(data);
+		byte[] received = new byte[data.length];
+		int pos = 0;
+		while (pos < received.length) {
+			int read = in.read(received, pos, received.length - pos);
+			assertTrue(read > 0);
+			pos += read;
+		}
+		assertArrayEquals(data, received);
+		uart.close();
+	}
+
+	@Test
+	public void spiLoopback() throws Exception {
+		SpiMaster spi = ioio_.openSpiMaster(3, 6, 7, 27,
+				SpiMaster.Rate.RATE_1M);
+		byte[] request = { 1, 2, 3 };
+		byte[] response = new byte[4];
+		spi.writeRead(request, request.length, 4, response, response.length);
+		assertArrayEquals(new byte[] { 1, 2, 3, (byte) 0xFF }, response);
+		spi.close();
+	}
+
+	@Test
+	public void twiDevice() throws Exception {
+		emulator_.addTwiDevice(1, TWI_ADDRESS, new IOIOEmulator.TwiDevice() {
+			@Override
+			public int writeRead(byte[] writeData, int writeSize,
+					byte[] readData, int readSize) {
+				for (int i = 0; i < readSize; ++i) {
+					readData[i] = (byte) (writeData[0] + i);
+				}
+				return IOIOEmulator.TWI_ACK;
+			}
+		});
+		TwiMaster twi = ioio_.openTwiMaster(1, TwiMaster.Rate.RATE_100KHz,
+				false);
+		byte[] response = new byte[3];
+		assertTrue(twi.writeRead(TWI_ADDRESS, false, new byte[] { 0x10 }, 1,
+				response, response.length));
+		assertArrayEquals(new byte[] { 0x10, 0x11, 0x12 }, response);
+		// no device at this address
+		assertFalse(twi.writeRead(TWI_ADDRESS + 1, false, new byte[] { 0x10 },
+				1, response, response.length));
+		twi.close();
+	}
+
+	@Test
+	public void lostTwiResponse() throws Exception {
+		emulator_.addTwiDevice(1, TWI_ADDRESS, new IOIOEmulator.TwiDevice() {
+			private int transactions_ = 0;
+
+			@Override
+			public int writeRead(byte[] writeData, int writeSize,
+					byte[] readData, int readSize) {
+				return ++transactions_ == 1 ? IOIOEmulator.TWI_NO_RESPONSE
+						: IOIOEmulator.TWI_ACK;
+			}
+		});
+		TwiMaster twi = ioio_.openTwiMaster(1, TwiMaster.Rate.RATE_100KHz,
+				false);
+		TwiMaster.Result lost = twi.writeReadAsync(TWI_ADDRESS, false,
+				new byte[] { 0x10 }, 1, new byte[8], 8);
+		try {
+			lost.waitReady(100, TimeUnit.MILLISECONDS);
+			fail("the response has not been sent");
+		} catch (TimeoutException e) {
+		}
+		try {
+			twi.writeReadAsync(TWI_ADDRESS, false, new byte[] { 0x10 }, 1,
+					new byte[8], 8);
+			fail("the module is out of sync");
+		} catch (IllegalStateException e) {
+		}
+		twi.close();
+
+		twi = ioio_.openTwiMaster(1, TwiMaster.Rate.RATE_100KHz, false);
+		TwiMaster.Result result = twi.writeReadAsync(TWI_ADDRESS, false,
+				new byte[] { 0x10 }, 1, new byte[8], 8);
+		assertTrue(result.waitReady(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		twi.close();
+	}
+
+	@Test
+	public void responseOfWrongSize() throws Exception {
+		emulator_.addTwiDevice(1, TWI_ADDRESS, new IOIOEmulator.TwiDevice() {
+			private int transactions_ = 0;
+
+			@Override
+			public int writeRead(byte[] writeData, int writeSize,
+					byte[] readData, int readSize) {
+				return ++transactions_ == 1 ? IOIOEmulator.TWI_NO_RESPONSE
+						: IOIOEmulator.TWI_ACK;
+			}
+		});
+		TwiMaster twi = ioio_.openTwiMaster(1, TwiMaster.Rate.RATE_100KHz,
+				false);
+		// the write's response gets lost, the read's one is taken for it
+		TwiMaster.Result write = twi.writeReadAsync(TWI_ADDRESS, false,
+				new byte[] { 0x1C, 1 }, 2, null, 0);
+		TwiMaster.Result read = twi.writeReadAsync(TWI_ADDRESS, false,
+				new byte[] { 0x10 }, 1, new byte[8], 8);
+		for (TwiMaster.Result result : new TwiMaster.Result[] { write, read }) {
+			try {
+				result.waitReady(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				fail("the responses are out of sync");
+			} catch (CancellationException e) {
+			}
+		}
+		twi.close();
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *  
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ * 
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Measures {@link QueueInputStream} against the stream it replaced
+ * ({@link BlockingQueueInputStream}: an <code>ArrayBlockingQueue&lt;Byte&gt;</code>
+ * filled and drained byte by byte under the stream's lock), with a producer
+ * thread writing packets as {@link UartImpl} does and a consumer thread
+ * reading chunks of up to 1KB:
+ * <ul>
+ * <li>throughput in MB/s when the producer writes as fast as the buffer takes
+ * the packets;</li>
+ * <li>the same when the producer writes at the rate of a UART at 115200 baud
+ * and at 1 Mbaud.</li>
+ * </ul>
+ * Both report the CPU time of the producer and the consumer per KB
+ * transferred; at the UART's rate most of it is spent on waking up the
+ * consumer.
+ * The IOIO forwards what its UART received about once per USB frame (1ms),
+ * in packets of at most 64 bytes, so the packets are 12 bytes at 115200 baud
+ * and 64 bytes at 1 Mbaud.
+ * 
+ * Usage: QueueInputStreamBenchmark [seconds per measurement, default 3]
+ */
+public class QueueInputStreamBenchmark {
+	private static final int[] BAUD_RATES = { 115200, 1000000 };
+	private static final int BITS_PER_BYTE = 10; // start, 8 data, stop
+	private static final int MAX_PACKET_SIZE = 64;
+
+	private interface Sink {
+		void write(byte[] data, int offset, int size);
+	}
+
+	public static void main(String[] args) throws Exception {
+		long durationMs = args.length > 0 ? Long.parseLong(args[0]) * 1000
+				: 3000;
+
+		for (int baudRate : BAUD_RATES) {
+			int bytesPerSecond = baudRate / BITS_PER_BYTE;
+			int packetSize = Math.min(MAX_PACKET_SIZE,
+					(bytesPerSecond + 500) / 1000);
+			System.out.printf("%d baud (%d bytes/s, %d-byte packets):%n",
+					baudRate, bytesPerSecond, packetSize);
+			for (int paced = 0; paced < 2; ++paced) {
+				for (int after = 0; after < 2; ++after) {
+					Result result = measure(after == 1, packetSize,
+							paced == 1 ? bytesPerSecond : 0, durationMs);
+					System.out.printf(
+							"  %-24s %-10s %8.3f MB/s, CPU %7.2f us/KB%n",
+							after == 1 ? "QueueInputStream" : "ArrayBlockingQueue<Byte>",
+							paced == 1 ? "at rate" : "unlimited",
+							result.bytes / (result.seconds * 1e6),
+							result.cpuMs * 1000 / (result.bytes / 1024.0));
+				}
+			}
+		}
+	}
+
+	private static class Result {
+		long bytes;
+		double seconds;
+		double cpuMs;
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            the rate of the producer, 0 for as fast as possible
+	 */
+	private static Result measure(boolean after, final int packetSize,
+			final int bytesPerSecond, final long durationMs) throws Exception {
+		final InputStream in;
+		final Sink sink;
+		final int capacity = Constants.BUFFER_SIZE;
+		if (after) {
+			final QueueInputStream stream = new QueueInputStream();
+			in = stream;
+			sink = new Sink() {
+				@Override
+				public void write(byte[] data, int offset, int size) {
+					stream.write(data, offset, size);
+				}
+			};
+		} else {
+			final BlockingQueueInputStream stream = new BlockingQueueInputStream();
+			in = stream;
+			sink = new Sink() {
+				@Override
+				public void write(byte[] data, int offset, int size) {
+					stream.write(data, offset, size);
+				}
+			};
+		}
+
+		final long[] received = { 0 };
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[1024];
+				try {
+					int read;
+					while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+						received[0] += read;
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				byte[] packet = new byte[packetSize];
+				long start = System.nanoTime();
+				long end = start + durationMs * 1000000;
+				long written = 0;
+				try {
+					while (System.nanoTime() < end) {
+						if (bytesPerSecond > 0) {
+							// one packet per millisecond
+							long due = start + written * 1000000000L
+									/ bytesPerSecond;
+							long wait = due - System.nanoTime();
+							if (wait > 0) {
+								Thread.sleep(wait / 1000000,
+										(int) (wait % 1000000));
+							}
+						} else {
+							// as fast as possible, but without overflowing
+							while (in.available() > capacity - packetSize) {
+								Thread.yield();
+							}
+						}
+						sink.write(packet, 0, packetSize);
+						written += packetSize;
+					}
+					in.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long start = System.nanoTime();
+		consumer.start();
+		producer.start();
+		// the CPU time has to be taken while the threads are alive
+		long producerCpu = 0;
+		long consumerCpu = 0;
+		while (consumer.isAlive()) {
+			producerCpu = Math.max(producerCpu,
+					threads.getThreadCpuTime(producer.getId()));
+			consumerCpu = Math.max(consumerCpu,
+					threads.getThreadCpuTime(consumer.getId()));
+			consumer.join(10);
+		}
+		producer.join();
+
+		Result result = new Result();
+		result.seconds = (System.nanoTime() - start) / 1e9;
+		result.bytes = received[0];
+		result.cpuMs = (producerCpu + consumerCpu) / 1e6;
+		return result;
+	}
+
+	/**
+	 * QueueInputStream as it was before it was backed by a byte ring.
+	 */
+	private static class BlockingQueueInputStream extends InputStream {
+		private enum State {
+			OPEN, CLOSED, KILLED
+		};
+
+		private final Queue<Byte> queue_ = new ArrayBlockingQueue<Byte>(
+				Constants.BUFFER_SIZE);
+		private State state_ = State.OPEN;
+
+		@Override
+		synchronized public int read() throws IOException {
+			try {
+				while (state_ == State.OPEN && queue_.isEmpty()) {
+					wait();
+				}
+				if (state_ == State.KILLED) {
+					throw new IOException("Stream has been closed");
+				}
+				if (state_ == State.CLOSED && queue_.isEmpty()) {
+					return -1;
+				}
+				return ((int) queue_.remove()) & 0xFF;
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+		}
+
+		@Override
+		synchronized public int read(byte[] b, int off, int len)
+				throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				while (state_ == State.OPEN && queue_.isEmpty()) {
+					wait();
+				}
+				if (state_ == State.KILLED) {
+					throw new IOException("Stream has been closed");
+				}
+				if (state_ == State.CLOSED && queue_.isEmpty()) {
+					return -1;
+				}
+				if (len > queue_.size()) {
+					len = queue_.size();
+				}
+				for (int i = 0; i < len; ++i) {
+					b[off++] = queue_.remove();
+				}
+				return len;
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+		}
+
+		synchronized public void write(byte[] data, int offset, int size) {
+			for (int i = 0; i < size; ++i) {
+				if (queue_.size() == Constants.BUFFER_SIZE) {
+					break;
+				}
+				queue_.add(data[offset + i]);
+			}
+			notifyAll();
+		}
+
+		@Override
+		synchronized public int available() throws IOException {
+			return queue_.size();
+		}
+
+		@Override
+		synchronized public void close() {
+			state_ = State.CLOSED;
+			notifyAll();
+		}
+	}
+}
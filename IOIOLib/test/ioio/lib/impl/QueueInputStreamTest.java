@@ -0,0 +1,220 @@
+/*
+ * Copyright 2011 Ytai Ben-Tsvi. All rights reserved.
+ *  
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ * 
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ * 
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL ARSHAN POURSOHI OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and should not be interpreted as representing official policies, either expressed
+ * or implied.
+ */
+package ioio.lib.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the ring buffer of {@link QueueInputStream}: positions wrapping
+ * around the end of the buffer, the overflow discarding the excess and a
+ * producer and a consumer thread working concurrently.
+ */
+public class QueueInputStreamTest {
+	private static final int CAPACITY = 16;
+
+	private final QueueInputStream stream_ = new QueueInputStream(CAPACITY);
+
+	private static byte[] sequence(int start, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			data[i] = (byte) (start + i);
+		}
+		return data;
+	}
+
+	private byte[] read(int length) throws IOException {
+		byte[] data = new byte[length];
+		assertEquals(length, stream_.read(data, 0, length));
+		return data;
+	}
+
+	@Test
+	public void capacityIsRoundedUpToAPowerOfTwo() throws IOException {
+		QueueInputStream stream = new QueueInputStream(20);
+		stream.write(sequence(0, 40), 0, 40);
+		assertEquals(32, stream.available());
+	}
+
+	@Test
+	public void writeAndReadWrapAround() throws IOException {
+		stream_.write(sequence(0, 10), 0, 10);
+		assertArrayEquals(sequence(0, 10), read(10));
+
+		// 6 bytes up to the end of the buffer, 6 from its start
+		stream_.write(sequence(10, 12), 0, 12);
+		assertEquals(12, stream_.available());
+		assertEquals(10, stream_.read());
+		assertArrayEquals(sequence(11, 11), read(11));
+		assertEquals(0, stream_.available());
+	}
+
+	@Test
+	public void readReturnsWhatIsAvailable() throws IOException {
+		stream_.write(sequence(0, 13), 0, 13);
+		assertArrayEquals(sequence(0, 13), read(13));
+		stream_.write(sequence(13, 5), 2, 3);
+
+		byte[] data = new byte[CAPACITY];
+		assertEquals(3, stream_.read(data, 4, data.length - 4));
+		assertArrayEquals(sequence(15, 3), Arrays.copyOfRange(data, 4, 7));
+	}
+
+	@Test
+	public void overflowDiscardsTheExcess() throws IOException {
+		stream_.write(sequence(0, 10), 0, 10);
+		stream_.write(sequence(10, 10), 0, 10);
+		assertEquals(CAPACITY, stream_.available());
+		assertArrayEquals(sequence(0, CAPACITY), read(CAPACITY));
+	}
+
+	@Test
+	public void overflowAfterWrapAround() throws IOException {
+		stream_.write(sequence(0, 12), 0, 12);
+		assertArrayEquals(sequence(0, 8), read(8));
+		// 12 bytes are free: 4 at the end of the buffer, 8 at its start
+		stream_.write(sequence(12, 14), 0, 14);
+		assertEquals(CAPACITY, stream_.available());
+		assertArrayEquals(sequence(8, CAPACITY), read(CAPACITY));
+
+		stream_.write(sequence(0, 1), 0, 1);
+		assertEquals(1, stream_.available());
+	}
+
+	@Test
+	public void fullBufferIsWrittenInOnePiece() throws IOException {
+		stream_.write(sequence(0, 5), 0, 5);
+		assertArrayEquals(sequence(0, 5), read(5));
+		stream_.write(sequence(5, CAPACITY), 0, CAPACITY);
+		assertArrayEquals(sequence(5, CAPACITY), read(CAPACITY));
+	}
+
+	@Test
+	public void closeEndsTheStreamAfterTheData() throws IOException {
+		stream_.write(sequence(0, 3), 0, 3);
+		stream_.close();
+		assertArrayEquals(sequence(0, 3), read(3));
+		assertEquals(-1, stream_.read());
+		assertEquals(-1, stream_.read(new byte[4], 0, 4));
+	}
+
+	@Test(expected = IOException.class)
+	public void killDiscardsTheData() throws IOException {
+		stream_.write(sequence(0, 3), 0, 3);
+		stream_.kill();
+		stream_.read();
+	}
+
+	@Test
+	public void blockedReaderIsWokenUp() throws Exception {
+		final int[] result = { -2 };
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result[0] = stream_.read();
+				} catch (IOException e) {
+				}
+			}
+		};
+		reader.start();
+		Thread.sleep(50);
+		stream_.write(new byte[] { 42 }, 0, 1);
+		reader.join(2000);
+		assertEquals(42, result[0]);
+	}
+
+	@Test
+	public void producerAndConsumer() throws Exception {
+		final int length = 1 << 20;
+		final int capacity = 256;
+		final QueueInputStream stream = new QueueInputStream(capacity);
+		final Throwable[] error = { null };
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					// packets of up to 64 bytes like the IOIO's UART data,
+					// each written once it fits (so nothing is discarded)
+					Random random = new Random(4711);
+					byte[] data = sequence(0, 256 + 64);
+					int written = 0;
+					while (written < length) {
+						int size = Math.min(length - written,
+								1 + random.nextInt(64));
+						while (stream.available() > capacity - size) {
+							Thread.yield();
+						}
+						stream.write(data, written % 256, size);
+						written += size;
+					}
+					stream.close();
+				} catch (Throwable e) {
+					error[0] = e;
+				}
+			}
+		};
+		producer.start();
+
+		// single bytes and chunks of random size
+		Random random = new Random(42);
+		byte[] buffer = new byte[100];
+		int received = 0;
+		while (true) {
+			if (random.nextInt(4) == 0) {
+				int b = stream.read();
+				if (b == -1) {
+					break;
+				}
+				assertEquals("byte " + received, (byte) received, (byte) b);
+				++received;
+			} else {
+				int read = stream.read(buffer, 0, 1 + random.nextInt(100));
+				if (read == -1) {
+					break;
+				}
+				for (int i = 0; i < read; ++i) {
+					assertEquals("byte " + received, (byte) received,
+							buffer[i]);
+					++received;
+				}
+			}
+		}
+		producer.join();
+		assertNull(error[0]);
+		assertEquals(length, received);
+	}
+}
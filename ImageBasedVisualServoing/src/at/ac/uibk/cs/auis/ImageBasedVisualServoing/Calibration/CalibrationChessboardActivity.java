@@ -14,7 +14,6 @@ import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Size;
-import org.opencv.imgproc.Imgproc;
 
 import android.app.Activity;
 import android.content.Intent;
@@ -41,6 +40,17 @@ import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common.CalibrationHelper;
 public class CalibrationChessboardActivity extends Activity implements
 		CvCameraViewListener2 {
 	private static final String TAG = "Auis::CalibrationChessboardActivity";
+	// number of frames the corners are accumulated over before the homography is solved
+	private static final int CALIBRATION_FRAMES = 20;
+	// the chessboard is searched in frames downscaled by this factor...
+	private static final double DETECTION_SCALE = 0.5;
+	// ...at most this many times per second
+	private static final float DETECTION_RATE = 5;
+
+	// what the UI shows, see postState()
+	private static final int STATE_SEARCHING = 0;
+	private static final int STATE_COLLECTING = 1;
+	private static final int STATE_CALIBRATED = 2;
 
 	// UI elements
 	//  --  calibration_chessboard_view.xml
@@ -50,7 +60,19 @@ public class CalibrationChessboardActivity extends Activity implements
 	//  --  calibration_chessboard_view.xml	
 
 	// controller elements
+	private final Size patternSize = new Size(7, 7);
+	private ChessboardCalibrationSession calibrationSession;
+	private ChessboardDetector chessboardDetector;
 	private CalibrationHelper calibrationHelper;
+
+	// the corners of the last detection, drawn onto every preview frame
+	private final Object lastCornersLock = new Object();
+	private MatOfPoint2f lastCorners;
+	private boolean isLastCornersFound;
+
+	// the state last posted to the UI; used by the detector thread only
+	private int postedState = -1;
+	private int postedFrames = -1;
 	
 	public CalibrationChessboardActivity() {
 //		List<Point> worldCoordinates = new ArrayList<Point>();
@@ -83,7 +105,7 @@ public class CalibrationChessboardActivity extends Activity implements
 		}
 
 		
-		calibrationHelper = new CalibrationHelper(worldCoordinates);
+		calibrationSession = new ChessboardCalibrationSession(worldCoordinates, CALIBRATION_FRAMES);
 	}
 	
 	private BaseLoaderCallback mLoaderCallback = new BaseLoaderCallback(this) {
@@ -160,50 +182,105 @@ public class CalibrationChessboardActivity extends Activity implements
 	}
 
 	public void onCameraViewStarted(int width, int height) {
+		// Mats can be created only once OpenCV has been loaded
+		if (chessboardDetector == null) {
+			lastCorners = new MatOfPoint2f();
+			chessboardDetector = new ChessboardDetector(patternSize, DETECTION_SCALE, DETECTION_RATE, new ChessboardDetector.Listener() {
+				@Override
+				public void onDetection(MatOfPoint2f corners) {
+					onChessboardDetection(corners);
+				}
+			});
+		}
+		chessboardDetector.start();
 	}
 
 	public void onCameraViewStopped() {
+		chessboardDetector.stop();
 	}
 
-	public synchronized Mat onCameraFrame(CvCameraViewFrame inputFrame) {
-		
+	public Mat onCameraFrame(CvCameraViewFrame inputFrame) {
+		chessboardDetector.offer(inputFrame.gray());
+
 		Mat rgba = inputFrame.rgba();
-		Mat grey_8uc1 = new Mat();
-		Imgproc.cvtColor(rgba, grey_8uc1, Imgproc.COLOR_RGB2GRAY);
-		
-		Size patternSize= new org.opencv.core.Size(7,7);
-		MatOfPoint2f corners = new MatOfPoint2f();
-		
-		if(Calib3d.findChessboardCorners(grey_8uc1, patternSize, corners, Calib3d.CALIB_CB_ADAPTIVE_THRESH + Calib3d.CALIB_CB_NORMALIZE_IMAGE + Calib3d.CALIB_CB_FAST_CHECK)) {
-			Log.i(TAG, "found Chessboard corners");
-			calibrationHelper.clearImagePlaneCoordinates();
-			for(int p=0;p<corners.size().height;p++) {
-				double[] point = corners.get(p, 0);
-				Log.d(TAG, "#" + p + ": (" + point[0] + ", " + point[1] + ")");
-				calibrationHelper.addImagePlaneCoordinates(p, new Point(point[0],point[1]));
-			}
-			
-			CalibrationChessboardActivity.this.runOnUiThread(new Runnable() {			
-				@Override
-				public void run() {
-					mCalibrateUsingChessBoard.setEnabled(true);
-					mCalibrateUsingChessBoard.setText("Calibrate");
-				}
-			});
-			//Imgproc.cornerSubPix(rgba, corners, new Size(11, 11), new Size(-1, -1), new TermCriteria(TermCriteria.EPS + TermCriteria.MAX_ITER, 30, 0.1));
-			Calib3d.drawChessboardCorners(rgba, patternSize, corners, true);
-		} else {
-			Log.i(TAG, "no Chessboard corners found");
-			CalibrationChessboardActivity.this.runOnUiThread(new Runnable() {			
-				@Override
-				public void run() {
-					mCalibrateUsingChessBoard.setEnabled(false);
-					mCalibrateUsingChessBoard.setText("Find chessboard first...");
-				}
-			});
-			Calib3d.drawChessboardCorners(rgba, patternSize, corners, false);
+		synchronized (lastCornersLock) {
+			if (!lastCorners.empty())
+				Calib3d.drawChessboardCorners(rgba, patternSize, lastCorners, isLastCornersFound);
 		}
-		
 		return rgba;
 	}
+
+	/*
+	 * (non-javadoc)
+	 * called on the detector thread with the refined corners (or null if the chessboard has not been found)
+	 */
+	private void onChessboardDetection(MatOfPoint2f corners) {
+		synchronized (lastCornersLock) {
+			isLastCornersFound = corners != null;
+			if (corners != null)
+				corners.copyTo(lastCorners);
+		}
+
+		if (calibrationSession.isComplete())
+			return;
+
+		if (corners == null) {
+			postState(STATE_SEARCHING);
+			return;
+		}
+
+		calibrationSession.addFrame(corners);
+		if (calibrationSession.isComplete())
+			solveCalibration();
+		else
+			postState(STATE_COLLECTING);
+	}
+
+	/*
+	 * (non-javadoc)
+	 * updates the button, unless it shows the supplied state already
+	 */
+	private void postState(final int state) {
+		final int frames = calibrationSession.getFrames();
+		if (state == postedState && frames == postedFrames)
+			return;
+		postedState = state;
+		postedFrames = frames;
+
+		Log.i(TAG, state == STATE_SEARCHING ? "no Chessboard corners found" : "found Chessboard corners (" + frames + "/" + CALIBRATION_FRAMES + ")");
+		CalibrationChessboardActivity.this.runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				mCalibrateUsingChessBoard.setEnabled(false);
+				if (state == STATE_SEARCHING)
+					mCalibrateUsingChessBoard.setText("Find chessboard first...");
+				else
+					mCalibrateUsingChessBoard.setText("Hold still... " + frames + "/" + CALIBRATION_FRAMES);
+			}
+		});
+	}
+
+	/*
+	 * (non-javadoc)
+	 * all frames have been collected: solves the homography and shows its residuals
+	 */
+	private void solveCalibration() {
+		final ChessboardCalibrationSession.Statistics statistics = calibrationSession.solve();
+		Log.i(TAG, "calibrated: " + statistics + ", detection took " + chessboardDetector.getMeanDetectionNanos() / 1000000 + "ms");
+		calibrationHelper = statistics.getCalibrationHelper();
+		postedState = STATE_CALIBRATED;
+
+		CalibrationChessboardActivity.this.runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				mCalibrationLabel.setText(String.format("%d/%d frames used, residual rms %.2f max %.2f cm, "
+						+ "error on all frames rms %.2f max %.2f cm (single frame: rms %.2f max %.2f cm)",
+						statistics.getFramesUsed(), CALIBRATION_FRAMES, statistics.getRmsResidual(),
+						statistics.getMaxResidual(), statistics.getRmsError(), statistics.getMaxError(),
+						statistics.getSingleFrameRmsError(), statistics.getSingleFrameMaxError()));
+				mCalibrateUsingChessBoard.setEnabled(true);
+				mCalibrateUsingChessBoard.setText("Calibrate");
+			}
+		});
+	}
 }
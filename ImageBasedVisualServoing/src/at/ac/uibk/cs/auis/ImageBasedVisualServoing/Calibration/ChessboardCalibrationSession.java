@@ -0,0 +1,336 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Calibration;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+
+import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common.CalibrationHelper;
+
+/**
+ * Accumulates the chessboard corners detected in several frames and solves a single homography from them,
+ * instead of using whatever the last frame has produced.
+ *
+ * The observations are stored in a buffer preallocated for the configured number of frames. When solving,
+ * frames whose corners deviate from the per-corner median by far more than the others (e.g. because the board
+ * or the camera has been moved, or a corner has been mislocated) are rejected; the remaining observations are
+ * averaged per corner, which reduces the detection noise by the square root of their number. The quality of the
+ * result is reported as the residuals of the corners on the ground plane and, for comparison with a calibration
+ * from a single frame, as the errors of both on the corners of every used frame (see {@link Statistics}).
+ */
+public class ChessboardCalibrationSession {
+	// frames deviating from the median by less than this many pixels (RMS over all corners) are always kept
+	private static final double MIN_OUTLIER_DEVIATION = 1.0;
+	// frames deviating by more than this factor times the median deviation are rejected
+	private static final double OUTLIER_FACTOR = 3.0;
+
+	private final List<Point> _worldCoordinates;
+	private final int _corners;
+	private final int _capacity;
+
+	// observations[(frame * corners + corner) * 2 + (0 for x, 1 for y)]
+	private final double[] _observations;
+	private final float[] _cornerBuffer;
+	private final double[] _median;
+	private final double[] _mean;
+	private final double[] _projected;
+	private final double[] _deviations;
+	private final double[] _scratch;
+	private final boolean[] _isInlier;
+	private int _frames;
+
+	/**
+	 * @param worldCoordinates
+	 *  the ground-plane coordinates of the corners, in the order findChessboardCorners reports them
+	 * @param capacity
+	 *  the number of frames to accumulate
+	 */
+	public ChessboardCalibrationSession(List<Point> worldCoordinates, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1");
+
+		_worldCoordinates = worldCoordinates;
+		_corners = worldCoordinates.size();
+		_capacity = capacity;
+		_observations = new double[capacity * _corners * 2];
+		_cornerBuffer = new float[_corners * 2];
+		_median = new double[_corners * 2];
+		_mean = new double[_corners * 2];
+		_projected = new double[_corners * 2];
+		_deviations = new double[capacity];
+		_scratch = new double[capacity];
+		_isInlier = new boolean[capacity];
+	}
+
+	/**
+	 * stores the (refined) corners of one frame
+	 *
+	 * @return false if the session is complete already, so the frame has not been stored
+	 */
+	public synchronized boolean addFrame(MatOfPoint2f corners) {
+		if (_frames == _capacity)
+			return false;
+		if (corners.rows() * corners.cols() != _corners)
+			throw new IllegalArgumentException("expected " + _corners + " corners");
+
+		corners.get(0, 0, _cornerBuffer);
+		int offset = _frames * _corners * 2;
+		for (int i = 0; i < _cornerBuffer.length; i++)
+			_observations[offset + i] = _cornerBuffer[i];
+		_frames++;
+		return true;
+	}
+
+	public synchronized int getFrames() {
+		return _frames;
+	}
+
+	public int getCapacity() {
+		return _capacity;
+	}
+
+	public synchronized boolean isComplete() {
+		return _frames == _capacity;
+	}
+
+	/**
+	 * discards all frames
+	 */
+	public synchronized void reset() {
+		_frames = 0;
+	}
+
+	/**
+	 * rejects outlier frames, averages the others and solves the homography (using RANSAC, see
+	 * {@link CalibrationHelper#getHomogenousMat()})
+	 *
+	 * @return the calibration and the statistics of its residuals
+	 */
+	public synchronized Statistics solve() {
+		if (_frames == 0)
+			throw new IllegalStateException("no frames have been added");
+
+		// per-corner median of all frames
+		for (int i = 0; i < _corners * 2; i++) {
+			for (int frame = 0; frame < _frames; frame++)
+				_scratch[frame] = _observations[frame * _corners * 2 + i];
+			_median[i] = median(_scratch, _frames);
+		}
+
+		// RMS-deviation of each frame from the median
+		for (int frame = 0; frame < _frames; frame++) {
+			double sum = 0;
+			int offset = frame * _corners * 2;
+			for (int i = 0; i < _corners * 2; i += 2) {
+				double dx = _observations[offset + i] - _median[i];
+				double dy = _observations[offset + i + 1] - _median[i + 1];
+				sum += dx * dx + dy * dy;
+			}
+			_deviations[frame] = Math.sqrt(sum / _corners);
+			_scratch[frame] = _deviations[frame];
+		}
+		double threshold = Math.max(MIN_OUTLIER_DEVIATION, OUTLIER_FACTOR * median(_scratch, _frames));
+
+		int inliers = 0;
+		int firstInlier = -1;
+		for (int frame = 0; frame < _frames; frame++) {
+			_isInlier[frame] = _deviations[frame] <= threshold;
+			if (_isInlier[frame]) {
+				inliers++;
+				if (firstInlier < 0)
+					firstInlier = frame;
+			}
+		}
+
+		// average the inliers per corner and measure their spread (the noise of a single detection)
+		CalibrationHelper calibrationHelper = new CalibrationHelper(_worldCoordinates);
+		double jitterSum = 0;
+		for (int corner = 0; corner < _corners; corner++) {
+			double x = 0;
+			double y = 0;
+			for (int frame = 0; frame < _frames; frame++) {
+				if (!_isInlier[frame])
+					continue;
+				x += _observations[(frame * _corners + corner) * 2];
+				y += _observations[(frame * _corners + corner) * 2 + 1];
+			}
+			x /= inliers;
+			y /= inliers;
+			_mean[corner * 2] = x;
+			_mean[corner * 2 + 1] = y;
+			for (int frame = 0; frame < _frames; frame++) {
+				if (!_isInlier[frame])
+					continue;
+				double dx = _observations[(frame * _corners + corner) * 2] - x;
+				double dy = _observations[(frame * _corners + corner) * 2 + 1] - y;
+				jitterSum += dx * dx + dy * dy;
+			}
+			calibrationHelper.addImagePlaneCoordinates(corner, new Point(x, y));
+		}
+		double jitter = Math.sqrt(jitterSum / (_corners * inliers));
+
+		// for comparison: the same calibration solved from a single frame, as done before
+		CalibrationHelper singleFrame = new CalibrationHelper(_worldCoordinates);
+		for (int corner = 0; corner < _corners; corner++) {
+			int index = (firstInlier * _corners + corner) * 2;
+			singleFrame.addImagePlaneCoordinates(corner, new Point(_observations[index], _observations[index + 1]));
+		}
+
+		double[] residuals = new double[_corners];
+		computeResiduals(calibrationHelper, _mean, 0, residuals, 0);
+
+		// both are scored on the same data: the corners of every used frame (the averaged calibration has been
+		// solved from all of them, the single-frame one from the first of them)
+		double[] errors = new double[inliers * _corners];
+		double[] singleFrameErrors = new double[inliers * _corners];
+		int scored = 0;
+		for (int frame = 0; frame < _frames; frame++) {
+			if (!_isInlier[frame])
+				continue;
+			computeResiduals(calibrationHelper, _observations, frame * _corners * 2, errors, scored * _corners);
+			computeResiduals(singleFrame, _observations, frame * _corners * 2, singleFrameErrors, scored * _corners);
+			scored++;
+		}
+
+		return new Statistics(calibrationHelper, inliers, _frames - inliers, jitter, residuals, rms(errors),
+				max(errors), rms(singleFrameErrors), max(singleFrameErrors));
+	}
+
+	/*
+	 * (non-javadoc)
+	 * stores the distance between the projected image-plane coordinates (stored interleaved in imagePlane starting
+	 * at offset) and the world coordinates of every corner in residuals, starting at residualsOffset
+	 */
+	private void computeResiduals(CalibrationHelper calibrationHelper, double[] imagePlane, int offset,
+			double[] residuals, int residualsOffset) {
+		calibrationHelper.getProjector().projectAll(imagePlane, offset, _projected, 0, _corners);
+		for (int corner = 0; corner < _corners; corner++) {
+			Point world = _worldCoordinates.get(corner);
+			residuals[residualsOffset + corner] = Math.hypot(_projected[corner * 2] - world.x,
+					_projected[corner * 2 + 1] - world.y);
+		}
+	}
+
+	private static double median(double[] values, int count) {
+		Arrays.sort(values, 0, count);
+		return count % 2 == 1 ? values[count / 2] : (values[count / 2 - 1] + values[count / 2]) / 2;
+	}
+
+	private static double rms(double[] values) {
+		double sum = 0;
+		for (double value : values)
+			sum += value * value;
+		return Math.sqrt(sum / values.length);
+	}
+
+	private static double max(double[] values) {
+		double max = 0;
+		for (double value : values)
+			max = Math.max(max, value);
+		return max;
+	}
+
+	/**
+	 * the result of {@link ChessboardCalibrationSession#solve()}; residuals are distances on the ground plane
+	 * (in the unit of the world coordinates) between each corner's world coordinates and its projected image-plane
+	 * coordinates (averaged over the used frames); errors are the same distances for the corners of every used frame
+	 */
+	public static class Statistics {
+		private final CalibrationHelper _calibrationHelper;
+		private final int _framesUsed;
+		private final int _framesRejected;
+		private final double _cornerJitter;
+		private final double[] _residuals;
+		private final double _rmsError;
+		private final double _maxError;
+		private final double _singleFrameRmsError;
+		private final double _singleFrameMaxError;
+
+		Statistics(CalibrationHelper calibrationHelper, int framesUsed, int framesRejected, double cornerJitter,
+				double[] residuals, double rmsError, double maxError, double singleFrameRmsError,
+				double singleFrameMaxError) {
+			_calibrationHelper = calibrationHelper;
+			_framesUsed = framesUsed;
+			_framesRejected = framesRejected;
+			_cornerJitter = cornerJitter;
+			_residuals = residuals;
+			_rmsError = rmsError;
+			_maxError = maxError;
+			_singleFrameRmsError = singleFrameRmsError;
+			_singleFrameMaxError = singleFrameMaxError;
+		}
+
+		public CalibrationHelper getCalibrationHelper() {
+			return _calibrationHelper;
+		}
+
+		public int getFramesUsed() {
+			return _framesUsed;
+		}
+
+		public int getFramesRejected() {
+			return _framesRejected;
+		}
+
+		/**
+		 * @return the RMS-deviation of the single detections of a corner from their mean, in pixel
+		 */
+		public double getCornerJitter() {
+			return _cornerJitter;
+		}
+
+		/**
+		 * @return the residual of every corner
+		 */
+		public double[] getResiduals() {
+			return _residuals;
+		}
+
+		public double getMeanResidual() {
+			double sum = 0;
+			for (double residual : _residuals)
+				sum += residual;
+			return sum / _residuals.length;
+		}
+
+		public double getRmsResidual() {
+			return rms(_residuals);
+		}
+
+		public double getMaxResidual() {
+			return max(_residuals);
+		}
+
+		/**
+		 * @return the RMS-error of the calibration on the corners of every used frame
+		 */
+		public double getRmsError() {
+			return _rmsError;
+		}
+
+		public double getMaxError() {
+			return _maxError;
+		}
+
+		/**
+		 * @return the RMS-error of a calibration solved from the first used frame alone, on the same corners as
+		 *  {@link #getRmsError()}
+		 */
+		public double getSingleFrameRmsError() {
+			return _singleFrameRmsError;
+		}
+
+		public double getSingleFrameMaxError() {
+			return _singleFrameMaxError;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d frames (%d rejected), corner jitter %.2fpx, residual mean %.3f rms %.3f max %.3f, "
+					+ "error on all frames rms %.3f max %.3f (single frame: rms %.3f max %.3f)", _framesUsed,
+					_framesRejected, _cornerJitter, getMeanResidual(), getRmsResidual(), getMaxResidual(), _rmsError,
+					_maxError, _singleFrameRmsError, _singleFrameMaxError);
+		}
+	}
+}
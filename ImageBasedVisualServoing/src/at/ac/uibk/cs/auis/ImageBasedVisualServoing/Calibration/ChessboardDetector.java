@@ -0,0 +1,251 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Calibration;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+
+import android.util.Log;
+
+/**
+ * Searches for the chessboard on a background thread, so that the (expensive) corner detection does not slow
+ * down the camera preview.
+ *
+ * The camera thread offers its grey frames using {@link #offer(Mat)}, which never blocks: a frame is copied into
+ * a single hand-off slot only if the detector is idle and the next detection is due (see {@link #setRate(float)});
+ * all other frames are skipped. The detector searches the board in a downscaled copy of the frame first; if it is
+ * found, the detection is repeated at full resolution, but only within the region around the board, and the
+ * corners are refined to sub-pixel accuracy there.
+ */
+public class ChessboardDetector {
+	private static final String TAG = "Auis::ChessboardDetector";
+
+	/**
+	 * receives the result of every detection; called on the detector's background thread
+	 */
+	public interface Listener {
+		/**
+		 * @param corners
+		 *  the refined corners in full-resolution image coordinates, or null if the board has not been found;
+		 *  only valid during the call
+		 */
+		public void onDetection(MatOfPoint2f corners);
+	}
+
+	private final Size _patternSize;
+	private final double _scale;
+	private final Listener _listener;
+	private final TermCriteria _subPixCriteria = new TermCriteria(TermCriteria.EPS + TermCriteria.MAX_ITER, 30, 0.1);
+	private final Size _subPixWindow = new Size(5, 5);
+	private final Size _subPixZeroZone = new Size(-1, -1);
+
+	// used by the detector thread only (and by offer() while it is not busy)
+	private final Mat _frame = new Mat();
+	private final Mat _downscaled = new Mat();
+	private final MatOfPoint2f _downscaledCorners = new MatOfPoint2f();
+	private final MatOfPoint2f _corners = new MatOfPoint2f();
+	private final float[] _cornerBuffer;
+
+	// guarded by this
+	private Thread _thread;
+	private boolean _isStopped;
+	private boolean _isPending;
+	private boolean _isBusy;
+	private long _periodNanos;
+	private long _nextDetection;
+	private long _detections;
+	private long _detectionNanos;
+
+	/**
+	 * @param patternSize
+	 *  the number of inner corners per row and column (see {@link Calib3d#findChessboardCorners(Mat, Size, MatOfPoint2f, int)})
+	 * @param scale
+	 *  the factor (at most 1) the frames are downscaled with for the search
+	 * @param rateHz
+	 *  the maximum number of detections per second
+	 */
+	public ChessboardDetector(Size patternSize, double scale, float rateHz, Listener listener) {
+		if (scale <= 0 || scale > 1)
+			throw new IllegalArgumentException("scale must be within (0, 1]");
+
+		_patternSize = patternSize;
+		_scale = scale;
+		_listener = listener;
+		_cornerBuffer = new float[(int) (patternSize.width * patternSize.height) * 2];
+		setRate(rateHz);
+	}
+
+	public synchronized void setRate(float rateHz) {
+		if (rateHz <= 0)
+			throw new IllegalArgumentException("rate must be positive: " + rateHz);
+		_periodNanos = (long) (1000000000L / rateHz);
+	}
+
+	public synchronized void start() {
+		if (_thread != null)
+			return;
+
+		_isStopped = false;
+		_isPending = false;
+		_isBusy = false;
+		_nextDetection = System.nanoTime();
+		_thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				detectFrames();
+			}
+		}, "ChessboardDetector");
+		_thread.start();
+	}
+
+	/**
+	 * stops the background thread and waits until a detection in progress has finished
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			thread = _thread;
+			if (thread == null)
+				return;
+			_isStopped = true;
+			_thread = null;
+			notifyAll();
+		}
+
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * hands the frame over to the detector if it is idle and the next detection is due; never blocks
+	 *
+	 * @param grey
+	 *  a grey (CV_8UC1) camera frame; it is copied, so the caller may reuse it
+	 * @return true iff the frame has been taken
+	 */
+	public boolean offer(Mat grey) {
+		synchronized (this) {
+			if (_thread == null || _isBusy || System.nanoTime() - _nextDetection < 0)
+				return false;
+			// the slot is empty and the detector thread does not touch _frame until it is marked pending
+			_isBusy = true;
+		}
+
+		grey.copyTo(_frame);
+
+		synchronized (this) {
+			_isPending = true;
+			notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of detections run so far
+	 */
+	public synchronized long getDetections() {
+		return _detections;
+	}
+
+	/**
+	 * @return the mean time a detection has taken, in nanoseconds
+	 */
+	public synchronized long getMeanDetectionNanos() {
+		return _detections == 0 ? 0 : _detectionNanos / _detections;
+	}
+
+	private void detectFrames() {
+		while (true) {
+			synchronized (this) {
+				while (!_isStopped && !_isPending) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (_isStopped)
+					return;
+			}
+
+			long start = System.nanoTime();
+			boolean isFound = detect();
+			long end = System.nanoTime();
+
+			try {
+				_listener.onDetection(isFound ? _corners : null);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "listener failed", e);
+			}
+
+			synchronized (this) {
+				_detections++;
+				_detectionNanos += end - start;
+				_nextDetection = start + _periodNanos;
+				_isPending = false;
+				_isBusy = false;
+			}
+		}
+	}
+
+	/*
+	 * (non-javadoc)
+	 * searches the board in the downscaled frame and refines its corners within the board's region of the
+	 * full-resolution frame; stores them in _corners
+	 */
+	private boolean detect() {
+		Imgproc.resize(_frame, _downscaled, new Size(), _scale, _scale, Imgproc.INTER_AREA);
+		if (!Calib3d.findChessboardCorners(_downscaled, _patternSize, _downscaledCorners,
+				Calib3d.CALIB_CB_ADAPTIVE_THRESH + Calib3d.CALIB_CB_NORMALIZE_IMAGE + Calib3d.CALIB_CB_FAST_CHECK))
+			return false;
+
+		// bounding box of the corners in full-resolution coordinates
+		_downscaledCorners.get(0, 0, _cornerBuffer);
+		double minX = Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < _cornerBuffer.length; i += 2) {
+			minX = Math.min(minX, _cornerBuffer[i] / _scale);
+			maxX = Math.max(maxX, _cornerBuffer[i] / _scale);
+			minY = Math.min(minY, _cornerBuffer[i + 1] / _scale);
+			maxY = Math.max(maxY, _cornerBuffer[i + 1] / _scale);
+		}
+
+		// the outer squares (and some white border around them) have to be within the region
+		double margin = 1.5 * Math.max((maxX - minX) / (_patternSize.width - 1), (maxY - minY) / (_patternSize.height - 1));
+		int x = Math.max(0, (int) (minX - margin));
+		int y = Math.max(0, (int) (minY - margin));
+		int width = Math.min(_frame.cols(), (int) Math.ceil(maxX + margin)) - x;
+		int height = Math.min(_frame.rows(), (int) Math.ceil(maxY + margin)) - y;
+		Mat region = _frame.submat(new Rect(x, y, width, height));
+
+		if (!Calib3d.findChessboardCorners(region, _patternSize, _corners,
+				Calib3d.CALIB_CB_ADAPTIVE_THRESH + Calib3d.CALIB_CB_NORMALIZE_IMAGE)) {
+			// not found at full resolution: refine the upscaled corners of the downscaled frame instead
+			for (int i = 0; i < _cornerBuffer.length; i += 2) {
+				_cornerBuffer[i] = (float) (_cornerBuffer[i] / _scale - x);
+				_cornerBuffer[i + 1] = (float) (_cornerBuffer[i + 1] / _scale - y);
+			}
+			_downscaledCorners.put(0, 0, _cornerBuffer);
+			_downscaledCorners.copyTo(_corners);
+		}
+		Imgproc.cornerSubPix(region, _corners, _subPixWindow, _subPixZeroZone, _subPixCriteria);
+		region.release();
+
+		// back to full-frame coordinates
+		_corners.get(0, 0, _cornerBuffer);
+		for (int i = 0; i < _cornerBuffer.length; i += 2) {
+			_cornerBuffer[i] += x;
+			_cornerBuffer[i + 1] += y;
+		}
+		_corners.put(0, 0, _cornerBuffer);
+		return true;
+	}
+}
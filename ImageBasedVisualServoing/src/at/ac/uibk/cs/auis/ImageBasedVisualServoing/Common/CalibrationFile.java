@@ -0,0 +1,202 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.opencv.core.Point;
+
+/**
+ * Reads and writes a {@link CalibrationHelper} in a compact, versioned binary format (replacing Java serialization).
+ * Besides the point correspondences the file holds the solved homography and the lookup table (if any), so that
+ * loading a calibration neither needs OpenCV to re-solve the homography nor rebuilds the table.
+ *
+ * Layout (little endian):
+ * <pre>
+ * int     magic 'IBVC'
+ * int     version
+ * int     number of image-plane points n
+ * int     number of world points m
+ * int     flags (bit 0: lookup table present)
+ * double  homography[9], row by row
+ * double  image-plane points[2n] (x, y)
+ * double  world points[2m] (x, y)
+ * int     lookup table: width, height, step, number of grid-points k
+ * float   lookup table: x[k], y[k]
+ * int     CRC32 of all preceding bytes
+ * </pre>
+ * Files are read through a memory-mapped buffer (hence a {@link FileInputStream}) and checked completely (size and
+ * checksum) before anything is parsed. All failures, including contents that pass the checksum but are inconsistent,
+ * are reported as {@link IOException}.
+ */
+public class CalibrationFile {
+	public static final int MAGIC = 0x49425643; // "IBVC"
+	public static final int VERSION = 1;
+
+	private static final int FLAG_LOOKUP_TABLE = 0x01;
+	private static final int HEADER_SIZE = 5 * 4 + 9 * 8;
+	private static final int MAX_POINTS = 1 << 16;
+
+	private CalibrationFile() {
+	}
+
+	/**
+	 * @throws IOException
+	 *  if the stream cannot be written or the homography of the calibration cannot be solved (e.g. because
+	 *  the points are collinear)
+	 */
+	public static void write(CalibrationHelper calibrationHelper, OutputStream out) throws IOException {
+		List<ParcelablePoint> imagePlane = calibrationHelper.getImagePlaneCoordinates();
+		List<ParcelablePoint> world = calibrationHelper.getWorldCoordinatesList();
+		double[] homography;
+		try {
+			homography = calibrationHelper.getProjector().getHomography();
+		} catch (IllegalArgumentException e) {
+			// findHomography yields an empty matrix if it cannot solve the homography
+			throw new IOException("Calibration has no homography: " + e.getMessage(), e);
+		}
+		if (!isValid(homography))
+			throw new IOException("Calibration has no valid homography: " + Arrays.toString(homography));
+		GroundPlaneLookupTable lookupTable = calibrationHelper.getLookupTable();
+
+		int size = HEADER_SIZE + 16 * (imagePlane.size() + world.size()) + 4;
+		if (lookupTable != null)
+			size += 4 * 4 + 8 * lookupTable.getGridPoints();
+
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(imagePlane.size());
+		buffer.putInt(world.size());
+		buffer.putInt(lookupTable != null ? FLAG_LOOKUP_TABLE : 0);
+		for (double element : homography)
+			buffer.putDouble(element);
+		putPoints(buffer, imagePlane);
+		putPoints(buffer, world);
+		if (lookupTable != null) {
+			buffer.putInt(lookupTable.getWidth());
+			buffer.putInt(lookupTable.getHeight());
+			buffer.putInt(lookupTable.getStep());
+			buffer.putInt(lookupTable.getGridPoints());
+			buffer.asFloatBuffer().put(lookupTable.getGridX()).put(lookupTable.getGridY());
+			buffer.position(buffer.position() + 8 * lookupTable.getGridPoints());
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.putInt((int) crc.getValue());
+
+		out.write(buffer.array());
+		out.flush();
+	}
+
+	/*
+	 * (non-javadoc)
+	 * for degenerate points findHomography yields a matrix of zeros (or of NaNs) instead of an empty one
+	 */
+	private static boolean isValid(double[] homography) {
+		boolean isZero = true;
+		for (double element : homography) {
+			if (Double.isNaN(element) || Double.isInfinite(element))
+				return false;
+			isZero &= element == 0;
+		}
+		return !isZero;
+	}
+
+	private static void putPoints(ByteBuffer buffer, List<ParcelablePoint> points) {
+		for (Point point : points) {
+			buffer.putDouble(point.x);
+			buffer.putDouble(point.y);
+		}
+	}
+
+	/**
+	 * @throws IOException
+	 *  if the file cannot be read, is truncated, corrupt (checksum mismatch or inconsistent contents) or of an
+	 *  unknown version
+	 */
+	public static CalibrationHelper read(FileInputStream in) throws IOException {
+		FileChannel channel = in.getChannel();
+		long fileSize = channel.size();
+		if (fileSize < HEADER_SIZE + 4 || fileSize > Integer.MAX_VALUE)
+			throw new IOException("Invalid calibration file size: " + fileSize);
+
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize).order(ByteOrder.LITTLE_ENDIAN);
+		int size = (int) fileSize;
+		if (buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a calibration file");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported calibration file version: " + buffer.getInt(4));
+		if (checksum(buffer, size - 4) != buffer.getInt(size - 4))
+			throw new IOException("Calibration file is corrupt (checksum mismatch)");
+
+		buffer.position(8);
+		int imagePlaneCount = buffer.getInt();
+		int worldCount = buffer.getInt();
+		int flags = buffer.getInt();
+		if (imagePlaneCount < 0 || imagePlaneCount > MAX_POINTS || worldCount < 0 || worldCount > MAX_POINTS)
+			throw new IOException("Invalid number of points: " + imagePlaneCount + ", " + worldCount);
+		int expectedSize = HEADER_SIZE + 16 * (imagePlaneCount + worldCount) + 4;
+		if ((flags & FLAG_LOOKUP_TABLE) != 0)
+			expectedSize += 4 * 4;
+		if (size < expectedSize)
+			throw new IOException("Calibration file is truncated");
+
+		double[] homography = new double[9];
+		buffer.asDoubleBuffer().get(homography);
+		buffer.position(buffer.position() + 9 * 8);
+		List<Point> imagePlane = getPoints(buffer, imagePlaneCount);
+		List<Point> world = getPoints(buffer, worldCount);
+
+		GroundPlaneLookupTable lookupTable = null;
+		if ((flags & FLAG_LOOKUP_TABLE) != 0) {
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+			int step = buffer.getInt();
+			int gridPoints = buffer.getInt();
+			if (gridPoints < 0 || size != expectedSize + 8L * gridPoints)
+				throw new IOException("Invalid lookup table size: " + gridPoints);
+			float[] x = new float[gridPoints];
+			float[] y = new float[gridPoints];
+			buffer.asFloatBuffer().get(x).get(y);
+			try {
+				lookupTable = new GroundPlaneLookupTable(width, height, step, x, y);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid lookup table: " + e.getMessage(), e);
+			}
+		} else if (size != expectedSize) {
+			throw new IOException("Invalid calibration file size: " + size);
+		}
+
+		return new CalibrationHelper(imagePlane, world, homography, lookupTable);
+	}
+
+	private static List<Point> getPoints(ByteBuffer buffer, int count) {
+		List<Point> points = new ArrayList<Point>(count);
+		for (int i = 0; i < count; i++)
+			points.add(new Point(buffer.getDouble(), buffer.getDouble()));
+		return points;
+	}
+
+	private static int checksum(ByteBuffer buffer, int length) {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[8192];
+		ByteBuffer data = buffer.duplicate();
+		data.position(0);
+		while (length > 0) {
+			int count = Math.min(length, chunk.length);
+			data.get(chunk, 0, count);
+			crc.update(chunk, 0, count);
+			length -= count;
+		}
+		return (int) crc.getValue();
+	}
+}
@@ -1,12 +1,12 @@
 package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common;
 
 import java.io.IOException;
+import java.io.OptionalDataException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.opencv.calib3d.Calib3d;
-import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
@@ -21,6 +21,8 @@ public class CalibrationHelper implements Parcelable, Serializable {
 	private MatOfPoint2f _worldCoordinates;
 
 	private Mat _cachedImagePlane2WorldCoordinates;
+	private HomographyProjector _cachedProjector;
+	private GroundPlaneLookupTable _lookupTable;
 
 	public CalibrationHelper(MatOfPoint2f worldCoordinates) {
 		_worldCoordinates = worldCoordinates;
@@ -35,6 +37,18 @@ public class CalibrationHelper implements Parcelable, Serializable {
 		_worldCoordinates = convertToMatOfPoints(worldCoordinates);
 	}
 
+	/**
+	 * restores a calibration including the solved homography (see {@link CalibrationFile})
+	 */
+	CalibrationHelper(List<Point> imagePlaneCoordinates, List<Point> worldCoordinates, double[] homography,
+			GroundPlaneLookupTable lookupTable) {
+		for (Point point : imagePlaneCoordinates)
+			_imagePlaneCoordinates.add(new ParcelablePoint(point));
+		_worldCoordinates = convertToMatOfPoints(worldCoordinates);
+		_cachedProjector = new HomographyProjector(homography);
+		_lookupTable = lookupTable;
+	}
+
 	public void addImagePlaneCoordinates(int pointNumber, Point point) {
 		if (pointNumber < 0)
 			throw new IllegalArgumentException();
@@ -43,10 +57,22 @@ public class CalibrationHelper implements Parcelable, Serializable {
 		
 		_imagePlaneCoordinates.ensureCapacity((int) _worldCoordinates.size().height);
 		_imagePlaneCoordinates.add(pointNumber, new ParcelablePoint(point));
+		invalidateHomography();
 	}
 	
 	public void clearImagePlaneCoordinates() {
 		_imagePlaneCoordinates.clear();
+		invalidateHomography();
+	}
+
+	/*
+	 * (non-javadoc)
+	 * the homography (and everything derived from it) has to be solved again after the points have changed
+	 */
+	private void invalidateHomography() {
+		_cachedImagePlane2WorldCoordinates = null;
+		_cachedProjector = null;
+		_lookupTable = null;
 	}
 
 	public Point getWorldCoordinates(int pointNumber) {
@@ -67,6 +93,14 @@ public class CalibrationHelper implements Parcelable, Serializable {
 		return strings;
 	}
 
+	List<ParcelablePoint> getImagePlaneCoordinates() {
+		return _imagePlaneCoordinates;
+	}
+
+	List<ParcelablePoint> getWorldCoordinatesList() {
+		return convertToArrayList(_worldCoordinates);
+	}
+
 	public String PointToString(Point point) {
 		return "(" + point.x + ", " + point.y + ")";
 	}
@@ -75,10 +109,48 @@ public class CalibrationHelper implements Parcelable, Serializable {
 		if(_cachedImagePlane2WorldCoordinates!=null)
 			return _cachedImagePlane2WorldCoordinates;
 		
+		if (_cachedProjector != null) {
+			// restored from a file, the homography has been solved already
+			_cachedImagePlane2WorldCoordinates = new Mat(3, 3, CvType.CV_64FC1);
+			_cachedImagePlane2WorldCoordinates.put(0, 0, _cachedProjector.getHomography());
+			return _cachedImagePlane2WorldCoordinates;
+		}
+
 		calculateHomogenousMat();
 		return _cachedImagePlane2WorldCoordinates;
 	}
 
+	/**
+	 * @return the projector mapping image-plane coordinates to ground-plane coordinates (computes the
+	 *  homography on first use)
+	 */
+	public HomographyProjector getProjector() {
+		if (_cachedProjector == null)
+			_cachedProjector = new HomographyProjector(HomographyProjector.toArray(getHomogenousMat()));
+		return _cachedProjector;
+	}
+
+	/**
+	 * builds the lookup table used by {@link #calculateGroundPlaneCoordinates(Point, Point)} for points within
+	 * the image (unless a table with the same parameters exists already, e.g. because it has been deserialized)
+	 *
+	 * @param step
+	 *  see {@link GroundPlaneLookupTable#GroundPlaneLookupTable(HomographyProjector, int, int, int)}
+	 */
+	public GroundPlaneLookupTable buildLookupTable(int width, int height, int step) {
+		if (_lookupTable == null || _lookupTable.getWidth() != width || _lookupTable.getHeight() != height
+				|| _lookupTable.getStep() != step)
+			_lookupTable = new GroundPlaneLookupTable(getProjector(), width, height, step);
+		return _lookupTable;
+	}
+
+	/**
+	 * @return the lookup table, or null if none has been built
+	 */
+	public GroundPlaneLookupTable getLookupTable() {
+		return _lookupTable;
+	}
+
 	private void calculateHomogenousMat() {
 //		Mat src = new Mat(4, 1, CvType.CV_32FC2);
 //		src.put(0, 0, new double[] {imagePlaneCoordinates.get(0).x, imagePlaneCoordinates.get(0).y});
@@ -105,26 +177,36 @@ public class CalibrationHelper implements Parcelable, Serializable {
 		_cachedImagePlane2WorldCoordinates = worldCorrdinates2imagePlaneCoordinates;
 	}
 	
+	/**
+	 * @return the ground-plane coordinates of the supplied image-plane coordinates, see
+	 *  {@link #calculateGroundPlaneCoordinates(Point, Point)}
+	 */
 	public Point calculateGroundPlaneCoordinates(Point imagePlaneCoordinates) {
+		Point groundPlaneCoordinates = new Point();
+		calculateGroundPlaneCoordinates(imagePlaneCoordinates, groundPlaneCoordinates);
+		return groundPlaneCoordinates;
+	}
 
-		Mat imagePlane2WorldCoordinates = getHomogenousMat();
-
-		// get homogeneous coordinates out of supplied imagePlaneCoordinates
-		Mat mat3 = new Mat(3, 1, CvType.CV_64FC1);
-		mat3.put(0, 0, new double[] { imagePlaneCoordinates.x, imagePlaneCoordinates.y, 1.0f });
-
-		Mat dest = new Mat(3, 1, CvType.CV_64FC1);
-		// 3*3*CV_64FC1 x 3*1*CV_64FC1 -> 3*1*CV_64FC1
+	/**
+	 * like {@link #calculateGroundPlaneCoordinates(Point)}, but stores the result in the supplied point
+	 * (which may be imagePlaneCoordinates itself); uses the lookup table if one has been built and the
+	 * point lies within it
+	 */
+	public void calculateGroundPlaneCoordinates(Point imagePlaneCoordinates, Point groundPlaneCoordinates) {
+		GroundPlaneLookupTable lookupTable = _lookupTable;
+		if (lookupTable != null && lookupTable.contains(imagePlaneCoordinates.x, imagePlaneCoordinates.y))
+			lookupTable.lookup(imagePlaneCoordinates.x, imagePlaneCoordinates.y, groundPlaneCoordinates);
+		else
+			getProjector().project(imagePlaneCoordinates.x, imagePlaneCoordinates.y, groundPlaneCoordinates);
+	}
 
-		// see
-		// http://stackoverflow.com/questions/10168058/basic-matrix-multiplication-in-opencv-for-android
-		// Core.multiply(imagePlane2WorldCoordinates, mat3, dest);
-		Core.gemm(imagePlane2WorldCoordinates, mat3, 1, new Mat(), 0, dest, 0);
-		return new Point(dest.get(0, 0)[0] / dest.get(2, 0)[0],
-				dest.get(1, 0)[0] / dest.get(2, 0)[0]); // convert into
-														// homogeneous
-														// coordinate with form
-														// (x,y,1)
+	/**
+	 * projects count points stored interleaved (x0, y0, x1, y1, ...) in imagePlaneCoordinates and stores
+	 * their ground-plane coordinates the same way in groundPlaneCoordinates (which may be the same array)
+	 */
+	public void calculateGroundPlaneCoordinates(double[] imagePlaneCoordinates, double[] groundPlaneCoordinates,
+			int count) {
+		getProjector().projectAll(imagePlaneCoordinates, 0, groundPlaneCoordinates, 0, count);
 	}
 
 	/********************** Parceling **********************/
@@ -170,6 +252,7 @@ public class CalibrationHelper implements Parcelable, Serializable {
 	private void writeObject(java.io.ObjectOutputStream out) throws IOException {
 		out.writeObject(_imagePlaneCoordinates);
 		out.writeObject(convertToArrayList(_worldCoordinates));
+		out.writeObject(_lookupTable);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -178,6 +261,13 @@ public class CalibrationHelper implements Parcelable, Serializable {
 		_imagePlaneCoordinates = (ArrayList<ParcelablePoint>) in.readObject();
 		_worldCoordinates = convertToMatOfPoints((List<Point>) in.readObject());
 		_cachedImagePlane2WorldCoordinates = null;
+		_cachedProjector = null;
+		try {
+			_lookupTable = (GroundPlaneLookupTable) in.readObject();
+		} catch (OptionalDataException e) {
+			// saved before lookup tables have been introduced
+			_lookupTable = null;
+		}
 	}
 	/********************** end-Serializing **********************/
 
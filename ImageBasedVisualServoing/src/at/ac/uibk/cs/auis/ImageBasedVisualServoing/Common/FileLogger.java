@@ -0,0 +1,257 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.os.Environment;
+
+/**
+ * Writes log-messages to a file on the external storage without blocking the caller:
+ * messages are put into a preallocated ring buffer and written in batches by a single background thread
+ * shared by all loggers. If the ring buffer is full, messages are dropped (and the number of dropped
+ * messages is written instead) rather than waiting for the disk.
+ *
+ * Like the per-call <code>log2File</code>-methods this class replaces, the file is truncated when
+ * the first batch is written and every line has the format <code>HH:mm:ss:SSS by #threadId: message</code>.
+ *
+ * The writer thread is a daemon, so whatever is still queued when the process dies is lost: call {@link #flush()}
+ * or {@link #close()} (or {@link #closeAll()}) when the app is paused. A closed logger can still be used, the file
+ * is reopened (and appended to) by the next batch.
+ */
+public class FileLogger {
+	private static final int CAPACITY = 1024;
+	private static final long FLUSH_INTERVAL_MS = 250;
+
+	private static final Object writerLock = new Object();
+	private static final List<FileLogger> loggers = new ArrayList<FileLogger>();
+	private static Thread writerThread;
+
+	private final String _fileName;
+
+	// ring buffer, guarded by this
+	private final String[] _messages = new String[CAPACITY];
+	private final long[] _timestamps = new long[CAPACITY];
+	private final long[] _threadIds = new long[CAPACITY];
+	private int _head;
+	private int _count;
+	private long _droppedMessages;
+
+	// used by the writer thread and by flush() and close(), guarded by _writeLock
+	private final Object _writeLock = new Object();
+	private final String[] _batchMessages = new String[CAPACITY];
+	private final long[] _batchTimestamps = new long[CAPACITY];
+	private final long[] _batchThreadIds = new long[CAPACITY];
+	private final StringBuilder _line = new StringBuilder();
+	private char[] _lineChars = new char[256];
+	private final DateFormat _dateFormat = new SimpleDateFormat("HH:mm:ss:");
+	private final Date _date = new Date();
+	private long _cachedSecond = -1;
+	private String _cachedSecondPrefix;
+	private BufferedWriter _writer;
+	private boolean _isTruncated;
+	private long _reportedDroppedMessages;
+
+	private FileLogger(String fileName) {
+		_fileName = fileName;
+	}
+
+	/**
+	 * @return the logger writing to the file with the supplied name (within the external storage directory)
+	 */
+	public static FileLogger getLogger(String fileName) {
+		synchronized (loggers) {
+			for (FileLogger logger : loggers) {
+				if (logger._fileName.equals(fileName))
+					return logger;
+			}
+
+			FileLogger logger = new FileLogger(fileName);
+			loggers.add(logger);
+			if (writerThread == null) {
+				writerThread = new Thread(new BatchWriter(), "FileLogger");
+				writerThread.setDaemon(true);
+				writerThread.start();
+			}
+			return logger;
+		}
+	}
+
+	/**
+	 * queues the message; never blocks on I/O
+	 */
+	public void log(String message) {
+		long timestamp = System.currentTimeMillis();
+		long threadId = Thread.currentThread().getId();
+
+		boolean isHalfFull;
+		synchronized (this) {
+			if (_count == CAPACITY) {
+				_droppedMessages++;
+				return;
+			}
+
+			int index = (_head + _count) % CAPACITY;
+			_messages[index] = message;
+			_timestamps[index] = timestamp;
+			_threadIds[index] = threadId;
+			_count++;
+			isHalfFull = _count == CAPACITY / 2;
+		}
+
+		if (isHalfFull) {
+			synchronized (writerLock) {
+				writerLock.notify();
+			}
+		}
+	}
+
+	/**
+	 * writes all queued messages to the file now (on the calling thread) and flushes it
+	 */
+	public void flush() {
+		synchronized (_writeLock) {
+			writeBatch();
+		}
+	}
+
+	/**
+	 * writes all queued messages and closes the file
+	 */
+	public void close() {
+		synchronized (_writeLock) {
+			writeBatch();
+			closeWriter();
+		}
+	}
+
+	/**
+	 * closes all loggers, see {@link #close()}
+	 */
+	public static void closeAll() {
+		List<FileLogger> snapshot;
+		synchronized (loggers) {
+			snapshot = new ArrayList<FileLogger>(loggers);
+		}
+		for (FileLogger logger : snapshot)
+			logger.close();
+	}
+
+	/**
+	 * @return the number of messages dropped so far because the ring buffer was full
+	 */
+	public synchronized long getDroppedMessages() {
+		return _droppedMessages;
+	}
+
+	/*
+	 * (non-javadoc)
+	 * takes all queued messages out of the ring buffer and writes them; must be called with _writeLock held
+	 */
+	private void writeBatch() {
+		int count;
+		long droppedMessages;
+		synchronized (this) {
+			count = _count;
+			for (int i = 0; i < count; i++) {
+				int index = (_head + i) % CAPACITY;
+				_batchMessages[i] = _messages[index];
+				_batchTimestamps[i] = _timestamps[index];
+				_batchThreadIds[i] = _threadIds[index];
+				_messages[index] = null;
+			}
+			_head = (_head + count) % CAPACITY;
+			_count = 0;
+			droppedMessages = _droppedMessages;
+		}
+
+		if (count == 0)
+			return;
+
+		try {
+			if (_writer == null) {
+				File file = new File(Environment.getExternalStorageDirectory(), _fileName);
+				_writer = new BufferedWriter(new FileWriter(file, _isTruncated));
+				_isTruncated = true;
+			}
+
+			for (int i = 0; i < count; i++) {
+				writeLine(_batchTimestamps[i], _batchThreadIds[i], _batchMessages[i]);
+				_batchMessages[i] = null;
+			}
+			if (droppedMessages > _reportedDroppedMessages) {
+				writeLine(System.currentTimeMillis(), Thread.currentThread().getId(),
+						(droppedMessages - _reportedDroppedMessages) + " messages dropped (ring buffer full)");
+				_reportedDroppedMessages = droppedMessages;
+			}
+			_writer.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			for (int i = 0; i < count; i++)
+				_batchMessages[i] = null;
+			closeWriter();
+		}
+	}
+
+	private void writeLine(long timestamp, long threadId, String message) throws IOException {
+		long second = timestamp / 1000;
+		if (second != _cachedSecond) {
+			_date.setTime(second * 1000);
+			_cachedSecondPrefix = _dateFormat.format(_date);
+			_cachedSecond = second;
+		}
+
+		int millis = (int) (timestamp % 1000);
+		_line.setLength(0);
+		_line.append(_cachedSecondPrefix);
+		if (millis < 100)
+			_line.append('0');
+		if (millis < 10)
+			_line.append('0');
+		_line.append(millis).append(" by #").append(threadId).append(": ").append(message).append("\r\n");
+		if (_lineChars.length < _line.length())
+			_lineChars = new char[2 * _line.length()];
+		_line.getChars(0, _line.length(), _lineChars, 0);
+		_writer.write(_lineChars, 0, _line.length());
+	}
+
+	private void closeWriter() {
+		if (_writer == null)
+			return;
+
+		try {
+			_writer.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		_writer = null;
+	}
+
+	private static class BatchWriter implements Runnable {
+		public void run() {
+			List<FileLogger> snapshot = new ArrayList<FileLogger>();
+			while (true) {
+				synchronized (writerLock) {
+					try {
+						writerLock.wait(FLUSH_INTERVAL_MS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+
+				snapshot.clear();
+				synchronized (loggers) {
+					snapshot.addAll(loggers);
+				}
+				for (FileLogger logger : snapshot)
+					logger.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common;
+
+import java.io.Serializable;
+
+import org.opencv.core.Point;
+
+/**
+ * Precomputed ground-plane coordinates for the pixels of the camera image, so that mapping a point does not
+ * need the homography at run time.
+ *
+ * The table stores the projection of every step-th pixel in both directions (step 1 stores every pixel, which
+ * needs 8 bytes per pixel); points in between are interpolated bilinearly. Since the homography is not linear,
+ * interpolation introduces an error which grows with the step and with the perspective distortion, see
+ * {@link #measureError(HomographyProjector)}. Rows above the horizon (if it is within the image) are meaningless.
+ */
+public class GroundPlaneLookupTable implements Serializable {
+	private static final long serialVersionUID = -2671862411478049346L;
+
+	private final int _width;
+	private final int _height;
+	private final int _step;
+	private final int _columns;
+	private final int _rows;
+	// ground-plane coordinates of the grid-points, row by row
+	private final float[] _x;
+	private final float[] _y;
+
+	/**
+	 * @param width
+	 *  the width of the camera image in pixel
+	 * @param height
+	 *  the height of the camera image in pixel
+	 * @param step
+	 *  the distance between the grid-points in pixel (1 for a dense table)
+	 */
+	public GroundPlaneLookupTable(HomographyProjector projector, int width, int height, int step) {
+		if (width <= 0 || height <= 0 || step <= 0)
+			throw new IllegalArgumentException("invalid size " + width + "x" + height + ", step " + step);
+
+		_width = width;
+		_height = height;
+		_step = step;
+		// the last grid-point lies on or beyond the last pixel
+		_columns = (width - 1 + step - 1) / step + 1;
+		_rows = (height - 1 + step - 1) / step + 1;
+		_x = new float[_columns * _rows];
+		_y = new float[_columns * _rows];
+
+		Point groundPlane = new Point();
+		for (int row = 0; row < _rows; row++) {
+			for (int column = 0; column < _columns; column++) {
+				projector.project(column * step, row * step, groundPlane);
+				_x[row * _columns + column] = (float) groundPlane.x;
+				_y[row * _columns + column] = (float) groundPlane.y;
+			}
+		}
+	}
+
+	/**
+	 * restores a table from its grid (see {@link CalibrationFile})
+	 */
+	GroundPlaneLookupTable(int width, int height, int step, float[] x, float[] y) {
+		if (width <= 0 || height <= 0 || step <= 0)
+			throw new IllegalArgumentException("invalid size " + width + "x" + height + ", step " + step);
+
+		_width = width;
+		_height = height;
+		_step = step;
+		_columns = (width - 1 + step - 1) / step + 1;
+		_rows = (height - 1 + step - 1) / step + 1;
+		if (x.length != _columns * _rows || y.length != _columns * _rows)
+			throw new IllegalArgumentException("grid does not match the size");
+		_x = x;
+		_y = y;
+	}
+
+	public int getWidth() {
+		return _width;
+	}
+
+	public int getHeight() {
+		return _height;
+	}
+
+	public int getStep() {
+		return _step;
+	}
+
+	int getGridPoints() {
+		return _x.length;
+	}
+
+	float[] getGridX() {
+		return _x;
+	}
+
+	float[] getGridY() {
+		return _y;
+	}
+
+	/**
+	 * @return the size of the table in bytes
+	 */
+	public int getMemoryBytes() {
+		return 8 * _x.length;
+	}
+
+	/**
+	 * @return whether the supplied image-plane coordinates lie within the image the table has been built for
+	 */
+	public boolean contains(double x, double y) {
+		return x >= 0 && y >= 0 && x <= _width - 1 && y <= _height - 1;
+	}
+
+	/**
+	 * stores the (interpolated) ground-plane coordinates of the supplied image-plane coordinates in dst
+	 * (see {@link #contains(double, double)}); for whole pixels and a dense table this is a plain array read
+	 */
+	public void lookup(double x, double y, Point dst) {
+		if (!contains(x, y))
+			throw new IndexOutOfBoundsException("(" + x + ", " + y + ") is not within the image");
+
+		if (_step == 1 && x == (int) x && y == (int) y) {
+			int index = (int) y * _columns + (int) x;
+			dst.x = _x[index];
+			dst.y = _y[index];
+			return;
+		}
+
+		double gridX = x / _step;
+		double gridY = y / _step;
+		int column = Math.min((int) gridX, _columns - 2);
+		int row = Math.min((int) gridY, _rows - 2);
+		if (_columns == 1)
+			column = 0;
+		if (_rows == 1)
+			row = 0;
+		double fx = gridX - column;
+		double fy = gridY - row;
+
+		int index = row * _columns + column;
+		int right = _columns > 1 ? 1 : 0;
+		int below = _rows > 1 ? _columns : 0;
+		dst.x = interpolate(_x, index, right, below, fx, fy);
+		dst.y = interpolate(_y, index, right, below, fx, fy);
+	}
+
+	private static double interpolate(float[] values, int index, int right, int below, double fx, double fy) {
+		double top = values[index] + fx * (values[index + right] - values[index]);
+		double bottom = values[index + below] + fx * (values[index + below + right] - values[index + below]);
+		return top + fy * (bottom - top);
+	}
+
+	/**
+	 * compares the table with the exact projection at every pixel
+	 *
+	 * @return the mean and the maximum distance (in ground-plane units) between looked up and exact coordinates
+	 */
+	public double[] measureError(HomographyProjector projector) {
+		Point exact = new Point();
+		Point lookedUp = new Point();
+		double sum = 0;
+		double max = 0;
+		long count = 0;
+		for (int y = 0; y < _height; y++) {
+			for (int x = 0; x < _width; x++) {
+				projector.project(x, y, exact);
+				lookup(x, y, lookedUp);
+				double error = Math.hypot(exact.x - lookedUp.x, exact.y - lookedUp.y);
+				// pixels on the horizon have no ground-plane coordinates
+				if (Double.isNaN(error))
+					continue;
+				sum += error;
+				count++;
+				if (error > max)
+					max = error;
+			}
+		}
+		return new double[] { count == 0 ? 0 : sum / count, max };
+	}
+}
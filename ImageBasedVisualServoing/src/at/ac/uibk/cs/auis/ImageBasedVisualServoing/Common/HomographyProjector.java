@@ -0,0 +1,107 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+/**
+ * Maps points with a 3x3-homography using plain arithmetic on a cached copy of the matrix:
+ * no native calls and no allocations, the results are written into output supplied by the caller.
+ *
+ * The matrix is stored row by row, i.e. (x', y', w) = H * (x, y, 1) and the projected point is (x'/w, y'/w).
+ * Points at infinity (w = 0) are mapped to NaN.
+ */
+public class HomographyProjector {
+	private final double _h0, _h1, _h2, _h3, _h4, _h5, _h6, _h7, _h8;
+
+	/**
+	 * @param homography
+	 *  the 9 elements of the matrix, row by row
+	 */
+	public HomographyProjector(double[] homography) {
+		if (homography.length != 9)
+			throw new IllegalArgumentException("homography must have 9 elements");
+
+		_h0 = homography[0];
+		_h1 = homography[1];
+		_h2 = homography[2];
+		_h3 = homography[3];
+		_h4 = homography[4];
+		_h5 = homography[5];
+		_h6 = homography[6];
+		_h7 = homography[7];
+		_h8 = homography[8];
+	}
+
+	/**
+	 * @return the 9 elements of the supplied 3x3-matrix (of any depth), row by row
+	 */
+	public static double[] toArray(Mat homography) {
+		if (homography.rows() != 3 || homography.cols() != 3)
+			throw new IllegalArgumentException("homography must be a 3x3-matrix");
+
+		Mat converted = homography;
+		if (homography.type() != CvType.CV_64FC1) {
+			converted = new Mat();
+			homography.convertTo(converted, CvType.CV_64FC1);
+		}
+		double[] elements = new double[9];
+		converted.get(0, 0, elements);
+		return elements;
+	}
+
+	/**
+	 * @return the elements of the matrix, row by row
+	 */
+	public double[] getHomography() {
+		return new double[] { _h0, _h1, _h2, _h3, _h4, _h5, _h6, _h7, _h8 };
+	}
+
+	/**
+	 * projects (x, y) and stores the result in dst (may be the source-point)
+	 */
+	public void project(double x, double y, Point dst) {
+		double w = _h6 * x + _h7 * y + _h8;
+		if (w == 0) {
+			dst.x = Double.NaN;
+			dst.y = Double.NaN;
+			return;
+		}
+		double invW = 1.0 / w;
+		dst.x = (_h0 * x + _h1 * y + _h2) * invW;
+		dst.y = (_h3 * x + _h4 * y + _h5) * invW;
+	}
+
+	/**
+	 * projects (x, y) and stores the result at dst[dstOffset] and dst[dstOffset + 1]
+	 */
+	public void project(double x, double y, double[] dst, int dstOffset) {
+		double w = _h6 * x + _h7 * y + _h8;
+		if (w == 0) {
+			dst[dstOffset] = Double.NaN;
+			dst[dstOffset + 1] = Double.NaN;
+			return;
+		}
+		double invW = 1.0 / w;
+		dst[dstOffset] = (_h0 * x + _h1 * y + _h2) * invW;
+		dst[dstOffset + 1] = (_h3 * x + _h4 * y + _h5) * invW;
+	}
+
+	/**
+	 * projects count points stored interleaved (x0, y0, x1, y1, ...) in src, starting at srcOffset,
+	 * and stores them the same way in dst, starting at dstOffset; src and dst may be the same array
+	 * if the offsets are equal
+	 */
+	public void projectAll(double[] src, int srcOffset, double[] dst, int dstOffset, int count) {
+		if (srcOffset < 0 || dstOffset < 0 || count < 0 || srcOffset + 2 * count > src.length
+				|| dstOffset + 2 * count > dst.length)
+			throw new IndexOutOfBoundsException();
+
+		for (int i = 0; i < count; i++) {
+			double x = src[srcOffset++];
+			double y = src[srcOffset++];
+			project(x, y, dst, dstOffset);
+			dstOffset += 2;
+		}
+	}
+}
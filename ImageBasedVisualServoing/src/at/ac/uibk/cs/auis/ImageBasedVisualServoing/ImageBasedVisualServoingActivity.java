@@ -4,22 +4,17 @@ import ioio.lib.api.exception.ConnectionLostException;
 import ioio.lib.util.IOIOLooper;
 import ioio.lib.util.android.IOIOActivity;
 
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.CameraBridgeViewBase;
 import org.opencv.android.CameraBridgeViewBase.CvCameraViewFrame;
 import org.opencv.android.CameraBridgeViewBase.CvCameraViewListener2;
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewNv21Frame;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Core;
@@ -32,7 +27,6 @@ import org.opencv.imgproc.Imgproc;
 
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
@@ -49,14 +43,19 @@ import android.widget.TextView;
 import android.widget.Toast;
 import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Calibration.CalibrationActivity;
 import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Calibration.CalibrationChessboardActivity;
+import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common.CalibrationFile;
 import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common.CalibrationHelper;
 import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common.DrawHelper;
+import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common.FileLogger;
+import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common.GroundPlaneLookupTable;
 import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common.NavigationCalibrationHelper;
 import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Navigation.NavigationCalibrationActivity;
 import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Navigation.NavigationConstants;
 import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Robot.Robot;
 import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Robot.SubsumptionArchiteture.Level1;
 import at.ac.uibk.cs.auis.Tracker.ColorBasedTracker;
+import at.ac.uibk.cs.auis.Tracker.ConnectedComponentsTracker;
+import at.ac.uibk.cs.auis.Tracker.Tracker;
 import at.ac.uibk.cs.auis.Tracker.TrackerHelper;
 
 /**
@@ -74,7 +73,12 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 	private Button _resetFsmsButton;
 	private TextView _textView;
 
-	private Mat hsv;
+	private Mat hsvBuffer; // reused for every frame, used by the camera thread only
+
+	// a color-pick requested by onTouch (in image coordinates); the camera thread samples the color from its next
+	// frame, so the camera's Mats are never touched by the UI thread
+	private final Object pickLock = new Object();
+	private Point pendingPick;
 
 	private MenuItem CreateCalibrationMenuItem;
 	private MenuItem CreateCalibrationChessboardMenuItem;
@@ -83,37 +87,27 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 	private MenuItem CalibrteWorldMenuItem;
 
 	private ColorBasedTracker colorBasedTracker = new ColorBasedTracker();
+	private ConnectedComponentsTracker nv21Tracker = new ConnectedComponentsTracker(); // tracks the camera's NV21 data directly
 	private TrackerHelper trackerHelper = new TrackerHelper();
 
 	private CalibrationHelper calibrationHelper;
 	private NavigationCalibrationHelper navigationCalibrationHelper;
 
+	// grid-spacing of the image->ground-plane lookup table in pixel: the tracked points are whole pixels, so a
+	// dense table maps them with a single array read (8 bytes per pixel, see GroundPlaneLookupTable)
+	private static final int LOOKUP_TABLE_STEP = 1;
+	private int cameraWidth;
+	private int cameraHeight;
+
 	private static final Scalar INDICATING_COLOR = new Scalar(0xbf, 0xfe, 0x00,
 			0x00);
 	private boolean isTrackingColorSet = false;
 
 	
-	private static boolean append2File = false;
+	private static final FileLogger fileLogger = FileLogger.getLogger("ImageBasedVisualServoing.txt");
 
 	private static void log2File(String message) {
-		File root = Environment.getExternalStorageDirectory();
-		File file = new File(root, "ImageBasedVisualServoing.txt");
-		FileWriter filewriter;
-		try {
-			filewriter = new FileWriter(file, append2File);
-			if (append2File == false)
-				append2File = true;
-			BufferedWriter bufferedWriter = new BufferedWriter(filewriter);
-			DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss:SSS");
-
-			Date date = new Date();
-			bufferedWriter.write(dateFormat.format(date) + " by #"
-					+ Thread.currentThread().getId() + ": " + message + "\r\n");
-			bufferedWriter.close();
-			filewriter.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		fileLogger.log(message);
 	}
 	
 	
@@ -153,6 +147,7 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 		mOpenCvCameraView = (CameraBridgeViewBase) findViewById(R.id.camera_view);
 		mOpenCvCameraView.setVisibility(SurfaceView.VISIBLE);
 		mOpenCvCameraView.setCvCameraViewListener(this);
+		mOpenCvCameraView.setPipelinedRendering(true); // drawing the preview must not slow down tracking
 		mOpenCvCameraView.setOnClickListener(new OnClickListener() {
 			public void onClick(View v) {
 				mOpenCvCameraView.setClickable(false);
@@ -172,6 +167,8 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 		
 		_textView = (TextView)findViewById(R.id.TextView);
 		
+		colorBasedTracker.setRegionOfInterestTracking(true);
+		nv21Tracker.setRegionOfInterestTracking(true);
 
 		Bundle b = getIntent().getExtras();
 		if (b == null) {
@@ -204,6 +201,8 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 		super.onPause();
 		if (mOpenCvCameraView != null)
 			mOpenCvCameraView.disableView();
+		// the process may be killed while paused, the logger's writer thread would not get to write the rest
+		FileLogger.closeAll();
 	}
 
 	@Override
@@ -217,6 +216,7 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 		super.onDestroy();
 		if (mOpenCvCameraView != null)
 			mOpenCvCameraView.disableView();
+		FileLogger.closeAll();
 	}
 
 	// ------------------------------------------ /ANDROID LIFECYLCE
@@ -321,32 +321,87 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 	// ------------------------------------------ CAMERA MANAGEMENT
 	// ------------------------------------------
 	public void onCameraViewStarted(int width, int height) {
+		cameraWidth = width;
+		cameraHeight = height;
+		buildLookupTable();
+	}
+
+	/**
+	 * precomputes the ground-plane coordinates for the camera's resolution (a no-op if the calibration already
+	 * contains a matching table)
+	 */
+	private void buildLookupTable() {
+		if (calibrationHelper == null || cameraWidth == 0)
+			return;
+
+		GroundPlaneLookupTable previous = calibrationHelper.getLookupTable();
+		GroundPlaneLookupTable lookupTable = calibrationHelper.buildLookupTable(cameraWidth, cameraHeight,
+				LOOKUP_TABLE_STEP);
+		if (lookupTable == previous)
+			return;
+		double[] error = lookupTable.measureError(calibrationHelper.getProjector());
+		Log.i(TAG, "Built lookup table for " + cameraWidth + "x" + cameraHeight + " (step " + LOOKUP_TABLE_STEP
+				+ "): " + lookupTable.getMemoryBytes() / 1024 + "KB, mean error " + error[0] + ", max error "
+				+ error[1]);
 	}
 
 	public void onCameraViewStopped() {
+		colorBasedTracker.release();
+		nv21Tracker.release();
+		if (hsvBuffer != null) {
+			hsvBuffer.release();
+			hsvBuffer = null;
+		}
 	}
 
 	public Mat onCameraFrame(CvCameraViewFrame inputFrame) {
+		Point pick;
+		synchronized (pickLock) {
+			pick = pendingPick;
+			pendingPick = null;
+		}
 
-		Mat rgba = inputFrame.rgba();
+		boolean isNv21Tracking = isTrackingColorSet && inputFrame instanceof CvCameraViewNv21Frame;
 
-		if (isTrackingColorSet) {
-			hsv = new Mat();
-			Imgproc.cvtColor(rgba, hsv, Imgproc.COLOR_RGB2HSV_FULL);
+		// when tracking the camera's data directly, the RGBA-frame is only needed for the preview (or a color-pick)
+		Mat rgba = null;
+		if (!isNv21Tracking || pick != null || mOpenCvCameraView.isRenderingCurrentFrame())
+			rgba = inputFrame.rgba();
 
+		// the HSV-frame, if it has been converted for tracking
+		Mat hsv = null;
+		if (isTrackingColorSet) {
+			Tracker tracker;
 			Point[] lowestPoints = null;
-			try {
-				// lowestPoints =
-				// colorBasedTracker.getLowestBoundOfContours(hsv, 2); // 2
-				// beacons SHOULD be in view
-				lowestPoints = colorBasedTracker.getLowestBoundOfContours(hsv, 1); // 2 beacons SHOULD be in view
-
-			} catch (IllegalArgumentException e) {
+			if (isNv21Tracking) {
+				// threshold the camera's data directly, the HSV-frame is only needed if the user picks a new color
+				CvCameraViewNv21Frame nv21Frame = (CvCameraViewNv21Frame) inputFrame;
+				tracker = nv21Tracker;
+				try {
+					lowestPoints = nv21Tracker.getLowestBoundOfContoursFromNv21(nv21Frame.nv21(), nv21Frame.width(), nv21Frame.height(), 1);
+				} catch (IllegalArgumentException e) {
+				}
+			} else {
+				if (hsvBuffer == null)
+					hsvBuffer = new Mat();
+				hsv = hsvBuffer;
+				Imgproc.cvtColor(rgba, hsv, Imgproc.COLOR_RGB2HSV_FULL);
+
+				tracker = colorBasedTracker;
+				try {
+					// lowestPoints =
+					// colorBasedTracker.getLowestBoundOfContours(hsv, 2); // 2
+					// beacons SHOULD be in view
+					lowestPoints = colorBasedTracker.getLowestBoundOfContours(hsv, 1); // 2 beacons SHOULD be in view
+
+				} catch (IllegalArgumentException e) {
+				}
 			}
 
 			try {
 				for (Point point : lowestPoints) {
-					rgba = DrawHelper.drawPoint(rgba, point, new Scalar(0xFF, 0x00,0x00, 0x00));
+					if (rgba != null)
+						rgba = DrawHelper.drawPoint(rgba, point, new Scalar(0xFF, 0x00,0x00, 0x00));
 					if(calibrationHelper!=null) {
 						Point groundPlane = calibrationHelper.calculateGroundPlaneCoordinates(point);
 						
@@ -356,19 +411,42 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 					}
 				}
 	
-				for (Rect rect : colorBasedTracker.getBoundingRects())
-					rgba = DrawHelper.drawRectangle(rgba, rect, INDICATING_COLOR);
+				if (rgba != null) {
+					for (Rect rect : tracker.getBoundingRects())
+						rgba = DrawHelper.drawRectangle(rgba, rect, INDICATING_COLOR);
+				}
 			
 			} catch (Exception e) {
 				Log.e(TAG, e.getMessage());
 			}
-		} else {
-			hsv = rgba;
 		}
 
+		if (pick != null)
+			pickColor(rgba, hsv, pick);
+
 		return rgba;
 	}
 
+	/*
+	 * (non-javadoc)
+	 * called on the camera thread: sets the color around the picked point as the color to be tracked
+	 */
+	private void pickColor(Mat rgba, Mat hsv, Point pick) {
+		Mat frame = hsv;
+		if (frame == null) {
+			// the frame has not been converted to HSV for tracking
+			if (hsvBuffer == null)
+				hsvBuffer = new Mat();
+			Imgproc.cvtColor(rgba, hsvBuffer, Imgproc.COLOR_RGB2HSV_FULL);
+			frame = hsvBuffer;
+		}
+
+		Scalar colorForTracking = trackerHelper.calcColorForTracking(frame, pick);
+		colorBasedTracker.setColorForTrackingHSV(colorForTracking);
+		nv21Tracker.setColorForTrackingHSV(colorForTracking);
+		isTrackingColorSet = true;
+	}
+
 	// ------------------------------------------ /CAMERA MANAGEMENT
 	// ------------------------------------------
 
@@ -383,22 +461,29 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 
 	// ------------------------------------------ SERIALIZATION
 	// ------------------------------------------
+	// binary calibration-file, see CalibrationFile
+	private static final String CALIBRATION_FILE = "calibration.bin";
+	// Java-serialized calibration written by former versions, only read if there is no binary file
+	private static final String LEGACY_CALIBRATION_FILE = "calibrationHelper.bndl";
+
 	private void SerializeCalibration() {
 		if (calibrationHelper == null) {
 			Log.e(TAG, "No calibration data to be serialized");
 			Toast.makeText(getApplicationContext(),
 					"Camera has not yet been calibrated.", Toast.LENGTH_LONG)
 					.show();
+			return;
 		}
 
 		try {
 			FileOutputStream fos = getApplicationContext().openFileOutput(
-					"calibrationHelper.bndl",
+					CALIBRATION_FILE,
 					getApplicationContext().MODE_PRIVATE);
-			ObjectOutputStream oos = new ObjectOutputStream(fos);
-			oos.writeObject(calibrationHelper);
-			oos.flush();
-			oos.close();
+			try {
+				CalibrationFile.write(calibrationHelper, fos);
+			} finally {
+				fos.close();
+			}
 			Toast.makeText(getApplicationContext(),
 					"Calibration-data saved successfully", Toast.LENGTH_LONG)
 					.show();
@@ -413,11 +498,26 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 
 	private void DeSerializeCalibration() {
 		try {
-			FileInputStream fis = getApplicationContext().openFileInput(
-					"calibrationHelper.bndl");
-			ObjectInputStream ois = new ObjectInputStream(fis);
-			calibrationHelper = (CalibrationHelper) ois.readObject();
-			ois.close();
+			FileInputStream fis;
+			try {
+				fis = getApplicationContext().openFileInput(CALIBRATION_FILE);
+			} catch (FileNotFoundException e) {
+				fis = null;
+			}
+			if (fis != null) {
+				try {
+					calibrationHelper = CalibrationFile.read(fis);
+				} finally {
+					fis.close();
+				}
+			} else {
+				Log.i(TAG, "No binary calibration-file, trying " + LEGACY_CALIBRATION_FILE);
+				fis = getApplicationContext().openFileInput(LEGACY_CALIBRATION_FILE);
+				ObjectInputStream ois = new ObjectInputStream(fis);
+				calibrationHelper = (CalibrationHelper) ois.readObject();
+				ois.close();
+			}
+			buildLookupTable();
 			Toast.makeText(getApplicationContext(),
 					"Calibration-data loaded successfully", Toast.LENGTH_LONG)
 					.show();
@@ -468,8 +568,11 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 				//_textView.setText("Reset FSMs");
 			}
 			
-			int cols = hsv.cols();
-			int rows = hsv.rows();
+			// the camera's frames have the size reported to onCameraViewStarted
+			int cols = cameraWidth;
+			int rows = cameraHeight;
+			if (cols == 0)
+				return false;
 	
 			int xOffset = (mOpenCvCameraView.getWidth() - cols) / 2;
 			int yOffset = (mOpenCvCameraView.getHeight() - rows) / 2;
@@ -484,9 +587,9 @@ public class ImageBasedVisualServoingActivity extends IOIOActivity implements
 			if ((x < 0) || (y < 0) || (x > cols) || (y > rows))
 				return false;
 	
-			colorBasedTracker.setColorForTrackingHSV(trackerHelper
-					.calcColorForTracking(hsv, new Point(x, y)));
-			isTrackingColorSet = true;
+			synchronized (pickLock) {
+				pendingPick = new Point(x, y);
+			}
 		}
 
 		return true;
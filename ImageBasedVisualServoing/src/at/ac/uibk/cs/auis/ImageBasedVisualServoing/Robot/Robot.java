@@ -1,59 +1,40 @@
 package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Robot;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
-import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
+import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common.FileLogger;
 import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Robot.SubsumptionArchiteture.Level1;
 import ioio.lib.api.DigitalInput;
 import ioio.lib.api.DigitalOutput;
 import ioio.lib.api.PwmOutput;
 import ioio.lib.api.TwiMaster;
 import ioio.lib.api.exception.ConnectionLostException;
-import ioio.lib.util.BaseIOIOLooper;
+import ioio.lib.util.FixedRateIOIOLooper;
 
-public class Robot extends BaseIOIOLooper {
+public class Robot extends FixedRateIOIOLooper {
 	//private DigitalOutput _led;
 	private PwmOutput _servo;
 	//private DigitalInput _lint;
-	private TwiMaster _twi;
+	private TwiCommandQueue _commandQueue;
+	private volatile int _sensorState = -1; // the last sensor reading, -1 if none has succeeded yet
 	private Handler _handler;
 
 	private static final String TAG = "Auis::Robot";
+	private static final float LOOP_RATE_HZ = 20;
+	private static final int ROBOT_TWI_ADDRESS = 0x69;
+	private static final int MAX_COMMANDS_IN_FLIGHT = 4;
+	private static final long TWI_TIMEOUT_MS = 100;
 
-	private static boolean append2File = false;
-	private static void log2File(String message) {
-		File root = Environment.getExternalStorageDirectory();
-		File file = new File(root, "robot.txt");
-		FileWriter filewriter;
-		try {
-			filewriter = new FileWriter(file, append2File);
-			if(append2File==false)
-				append2File = true;
-			BufferedWriter bufferedWriter = new BufferedWriter(filewriter);
-			DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss:SSS");
+	private static final FileLogger fileLogger = FileLogger.getLogger("robot.txt");
 
-			Date date = new Date();
-			bufferedWriter.write(dateFormat.format(date) + " by #" + Thread.currentThread().getId() + ": " + message
-					+ "\r\n");
-			bufferedWriter.close();
-			filewriter.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	private static void log2File(String message) {
+		fileLogger.log(message);
 	}
 	private Level1 _level1;
 
 	public Robot(Handler handler, Level1 level1) {
+		super(LOOP_RATE_HZ);
 		log2File("In Robot-ctor");
 		_handler = handler;
 		_level1 = level1;
@@ -84,7 +65,10 @@ public class Robot extends BaseIOIOLooper {
 			//_lint = ioio_.openDigitalInput(1, DigitalInput.Spec.Mode.PULL_UP);
 
 			log2File("opening TwiMaster");
-			_twi = ioio_.openTwiMaster(1, TwiMaster.Rate.RATE_100KHz, false);
+			if (_commandQueue != null)
+				_commandQueue.close();
+			_commandQueue = new TwiCommandQueue(ioio_, 1, TwiMaster.Rate.RATE_100KHz, ROBOT_TWI_ADDRESS,
+					MAX_COMMANDS_IN_FLIGHT, TWI_TIMEOUT_MS);
 
 			log2File("opening PWM-Output and setting duty cylce");
 			_servo = ioio_.openPwmOutput(10, 50);
@@ -96,22 +80,20 @@ public class Robot extends BaseIOIOLooper {
 	}
 
 	/**
-	 * Called repetitively while the IOIO is connected.
+	 * Called LOOP_RATE_HZ times per second while the IOIO is connected.
 	 * 
 	 * @throws ConnectionLostException
 	 *             When IOIO connection is lost.
 	 * @throws InterruptedException
 	 * 
-	 * @see ioio.lib.util.AbstractIOIOActivity.IOIOThread#loop()
+	 * @see ioio.lib.util.FixedRateIOIOLooper#periodic()
 	 */
 	@Override
-	public void loop() throws ConnectionLostException, InterruptedException {
+	protected void periodic() throws ConnectionLostException, InterruptedException {
 	
 		log2File("in loop()");
 		
 		try {
-			Thread.sleep(100);
-			
 			log2File("calling _level1.loop()");
 			_level1.loop();
 			log2File("called _level1.loop()");
@@ -123,8 +105,6 @@ public class Robot extends BaseIOIOLooper {
 			log2File("Sending message to handler with chkState=" + chkState);
 			Log.d(TAG, "Sending message to handler with chkState=" + chkState);
 			_handler.sendMessage(message);
-
-			Thread.sleep(100);
 		} catch (ConnectionLostException connectionLostException) {
 			log2File("connectionLostException caught in loop()");
 			log2File(connectionLostException.getStackTrace().toString());
@@ -134,33 +114,42 @@ public class Robot extends BaseIOIOLooper {
 		}
 	}
 
-	private int getSensorReadings() throws ConnectionLostException,
-			InterruptedException {
-		try {
-			log2File("in getSensorReadings()");
+	@Override
+	protected void overrun(long lateNanos) {
+		log2File("loop() overran its period by " + lateNanos / 1000 + "us (overruns: " + getOverruns() + "/" + getIterations()
+				+ ", mean jitter: " + getMeanJitterNanos() / 1000 + "us, max jitter: " + getMaxJitterNanos() / 1000 + "us)");
+	}
 
-			/* get sensor readings */
-			byte[] request = new byte[] { 0x10 }; // get sensors
-			byte[] response = new byte[8];
+	@Override
+	public void disconnected() {
+		log2File("in disconnected()");
+		if (_commandQueue != null)
+			_commandQueue.close();
+	}
 
-			log2File("reading sensor-values");
-			synchronized (_twi) {
-				if(_twi.writeRead(0x69, false, request, request.length, response, response.length)) {
-					log2File("I2C: read sensor-values successfully:" + response[0]);
-				} else {
-					log2File("I2C: read sensor-values NOT successfully!");
-				}
+	/**
+	 * requests new sensor readings (unless the previous request is still pending) and returns
+	 * the last readings received; so the loop does not wait for the I2C round-trip
+	 */
+	private int getSensorReadings() throws ConnectionLostException {
+		log2File("in getSensorReadings()");
+
+		log2File("requesting sensor-values");
+		_commandQueue.submitRead((byte) 0x10, 8, _sensorListener); // get sensors
+		return _sensorState;
+	}
+
+	private final TwiCommandQueue.ReadListener _sensorListener = new TwiCommandQueue.ReadListener() {
+		@Override
+		public void onRead(byte opcode, boolean success, byte[] response) {
+			if (success) {
+				log2File("I2C: read sensor-values successfully:" + response[0]);
+				_sensorState = response[0];
+			} else {
+				log2File("I2C: read sensor-values NOT successfully!");
 			}
-			return response[0];
-		} catch (ConnectionLostException connectionLostException) {
-			log2File("connectionLostException caught in getSensorReadings()");
-			log2File(connectionLostException.getStackTrace().toString());
-		} catch (InterruptedException interruptedException) {
-			log2File("interruptedException caught in getSensorReadings()");
-			log2File(interruptedException.getStackTrace().toString());
 		}
-		return -1;
-	}
+	};
 
 	public void move(int cm) throws ConnectionLostException,
 			InterruptedException {
@@ -186,20 +175,9 @@ public class Robot extends BaseIOIOLooper {
 			throws ConnectionLostException, InterruptedException {
 		log2File("in move_Internal with offset: " + offset);
 
-		/* drive request[1] (in cm) forward */
-		byte[] request = new byte[2];
-		byte[] response = new byte[1];
-
-		request[0] = 0x1C; // cmd
-		request[1] = (byte) offset.xPos;
-
-		synchronized (_twi) {
-			Log.v("I2C",
-					"ret = "
-							+ _twi.writeRead(0x69, false, request,
-									request.length, response, 0));
-		}
-		log2File("move_Internal finished successfully");
+		/* drive offset.xPos (in cm) forward; supersedes a move which has not been sent yet */
+		_commandQueue.submitMotion((byte) 0x1C, (byte) offset.xPos);
+		log2File("move_Internal queued successfully");
 	}
 
 	public void rotate(int degree) throws ConnectionLostException,
@@ -217,20 +195,9 @@ public class Robot extends BaseIOIOLooper {
 			throws ConnectionLostException, InterruptedException {
 		log2File("in rotate_Internal with offset: " + offset);
 
-		/* turn request[1] (in degree) */
-		byte[] request = new byte[2];
-		byte[] response = new byte[0];
-
-		request[0] = 0x1D; // cmd
-		request[1] = (byte) offset.anglePos;
-
-		synchronized (_twi) {
-			Log.v("I2C",
-					"ret = "
-							+ _twi.writeRead(0x69, false, request,
-									request.length, response, response.length));
-		}
-		log2File("rotate_Internal finished successfully");
+		/* turn offset.anglePos (in degree); supersedes a rotation which has not been sent yet */
+		_commandQueue.submitMotion((byte) 0x1D, (byte) offset.anglePos);
+		log2File("rotate_Internal queued successfully");
 	}
 
 	/**
@@ -2,17 +2,9 @@ package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Robot.SubsumptionArchiteture
 
 import ioio.lib.api.exception.ConnectionLostException;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
 import org.opencv.core.Point;
 
-import android.os.Environment;
+import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common.FileLogger;
 import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Robot.Robot;
 
 public class Level1 {
@@ -20,27 +12,10 @@ public class Level1 {
 	private int DEGREE_GRANULARITY = 4;
 	private int ROUTE_GRANULARITY = 10;
 
-	private static boolean append2File = false;
+	private static final FileLogger fileLogger = FileLogger.getLogger("level1.txt");
 
 	private static void log2File(String message) {
-		File root = Environment.getExternalStorageDirectory();
-		File file = new File(root, "level1.txt");
-		FileWriter filewriter;
-		try {
-			filewriter = new FileWriter(file, append2File);
-			if (append2File == false)
-				append2File = true;
-			BufferedWriter bufferedWriter = new BufferedWriter(filewriter);
-			DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss:SSS");
-
-			Date date = new Date();
-			bufferedWriter.write(dateFormat.format(date) + " by #"
-					+ Thread.currentThread().getId() + ": " + message + "\r\n");
-			bufferedWriter.close();
-			filewriter.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		fileLogger.log(message);
 	}
 
 	public Level1() {
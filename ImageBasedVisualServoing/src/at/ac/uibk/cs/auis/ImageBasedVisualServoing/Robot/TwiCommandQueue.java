@@ -0,0 +1,307 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Robot;
+
+import ioio.lib.api.IOIO;
+import ioio.lib.api.TwiMaster;
+import ioio.lib.api.exception.ConnectionLostException;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.util.Log;
+
+/**
+ * Sends commands to a single I2C-slave without blocking the caller:
+ * commands are queued and up to a fixed number of them are kept in flight using
+ * {@link TwiMaster#writeReadAsync(int, boolean, byte[], int, byte[], int)}; a background thread
+ * waits for their results (the IOIO answers in order) and sends the next queued commands.
+ *
+ * Motion commands are coalesced: if the most recently queued motion command has not been sent yet
+ * and a new one with the same opcode arrives, only its argument is replaced (the new setpoint supersedes the old one).
+ * Read commands are not queued again while the previous one with the same opcode is still pending.
+ *
+ * A command whose result does not arrive within the timeout is counted as failed. As the IOIO's responses
+ * carry no command ID, a lost response would shift all later responses to the wrong commands. The TwiMaster
+ * detects this by the timeout or by a response of the wrong size; to make sure it is detected, at most one
+ * read command (motion commands have no response data) is in flight at a time. Once the TwiMaster has
+ * cancelled all commands in flight, it is closed and opened again before any further command is sent.
+ */
+public class TwiCommandQueue {
+	private static final String TAG = "Auis::TwiCommandQueue";
+
+	/**
+	 * receives the result of a read command; called on the queue's background thread
+	 */
+	public interface ReadListener {
+		public void onRead(byte opcode, boolean success, byte[] response);
+	}
+
+	private static class Command {
+		final byte[] _request;
+		final byte[] _response;
+		final boolean _isMotion;
+		final ReadListener _listener;
+		TwiMaster _twi; // the TwiMaster the command has been sent to
+		TwiMaster.Result _result;
+
+		Command(byte[] request, int responseLength, boolean isMotion, ReadListener listener) {
+			_request = request;
+			_response = new byte[responseLength];
+			_isMotion = isMotion;
+			_listener = listener;
+		}
+	}
+
+	private final IOIO _ioio;
+	private final int _twiNum;
+	private final TwiMaster.Rate _rate;
+	private final int _address;
+	private final int _maxInFlight;
+	private final long _timeoutMs;
+
+	// guarded by this
+	private TwiMaster _twi;
+	private final Queue<Command> _queued = new ArrayDeque<Command>();
+	private final Queue<Command> _inFlight = new ArrayDeque<Command>();
+	private Command _lastQueuedMotion;
+	private boolean _isClosed;
+	private long _coalescedCommands;
+	private long _failedCommands;
+	private long _timedOutCommands;
+	private long _reopenings;
+
+	private final Thread _completionThread;
+
+	/**
+	 * opens the TWI-module (see {@link IOIO#openTwiMaster(int, TwiMaster.Rate, boolean)}); it is closed by {@link #close()}
+	 */
+	public TwiCommandQueue(IOIO ioio, int twiNum, TwiMaster.Rate rate, int address, int maxInFlight, long timeoutMs)
+			throws ConnectionLostException {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+
+		_ioio = ioio;
+		_twiNum = twiNum;
+		_rate = rate;
+		_twi = ioio.openTwiMaster(twiNum, rate, false);
+		_address = address;
+		_maxInFlight = maxInFlight;
+		_timeoutMs = timeoutMs;
+		_completionThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				collectResults();
+			}
+		}, "TwiCommandQueue");
+		_completionThread.setDaemon(true);
+		_completionThread.start();
+	}
+
+	/**
+	 * queues a motion command consisting of opcode and one argument-byte; no response is read
+	 */
+	public synchronized void submitMotion(byte opcode, byte argument) throws ConnectionLostException {
+		checkClosed();
+
+		if (_lastQueuedMotion != null && _lastQueuedMotion._request[0] == opcode) {
+			_lastQueuedMotion._request[1] = argument;
+			_coalescedCommands++;
+			return;
+		}
+
+		Command command = new Command(new byte[] { opcode, argument }, 0, true, null);
+		_queued.add(command);
+		_lastQueuedMotion = command;
+		sendQueued();
+	}
+
+	/**
+	 * queues a command consisting of the opcode only and reads responseLength bytes
+	 * @return false iff a read with the same opcode is still pending, so no command has been queued
+	 */
+	public synchronized boolean submitRead(byte opcode, int responseLength, ReadListener listener)
+			throws ConnectionLostException {
+		checkClosed();
+
+		if (isPending(_queued, opcode) || isPending(_inFlight, opcode))
+			return false;
+
+		_queued.add(new Command(new byte[] { opcode }, responseLength, false, listener));
+		sendQueued();
+		return true;
+	}
+
+	private static boolean isPending(Queue<Command> commands, byte opcode) {
+		for (Command command : commands) {
+			if (!command._isMotion && command._request[0] == opcode)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of motion commands which have been replaced by a newer one before being sent
+	 */
+	public synchronized long getCoalescedCommands() {
+		return _coalescedCommands;
+	}
+
+	/**
+	 * @return the number of commands the slave has not acknowledged
+	 */
+	public synchronized long getFailedCommands() {
+		return _failedCommands;
+	}
+
+	/**
+	 * @return the number of commands (included in {@link #getFailedCommands()}) whose result has not arrived in time
+	 */
+	public synchronized long getTimedOutCommands() {
+		return _timedOutCommands;
+	}
+
+	/**
+	 * @return the number of times the TwiMaster has been reopened after a timeout
+	 */
+	public synchronized long getReopenings() {
+		return _reopenings;
+	}
+
+	public synchronized int getPendingCommands() {
+		return _queued.size() + _inFlight.size();
+	}
+
+	/**
+	 * discards all queued commands, closes the TwiMaster and stops the background thread; commands in flight
+	 * are not awaited. Submitting commands afterwards throws a {@link ConnectionLostException}.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (_isClosed)
+				return;
+			_isClosed = true;
+			_queued.clear();
+			_lastQueuedMotion = null;
+			if (_twi != null)
+				_twi.close();
+			notifyAll();
+		}
+		_completionThread.interrupt();
+	}
+
+	private void checkClosed() throws ConnectionLostException {
+		if (_isClosed)
+			throw new ConnectionLostException();
+	}
+
+	/*
+	 * (non-javadoc)
+	 * called while holding the lock of this
+	 */
+	private void sendQueued() throws ConnectionLostException {
+		if (_twi == null)
+			throw new ConnectionLostException(); // reopening has failed
+		while (_inFlight.size() < _maxInFlight && !_queued.isEmpty()) {
+			Command command = _queued.peek();
+			if (!command._isMotion && isReadInFlight())
+				return;
+
+			try {
+				command._result = _twi.writeReadAsync(_address, false, command._request, command._request.length,
+						command._response, command._response.length);
+			} catch (IllegalStateException e) {
+				// a response has just been lost: the command is sent once the completion thread has reopened the
+				// TwiMaster
+				return;
+			}
+			command._twi = _twi;
+
+			_queued.remove();
+			if (command == _lastQueuedMotion)
+				_lastQueuedMotion = null;
+			_inFlight.add(command);
+			notifyAll();
+		}
+	}
+
+	private boolean isReadInFlight() {
+		for (Command command : _inFlight) {
+			if (!command._isMotion)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * (non-javadoc)
+	 * called while holding the lock of this after the TwiMaster has lost a response: the commands still in flight
+	 * have been cancelled by the TwiMaster and their results are discarded, the queued ones are sent to the
+	 * reopened TwiMaster
+	 */
+	private void reopen() throws ConnectionLostException {
+		TwiMaster twi = _twi;
+		_twi = null;
+		twi.close();
+		_twi = _ioio.openTwiMaster(_twiNum, _rate, false);
+		_reopenings++;
+	}
+
+	private void collectResults() {
+		try {
+			while (true) {
+				Command command;
+				synchronized (this) {
+					while (!_isClosed && _inFlight.isEmpty())
+						wait();
+					if (_isClosed)
+						return;
+					command = _inFlight.peek();
+				}
+
+				// results are delivered in the order the commands have been sent
+				boolean success;
+				boolean timedOut = false;
+				boolean cancelled = false;
+				try {
+					success = command._result.waitReady(_timeoutMs, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// if the result has arrived meanwhile, cancelling fails and it is used after all
+					timedOut = command._result.cancel();
+					success = !timedOut && command._result.waitReady();
+				} catch (CancellationException e) {
+					// cancelled by the TwiMaster because a response has been lost
+					cancelled = true;
+					success = false;
+				}
+
+				synchronized (this) {
+					// reopen once per lost response, i.e. unless a previous command has done so already
+					if ((timedOut || cancelled) && command._twi == _twi && !_isClosed)
+						reopen();
+					_inFlight.remove();
+					if (!success)
+						_failedCommands++;
+					if (timedOut)
+						_timedOutCommands++;
+					if (!_isClosed)
+						sendQueued();
+				}
+
+				if (timedOut)
+					Log.w(TAG, "I2C: command 0x" + Integer.toHexString(command._request[0] & 0xff) + " timed out");
+				else if (cancelled)
+					Log.w(TAG, "I2C: command 0x" + Integer.toHexString(command._request[0] & 0xff) + " discarded, a response has been lost");
+				else if (!success)
+					Log.w(TAG, "I2C: command 0x" + Integer.toHexString(command._request[0] & 0xff) + " failed");
+				if (command._listener != null)
+					command._listener.onRead(command._request[0], success, command._response);
+			}
+		} catch (ConnectionLostException e) {
+			Log.i(TAG, "connection lost, stopping");
+		} catch (InterruptedException e) {
+			Log.i(TAG, "interrupted, stopping");
+		}
+	}
+}
@@ -1,13 +1,10 @@
 package at.ac.uibk.cs.auis.Tracker;
 
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
@@ -15,22 +12,91 @@ import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
-public class ColorBasedTracker {
+/**
+ * tracks blobs of a color using OpenCV: <code>inRange</code>, <code>dilate</code> and <code>findContours</code>.
+ *
+ * All buffers are reused across frames (see <code>Workspace</code>), so the masks are only allocated when the
+ * resolution changes. What is still allocated per frame (measured by <code>ColorBasedTrackerAllocationTest</code>):
+ * <ul>
+ * <li>by OpenCV's Java bindings of <code>findContours</code>: a temporary Mat and list and, per contour,
+ * a native Mat header and its Java wrappers (a Mat and a {@link MatOfPoint}, about 140 bytes of heap);
+ * they are released at the beginning of the next frame;</li>
+ * <li>the results: the array of lowest points, the points and the bounding rectangles of the selected
+ * contours (<code>boundingRect</code> returns a new {@link Rect});</li>
+ * <li>in region-of-interest mode the search window, the header of its submat and the bounding rectangles
+ * of the contours checked against the window.</li>
+ * </ul>
+ * None of this depends on the resolution of the frame.
+ */
+public class ColorBasedTracker implements Tracker {
 
 	private static final double MINIMAL_VALUE_OF_CONTOUR_AREA = 0.1;
 	
-	private Mat blackWhiteMask;
-	private Mat dilatedMask;
+	/** the number of most recent points kept in the track path */
+	private static final int MAX_TRACK_PATH_LENGTH = 256;
+	
+	// created lazily as OpenCV's native library might not be loaded yet
+	private Workspace frameWorkspace;
+	private Workspace searchWindowWorkspace;
+	private Workspace workspace; // the workspace used for the last frame
+	private int[] contourPoints = new int[0];
+	private TopKSelector largestContoursSelector = new TopKSelector();
+	private MatOfPoint[] selectedContours = new MatOfPoint[0];
+	private final Point frameOffset = new Point(0, 0);
+	private final Point searchWindowOffset = new Point();
+	
+	private boolean regionOfInterestTracking = false;
+	private Rect searchWindow;
+	private int framesSinceFullScan;
 
 	private Scalar colorForTrackingHSV;
 	private Scalar colorRadius = new Scalar(25, 25, 25, 0);
 	private Scalar lowerBound;
 	private Scalar upperBound;
 
-	private List<MatOfPoint> contours;
+	private List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
 	private List<Rect> boundingRects = new ArrayList<Rect>();
 	private List<Point> trackPath = new ArrayList<Point>();
 	
+	/**
+	 * holds all buffers needed for processing one frame;
+	 * they are allocated once per resolution and reused for every following frame
+	 * (allocating them per frame causes a lot of native memory churn and thus GC pauses)
+	 */
+	private static class Workspace {
+		private int rows = -1;
+		private int cols = -1;
+		
+		private final Mat blackWhiteMask = new Mat();
+		private final Mat dilatedMask = new Mat();
+		private final Mat contourMask = new Mat(); // findContours modifies its input
+		private final Mat hierarchy = new Mat();
+		private final Mat kernel = new Mat(); // empty kernel means 3x3 rectangle
+		
+		/**
+		 * (re-)allocates the masks iff the resolution of the frame has changed
+		 */
+		private void ensureSize(int rows, int cols) {
+			if(this.rows==rows && this.cols==cols)
+				return;
+			
+			blackWhiteMask.create(rows, cols, CvType.CV_8UC1);
+			dilatedMask.create(rows, cols, CvType.CV_8UC1);
+			contourMask.create(rows, cols, CvType.CV_8UC1);
+			this.rows = rows;
+			this.cols = cols;
+		}
+		
+		private void release() {
+			blackWhiteMask.release();
+			dilatedMask.release();
+			contourMask.release();
+			hierarchy.release();
+			rows = -1;
+			cols = -1;
+		}
+	}
+	
 	/**
 	 * initializes the bounds used for range checking in HSV-color-space
 	 */
@@ -56,19 +122,7 @@ public class ColorBasedTracker {
 	 *  the center of mass as a point in pixel coordinates (i.e. integer)
 	 */
 	public Point calcCenterOfMass(Mat hsv) {
-		boundingRects.clear();
-		
-		blackWhiteMask = new Mat();
-		Core.inRange(hsv, lowerBound, upperBound, blackWhiteMask);
-
-		dilatedMask = new Mat();
-		Imgproc.dilate(blackWhiteMask, dilatedMask, new Mat());
-
-		contours = new ArrayList<MatOfPoint>();
-		Mat mHierarchy = new Mat();
-		Mat tempDilatedMask = dilatedMask.clone();
-		Imgproc.findContours(tempDilatedMask, contours, mHierarchy,
-				Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+		findContours(hsv, 1);
 
 		MatOfPoint largestContour = findLargestContours(contours, 1)[0];
 		if(largestContour==null)
@@ -80,7 +134,7 @@ public class ColorBasedTracker {
 		int centerOfMassY = boundingRects.get(0).y + boundingRects.get(0).height / 2;
 
 		Point centerOfMass = new Point(centerOfMassX, centerOfMassY);
-		trackPath.add(centerOfMass);
+		addToTrackPath(centerOfMass);
 		return centerOfMass;
 	}
 	
@@ -89,19 +143,7 @@ public class ColorBasedTracker {
 	 * @code numOfContours -Points and returns them as an array (which HAS have size numOfContours iff that many contours exist)
 	 */
 	public Point[] getLowestBoundOfContours(Mat hsv, int numOfContours) {
-		boundingRects.clear();
-		
-		blackWhiteMask = new Mat();
-		Core.inRange(hsv, lowerBound, upperBound, blackWhiteMask);
-
-		dilatedMask = new Mat();
-		Imgproc.dilate(blackWhiteMask, dilatedMask, new Mat());
-
-		contours = new ArrayList<MatOfPoint>();
-		Mat mHierarchy = new Mat();
-		Mat tempDilatedMask = dilatedMask.clone();
-		Imgproc.findContours(tempDilatedMask, contours, mHierarchy,
-				Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+		findContours(hsv, numOfContours);
 		
 		MatOfPoint[] largestContours = findLargestContours(contours, numOfContours);
 		Point[] lowestPoints = new Point[largestContours.length];
@@ -114,8 +156,100 @@ public class ColorBasedTracker {
 			}
 		}
 		
+		if(!boundingRects.isEmpty()) {
+			Rect largest = boundingRects.get(0);
+			addToTrackPath(new Point(largest.x + largest.width / 2, largest.y + largest.height / 2));
+		}
+		
 		return lowestPoints;
 	}
+	
+	private void addToTrackPath(Point point) {
+		if(trackPath.size() >= MAX_TRACK_PATH_LENGTH)
+			trackPath.remove(0);
+		trackPath.add(point);
+	}
+
+	/*
+	 * (non-javadoc)
+	 * finds the contours of the target either within the predicted search window (region-of-interest mode)
+	 * or within the whole frame; the search window is abandoned in favour of a full-frame scan
+	 * if any of the numOfContours targets has been lost or is cut off by the window's border,
+	 * and the whole frame is scanned every RegionOfInterest.FULL_SCAN_INTERVAL frames anyway
+	 */
+	private void findContours(Mat hsv, int numOfContours) {
+		if(frameWorkspace==null) {
+			frameWorkspace = new Workspace();
+			searchWindowWorkspace = new Workspace();
+		}
+		
+		searchWindow = null;
+		if(regionOfInterestTracking && framesSinceFullScan < RegionOfInterest.FULL_SCAN_INTERVAL)
+			searchWindow = RegionOfInterest.predictSearchWindow(boundingRects, trackPath, hsv.cols(), hsv.rows());
+		boundingRects.clear();
+		
+		if(searchWindow!=null) {
+			Mat window = hsv.submat(searchWindow);
+			searchWindowOffset.x = searchWindow.x;
+			searchWindowOffset.y = searchWindow.y;
+			findContours(window, searchWindowWorkspace, searchWindowOffset);
+			window.release();
+			
+			if(areTargetsWithinSearchWindow(hsv.cols(), hsv.rows(), numOfContours)) {
+				framesSinceFullScan++;
+				return;
+			}
+			searchWindow = null;
+		}
+		
+		findContours(hsv, frameWorkspace, frameOffset);
+		framesSinceFullScan = 0;
+	}
+	
+	/*
+	 * (non-javadoc)
+	 * thresholds, dilates and extracts the outer contours of the supplied image;
+	 * all intermediate results are written into the supplied workspace, the contours
+	 * are shifted by offset (i.e. they are always in frame coordinates)
+	 */
+	private void findContours(Mat hsv, Workspace workspace, Point offset) {
+		this.workspace = workspace;
+		workspace.ensureSize(hsv.rows(), hsv.cols());
+		
+		Core.inRange(hsv, lowerBound, upperBound, workspace.blackWhiteMask);
+		Imgproc.dilate(workspace.blackWhiteMask, workspace.dilatedMask, workspace.kernel);
+		workspace.dilatedMask.copyTo(workspace.contourMask);
+		
+		releaseContours();
+		Imgproc.findContours(workspace.contourMask, contours, workspace.hierarchy,
+				Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE, offset);
+	}
+	
+	/*
+	 * (non-javadoc)
+	 * a target counts as lost if there are less than numOfContours contours within the search window
+	 * or one of the numOfContours largest contours touches a border of the window that is not a border of the frame
+	 */
+	private boolean areTargetsWithinSearchWindow(int frameWidth, int frameHeight, int numOfContours) {
+		for(MatOfPoint contour : findLargestContours(contours, numOfContours)) {
+			if(contour==null)
+				return false;
+			
+			if(RegionOfInterest.isCutOff(Imgproc.boundingRect(contour), searchWindow, frameWidth, frameHeight))
+				return false;
+		}
+		return true;
+	}
+	
+	/*
+	 * (non-javadoc)
+	 * frees the native memory of the contours of the last frame right away instead of waiting for the finalizer
+	 */
+	private void releaseContours() {
+		for(MatOfPoint contour : contours)
+			contour.release();
+		contours.clear();
+	}
 
 	/*
 	 * (non-javadoc)
@@ -123,55 +257,44 @@ public class ColorBasedTracker {
 	 * the point with the highest one is the nearest to the ground
 	 */
 	private Point getLowestPointOfContour(MatOfPoint matOfPoints) {
-		Point nearestPointToGround = new Point(Integer.MIN_VALUE, Integer.MIN_VALUE);
-		for(Point point : matOfPoints.toArray()) {
-			if(point.y>nearestPointToGround.y) {
-				nearestPointToGround = point;
+		int numOfPoints = (int) matOfPoints.total();
+		if(contourPoints.length < 2 * numOfPoints)
+			contourPoints = new int[2 * numOfPoints];
+		int[] points = contourPoints;
+		matOfPoints.get(0, 0, points);
+		
+		int nearestPointToGround = -1;
+		for(int i=0;i<numOfPoints;i++) {
+			if(nearestPointToGround==-1 || points[2*i+1]>points[2*nearestPointToGround+1]) {
+				nearestPointToGround = i;
 			}
 		}
-		return nearestPointToGround;
+		if(nearestPointToGround==-1)
+			return new Point(Integer.MIN_VALUE, Integer.MIN_VALUE);
+		
+		return new Point(points[2*nearestPointToGround], points[2*nearestPointToGround+1]);
 	}
 
 
+	/*
+	 * (non-javadoc)
+	 * returns the numOfCounters contours with the largest area (largest first);
+	 * the array is padded with null iff there are less contours; it is reused by the next call
+	 */
 	private MatOfPoint[] findLargestContours(List<MatOfPoint> contours, int numOfCounters) {
-		Map<Double, MatOfPoint> lookup = new TreeMap<Double, MatOfPoint>(new Comparator<Double>() {
-
-			@Override
-			public int compare(Double lhs, Double rhs) {
-				return (int)(rhs - lhs);
-					
-			}
-			
-		});
-		
-		// Find max contour area
-		MatOfPoint maxAreaMatrix = new MatOfPoint();
-
-		double maxArea = 0;
-
-		Iterator<MatOfPoint> each = contours.iterator();
-		while (each.hasNext()) {
-			MatOfPoint wrapper = each.next();
-			double area = Imgproc.contourArea(wrapper);
-			
-			lookup.put(area, wrapper);
-			
-			/*if (area > maxArea) {
-				maxArea = area;
-				maxAreaMatrix = wrapper;
-			}*/
+		largestContoursSelector.reset(numOfCounters);
+		for(int i=0;i<contours.size();i++) {
+			largestContoursSelector.offer(Imgproc.contourArea(contours.get(i)), i);
 		}
+		largestContoursSelector.sort();
 
-		MatOfPoint[] returnArray = new MatOfPoint[numOfCounters];
-		int i=0;
-		for(Map.Entry<Double, MatOfPoint> entry : lookup.entrySet()) {
-			if(i==numOfCounters)
-				break;
-			
-			returnArray[i++] = entry.getValue();
+		if(selectedContours.length != numOfCounters)
+			selectedContours = new MatOfPoint[numOfCounters];
+		for(int i=0;i<numOfCounters;i++) {
+			selectedContours[i] = i < largestContoursSelector.size() ? contours.get(largestContoursSelector.getIndex(i)) : null;
 		}
 		
-		return returnArray;
+		return selectedContours;
 	}
 
 	public Scalar getColorForTrackingHSV() {
@@ -191,12 +314,30 @@ public class ColorBasedTracker {
 		this.colorRadius = colorRadius;
 	}
 
+	/**
+	 * @return the thresholded image of the last frame (only the search window in region-of-interest mode)
+	 */
 	public Mat getBlackWhiteMask() {
-		return blackWhiteMask;
+		return workspace!=null ? workspace.blackWhiteMask : null;
 	}
 
+	/**
+	 * @return the dilated thresholded image of the last frame (only the search window in region-of-interest mode)
+	 */
 	public Mat getDilatedMask() {
-		return dilatedMask;
+		return workspace!=null ? workspace.dilatedMask : null;
+	}
+	
+	/**
+	 * frees the native memory held by this tracker (e.g. when the camera view has been stopped);
+	 * the tracker can still be used afterwards, the buffers are allocated again on the next frame
+	 */
+	public void release() {
+		releaseContours();
+		if(frameWorkspace!=null) {
+			frameWorkspace.release();
+			searchWindowWorkspace.release();
+		}
 	}
 
 	/**
@@ -216,4 +357,25 @@ public class ColorBasedTracker {
 		return trackPath;
 	}
 	
+	/**
+	 * enables/disables the region-of-interest mode: when enabled only a window around the position predicted
+	 * from the last bounding rectangles and the track path is processed; the whole frame is only scanned
+	 * when fewer than the requested number of targets have been found within the window, one of them is cut off
+	 * by its border, or the last full-frame scan is <code>RegionOfInterest.FULL_SCAN_INTERVAL</code> frames ago
+	 */
+	public void setRegionOfInterestTracking(boolean regionOfInterestTracking) {
+		this.regionOfInterestTracking = regionOfInterestTracking;
+	}
+
+	public boolean isRegionOfInterestTracking() {
+		return regionOfInterestTracking;
+	}
+	
+	/**
+	 * @return the search window used for the last frame or null if the whole frame has been processed
+	 */
+	public Rect getSearchWindow() {
+		return searchWindow;
+	}
+	
 }
@@ -0,0 +1,763 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+/**
+ * Pure-Java alternative to {@link ColorBasedTracker}:
+ * instead of chaining <code>inRange</code>, <code>dilate</code>, <code>findContours</code>, <code>contourArea</code>
+ * and <code>boundingRect</code> (each of them being a separate pass over the frame and a JNI call) the frame
+ * is thresholded (using lookup tables), dilated (3x3) and labeled (union-find, 8-connectivity) row by row
+ * in a single pass; area, bounding box, centroid and lowest point of every blob are collected on the way,
+ * only the borders of the blobs are visited a second time.
+ *
+ * The results are the same as those of {@link ColorBasedTracker}: like <code>findContours</code> in
+ * OpenCV 2.4 the 1-pixel border of the frame is ignored, blobs lying within a hole of another blob are
+ * skipped (<code>RETR_EXTERNAL</code>) and the area of a blob is the area of the polygon spanned by its
+ * outer border (like <code>contourArea</code>), not the number of its pixels.
+ * The only difference is the order of blobs having exactly the same area.
+ *
+ * The frame is supplied as <code>byte[]</code> (interleaved channels, row by row), so this class can be used
+ * without OpenCV's native library; the {@link Mat}-based methods copy the frame into a buffer first.
+ * The <code>...Nv21</code>-methods take the camera's NV21 data instead and threshold it using a
+ * {@link Nv21ColorLookupTable}, so neither the conversion to RGBA nor the one to HSV is needed.
+ * The region-of-interest mode is the one of {@link ColorBasedTracker} (see {@link #setRegionOfInterestTracking(boolean)}),
+ * within the search window the results are the same as those of a full-frame scan.
+ * All buffers are reused for subsequent frames.
+ */
+public class ConnectedComponentsTracker implements Tracker {
+
+	/** the number of most recent points kept in the track path */
+	private static final int MAX_TRACK_PATH_LENGTH = 256;
+
+	// neighbours in the order used by OpenCV's border following (counter-clockwise, starting with east)
+	private static final int[] DX = { 1, 1, 0, -1, -1, -1, 0, 1 };
+	private static final int[] DY = { 0, -1, -1, -1, 0, 1, 1, 1 };
+	private static final int WEST = 4;
+
+	private Scalar colorForTrackingHSV;
+	private Scalar colorRadius = new Scalar(25, 25, 25, 0);
+	private final boolean[][] isInRange = new boolean[4][256]; // per channel
+	private Nv21ColorLookupTable nv21LookupTable; // created and initialized when the first NV21 frame arrives
+	private boolean isNv21LookupTableValid;
+
+	private List<Rect> boundingRects = new ArrayList<Rect>();
+	private List<Point> trackPath = new ArrayList<Point>();
+
+	private boolean regionOfInterestTracking = false;
+	private Rect searchWindow;
+	private int framesSinceFullScan;
+
+	// the part of the frame processed last (the search window or the whole frame); all labels,
+	// statistics and the mask are relative to its origin
+	private int originX;
+	private int originY;
+	private int width;
+	private int height;
+
+	// frame buffers, they only grow, so switching between search window and full frame does not reallocate them
+	private byte[] frame = new byte[0]; // only used by the Mat-based methods
+	private byte[] mask = new byte[0]; // thresholded and dilated frame
+	private byte[][] dilatedRows = new byte[3][0]; // horizontally dilated rows, ring buffer
+	private int[] previousLabels = new int[0];
+	private int[] currentLabels = new int[0];
+
+	// union-find over provisional labels of foreground and background regions; label 0 is not used
+	private int numOfLabels;
+	private int[] parent = new int[0];
+	private boolean[] isBackground = new boolean[0];
+	private boolean[] touchesBorder = new boolean[0]; // background labels only
+	// statistics of foreground labels
+	private int[] minX = new int[0];
+	private int[] minY = new int[0];
+	private int[] maxX = new int[0];
+	private int[] maxY = new int[0];
+	private int[] pixelCount = new int[0];
+	private long[] sumX = new long[0];
+	private long[] sumY = new long[0];
+	private int[] firstX = new int[0]; // the first pixel in raster order
+	private int[] firstY = new int[0];
+	private int[] leftBackground = new int[0]; // the background label left of the first pixel
+
+	// blobs of the last frame
+	private int numOfBlobs;
+	private int[] blobLabel = new int[0];
+	private double[] blobArea = new double[0];
+	private int[] blobLowestX = new int[0];
+	private int[] blobLowestY = new int[0];
+
+	private TopKSelector largestBlobsSelector = new TopKSelector();
+
+	/**
+	 * initializes the lookup tables used for range checking in HSV-color-space;
+	 * the bounds are rounded and saturated like <code>Core.inRange</code> does for 8-bit images
+	 */
+	private void initializeBounds() {
+		for (int channel = 0; channel < isInRange.length; channel++) {
+			int lowerBound = 0;
+			int upperBound = 255;
+			if (channel < 3) {
+				lowerBound = saturate(colorForTrackingHSV.val[channel] - colorRadius.val[channel]);
+				upperBound = saturate(colorForTrackingHSV.val[channel] + colorRadius.val[channel]);
+			}
+			for (int value = 0; value < 256; value++)
+				isInRange[channel][value] = value >= lowerBound && value <= upperBound;
+		}
+		isNv21LookupTableValid = false;
+	}
+
+	private static int saturate(double value) {
+		return (int) Math.max(0, Math.min(255, Math.rint(value)));
+	}
+
+	public Point calcCenterOfMass(Mat hsv) {
+		return calcCenterOfMass(copyFrame(hsv), hsv.cols(), hsv.rows(), hsv.channels());
+	}
+
+	public Point[] getLowestBoundOfContours(Mat hsv, int numOfContours) {
+		return getLowestBoundOfContours(copyFrame(hsv), hsv.cols(), hsv.rows(), hsv.channels(), numOfContours);
+	}
+
+	/**
+	 * see {@link #calcCenterOfMass(Mat)}
+	 * @param hsv
+	 *  the frame (8 bit per channel, channels interleaved, row by row)
+	 */
+	public Point calcCenterOfMass(byte[] hsv, int width, int height, int channels) {
+		checkFrame(hsv, width, height, channels);
+		track(hsv, width, height, channels, false, 1);
+		return calcCenterOfMassOfBlobs();
+	}
+
+	/**
+	 * see {@link #calcCenterOfMass(Mat)}
+	 * @param nv21
+	 *  the frame as delivered by the camera (NV21)
+	 */
+	public Point calcCenterOfMassFromNv21(byte[] nv21, int width, int height) {
+		checkNv21Frame(nv21, width, height);
+		track(nv21, width, height, 0, true, 1);
+		return calcCenterOfMassOfBlobs();
+	}
+
+	private Point calcCenterOfMassOfBlobs() {
+		boundingRects.clear();
+
+		int largestBlob = findLargestBlobs(1)[0];
+		if (largestBlob == -1)
+			throw new IllegalArgumentException();
+
+		boundingRects.add(getBlobBoundingRect(largestBlob));
+
+		int centerOfMassX = boundingRects.get(0).x + boundingRects.get(0).width / 2;
+		int centerOfMassY = boundingRects.get(0).y + boundingRects.get(0).height / 2;
+
+		Point centerOfMass = new Point(centerOfMassX, centerOfMassY);
+		addToTrackPath(centerOfMass);
+		return centerOfMass;
+	}
+
+	/**
+	 * see {@link #getLowestBoundOfContours(Mat, int)}
+	 * @param hsv
+	 *  the frame (8 bit per channel, channels interleaved, row by row)
+	 */
+	public Point[] getLowestBoundOfContours(byte[] hsv, int width, int height, int channels, int numOfContours) {
+		checkFrame(hsv, width, height, channels);
+		track(hsv, width, height, channels, false, numOfContours);
+		return getLowestBoundOfBlobs(numOfContours);
+	}
+
+	/**
+	 * see {@link #getLowestBoundOfContours(Mat, int)}
+	 * @param nv21
+	 *  the frame as delivered by the camera (NV21)
+	 */
+	public Point[] getLowestBoundOfContoursFromNv21(byte[] nv21, int width, int height, int numOfContours) {
+		checkNv21Frame(nv21, width, height);
+		track(nv21, width, height, 0, true, numOfContours);
+		return getLowestBoundOfBlobs(numOfContours);
+	}
+
+	private Point[] getLowestBoundOfBlobs(int numOfContours) {
+		boundingRects.clear();
+
+		int[] largestBlobs = findLargestBlobs(numOfContours);
+		Point[] lowestPoints = new Point[largestBlobs.length];
+
+		int i = 0;
+		for (int blob : largestBlobs) {
+			if (blob != -1) {
+				lowestPoints[i++] = getBlobLowestPoint(blob);
+				boundingRects.add(getBlobBoundingRect(blob));
+			}
+		}
+
+		if (!boundingRects.isEmpty()) {
+			Rect largest = boundingRects.get(0);
+			addToTrackPath(new Point(largest.x + largest.width / 2, largest.y + largest.height / 2));
+		}
+
+		return lowestPoints;
+	}
+
+	private void addToTrackPath(Point point) {
+		if (trackPath.size() >= MAX_TRACK_PATH_LENGTH)
+			trackPath.remove(0);
+		trackPath.add(point);
+	}
+
+	/*
+	 * (non-javadoc)
+	 * returns the indices of the numOfBlobs blobs with the largest area (largest first);
+	 * the array is padded with -1 iff there are less blobs
+	 */
+	private int[] findLargestBlobs(int numOfBlobs) {
+		largestBlobsSelector.reset(numOfBlobs);
+		for (int blob = 0; blob < this.numOfBlobs; blob++)
+			largestBlobsSelector.offer(blobArea[blob], blob);
+		largestBlobsSelector.sort();
+
+		int[] largestBlobs = new int[numOfBlobs];
+		Arrays.fill(largestBlobs, -1);
+		for (int i = 0; i < largestBlobsSelector.size(); i++)
+			largestBlobs[i] = largestBlobsSelector.getIndex(i);
+		return largestBlobs;
+	}
+
+	private byte[] copyFrame(Mat hsv) {
+		int size = (int) hsv.total() * hsv.channels();
+		if (frame.length != size)
+			frame = new byte[size];
+		hsv.get(0, 0, frame);
+		return frame;
+	}
+
+	/**
+	 * thresholds, dilates and labels the supplied frame; the blobs found can be queried afterwards
+	 * using {@link #getNumOfBlobs()} and the <code>getBlob...</code>-methods
+	 * @param hsv
+	 *  the frame (8 bit per channel, channels interleaved, row by row)
+	 */
+	public void findBlobs(byte[] hsv, int width, int height, int channels) {
+		checkFrame(hsv, width, height, channels);
+		searchWindow = null;
+		findBlobs(hsv, width, height, channels, false, 0, 0, width, height);
+	}
+
+	private void checkFrame(byte[] hsv, int width, int height, int channels) {
+		if (colorForTrackingHSV == null)
+			throw new IllegalStateException("the color for tracking has not been set");
+		if (channels < 1 || channels > isInRange.length)
+			throw new IllegalArgumentException("unsupported number of channels: " + channels);
+		if (hsv.length < width * height * channels)
+			throw new IllegalArgumentException("frame is smaller than " + width + "x" + height + "x" + channels);
+	}
+
+	/**
+	 * like {@link #findBlobs(byte[], int, int, int)}, but thresholds the camera's data directly
+	 * @param nv21
+	 *  the frame as delivered by the camera: width*height bytes of luma followed by the interleaved
+	 *  V- and U-bytes (one pair per 2x2 pixels)
+	 */
+	public void findBlobsInNv21(byte[] nv21, int width, int height) {
+		checkNv21Frame(nv21, width, height);
+		searchWindow = null;
+		findBlobs(nv21, width, height, 0, true, 0, 0, width, height);
+	}
+
+	/*
+	 * (non-javadoc)
+	 * also (re-)builds the lookup table iff the color has changed
+	 */
+	private void checkNv21Frame(byte[] nv21, int width, int height) {
+		if (colorForTrackingHSV == null)
+			throw new IllegalStateException("the color for tracking has not been set");
+		if ((width & 1) != 0 || (height & 1) != 0)
+			throw new IllegalArgumentException("NV21 frames need an even width and height");
+		if (nv21.length < width * height * 3 / 2)
+			throw new IllegalArgumentException("frame is smaller than " + width + "x" + height + " (NV21)");
+
+		if (!isNv21LookupTableValid) {
+			if (nv21LookupTable == null)
+				nv21LookupTable = new Nv21ColorLookupTable();
+			nv21LookupTable.initialize(colorForTrackingHSV, colorRadius);
+			isNv21LookupTableValid = true;
+		}
+	}
+
+	/*
+	 * (non-javadoc)
+	 * finds the blobs either within the predicted search window (region-of-interest mode) or within the whole
+	 * frame, like ColorBasedTracker.findContours does
+	 */
+	private void track(byte[] frame, int frameWidth, int frameHeight, int channels, boolean isNv21, int numOfContours) {
+		searchWindow = null;
+		if (regionOfInterestTracking && framesSinceFullScan < RegionOfInterest.FULL_SCAN_INTERVAL)
+			searchWindow = RegionOfInterest.predictSearchWindow(boundingRects, trackPath, frameWidth, frameHeight);
+
+		if (searchWindow != null) {
+			findBlobs(frame, frameWidth, frameHeight, channels, isNv21,
+					searchWindow.x, searchWindow.y, searchWindow.width, searchWindow.height);
+
+			if (areTargetsWithinSearchWindow(frameWidth, frameHeight, numOfContours)) {
+				framesSinceFullScan++;
+				return;
+			}
+			searchWindow = null;
+		}
+
+		findBlobs(frame, frameWidth, frameHeight, channels, isNv21, 0, 0, frameWidth, frameHeight);
+		framesSinceFullScan = 0;
+	}
+
+	/*
+	 * (non-javadoc)
+	 * see ColorBasedTracker.areTargetsWithinSearchWindow
+	 */
+	private boolean areTargetsWithinSearchWindow(int frameWidth, int frameHeight, int numOfContours) {
+		for (int blob : findLargestBlobs(numOfContours)) {
+			if (blob == -1)
+				return false;
+			if (RegionOfInterest.isCutOff(getBlobBoundingRect(blob), searchWindow, frameWidth, frameHeight))
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * (non-javadoc)
+	 * processes the window (x, y, width, height) of the frame; like findContours on a submat the border of the
+	 * window is treated as the border of the frame
+	 */
+	private void findBlobs(byte[] frame, int frameWidth, int frameHeight, int channels, boolean isNv21,
+			int x, int y, int width, int height) {
+		ensureSize(width, height);
+		originX = x;
+		originY = y;
+		numOfLabels = 0;
+		numOfBlobs = 0;
+
+		// row y of the mask can be written as soon as row y+1 has been thresholded
+		for (int row = 0; row <= height; row++) {
+			if (row < height) {
+				if (isNv21)
+					thresholdAndDilateNv21Row(frame, frameWidth, frameHeight, row, dilatedRows[row % 3]);
+				else
+					thresholdAndDilateRow(frame, frameWidth, channels, row, dilatedRows[row % 3]);
+			}
+			if (row >= 1) {
+				writeMaskRow(row - 1);
+				labelRow(row - 1);
+			}
+		}
+
+		resolveLabels();
+		collectBlobs();
+	}
+
+	private void ensureSize(int width, int height) {
+		this.width = width;
+		this.height = height;
+		if (mask.length < width * height)
+			mask = new byte[width * height];
+		if (previousLabels.length >= width)
+			return;
+
+		for (int i = 0; i < dilatedRows.length; i++)
+			dilatedRows[i] = new byte[width];
+		previousLabels = new int[width];
+		currentLabels = new int[width];
+	}
+
+	/*
+	 * (non-javadoc)
+	 * thresholds row y (of the processed window) and dilates it horizontally
+	 */
+	private void thresholdAndDilateRow(byte[] hsv, int frameWidth, int channels, int y, byte[] dilatedRow) {
+		Arrays.fill(dilatedRow, 0, width, (byte) 0);
+		int offset = ((originY + y) * frameWidth + originX) * channels;
+		for (int x = 0; x < width; x++, offset += channels) {
+			boolean inRange = true;
+			for (int channel = 0; channel < channels && inRange; channel++)
+				inRange = isInRange[channel][hsv[offset + channel] & 0xff];
+
+			if (inRange) {
+				if (x > 0)
+					dilatedRow[x - 1] = 1;
+				dilatedRow[x] = 1;
+				if (x < width - 1)
+					dilatedRow[x + 1] = 1;
+			}
+		}
+	}
+
+	/*
+	 * (non-javadoc)
+	 * like thresholdAndDilateRow, but for NV21: every pair of chroma-bytes is shared by 2x2 pixels
+	 */
+	private void thresholdAndDilateNv21Row(byte[] nv21, int frameWidth, int frameHeight, int y, byte[] dilatedRow) {
+		Arrays.fill(dilatedRow, 0, width, (byte) 0);
+		int lumaOffset = (originY + y) * frameWidth + originX;
+		int chromaOffset = frameWidth * frameHeight + ((originY + y) >> 1) * frameWidth;
+		for (int x = 0; x < width; x++) {
+			int chroma = chromaOffset + ((originX + x) & ~1);
+			if (nv21LookupTable.isInRange(nv21[lumaOffset + x] & 0xff, nv21[chroma] & 0xff, nv21[chroma + 1] & 0xff)) {
+				if (x > 0)
+					dilatedRow[x - 1] = 1;
+				dilatedRow[x] = 1;
+				if (x < width - 1)
+					dilatedRow[x + 1] = 1;
+			}
+		}
+	}
+
+	/*
+	 * (non-javadoc)
+	 * dilates row y vertically; like findContours in OpenCV 2.4 the border of the frame is set to 0
+	 */
+	private void writeMaskRow(int y) {
+		int offset = y * width;
+		if (y == 0 || y == height - 1) {
+			Arrays.fill(mask, offset, offset + width, (byte) 0);
+			return;
+		}
+
+		byte[] above = dilatedRows[(y - 1) % 3];
+		byte[] row = dilatedRows[y % 3];
+		byte[] below = dilatedRows[(y + 1) % 3];
+		for (int x = 0; x < width; x++)
+			mask[offset + x] = (byte) (above[x] | row[x] | below[x]);
+		mask[offset] = 0;
+		mask[offset + width - 1] = 0;
+	}
+
+	/*
+	 * (non-javadoc)
+	 * labels row y of the mask: foreground is 8-connected, background 4-connected
+	 */
+	private void labelRow(int y) {
+		int[] labels = previousLabels;
+		previousLabels = currentLabels;
+		currentLabels = labels;
+
+		int offset = y * width;
+		boolean isBorderRow = y == 0 || y == height - 1;
+		for (int x = 0; x < width; x++) {
+			int label = 0;
+			if (mask[offset + x] != 0) {
+				if (x > 0 && mask[offset + x - 1] != 0)
+					label = labels[x - 1];
+				for (int neighbour = x - 1; neighbour <= x + 1; neighbour++) {
+					if (neighbour >= 0 && neighbour < width && mask[offset - width + neighbour] != 0)
+						label = label == 0 ? previousLabels[neighbour] : union(label, previousLabels[neighbour]);
+				}
+				if (label == 0) {
+					label = newLabel(false);
+					minX[label] = maxX[label] = firstX[label] = x;
+					minY[label] = maxY[label] = firstY[label] = y;
+					leftBackground[label] = labels[x - 1]; // the border is background, so x > 0
+				}
+
+				minX[label] = Math.min(minX[label], x);
+				maxX[label] = Math.max(maxX[label], x);
+				maxY[label] = y;
+				pixelCount[label]++;
+				sumX[label] += x;
+				sumY[label] += y;
+			} else {
+				if (x > 0 && mask[offset + x - 1] == 0)
+					label = labels[x - 1];
+				if (y > 0 && mask[offset - width + x] == 0)
+					label = label == 0 ? previousLabels[x] : union(label, previousLabels[x]);
+				if (label == 0)
+					label = newLabel(true);
+				if (isBorderRow || x == 0 || x == width - 1)
+					touchesBorder[label] = true;
+			}
+			labels[x] = label;
+		}
+	}
+
+	private int newLabel(boolean background) {
+		int label = ++numOfLabels;
+		if (label >= parent.length)
+			growLabels(Math.max(64, 2 * parent.length));
+
+		parent[label] = label;
+		isBackground[label] = background;
+		touchesBorder[label] = false;
+		pixelCount[label] = 0;
+		sumX[label] = 0;
+		sumY[label] = 0;
+		return label;
+	}
+
+	private void growLabels(int capacity) {
+		parent = Arrays.copyOf(parent, capacity);
+		isBackground = Arrays.copyOf(isBackground, capacity);
+		touchesBorder = Arrays.copyOf(touchesBorder, capacity);
+		minX = Arrays.copyOf(minX, capacity);
+		minY = Arrays.copyOf(minY, capacity);
+		maxX = Arrays.copyOf(maxX, capacity);
+		maxY = Arrays.copyOf(maxY, capacity);
+		pixelCount = Arrays.copyOf(pixelCount, capacity);
+		sumX = Arrays.copyOf(sumX, capacity);
+		sumY = Arrays.copyOf(sumY, capacity);
+		firstX = Arrays.copyOf(firstX, capacity);
+		firstY = Arrays.copyOf(firstY, capacity);
+		leftBackground = Arrays.copyOf(leftBackground, capacity);
+	}
+
+	private int find(int label) {
+		while (parent[label] != label) {
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+	/*
+	 * (non-javadoc)
+	 * the smaller root becomes the root of the union, thus the root of a region is its first label
+	 */
+	private int union(int lhs, int rhs) {
+		int lhsRoot = find(lhs);
+		int rhsRoot = find(rhs);
+		if (lhsRoot < rhsRoot) {
+			parent[rhsRoot] = lhsRoot;
+			return lhsRoot;
+		}
+		parent[lhsRoot] = rhsRoot;
+		return rhsRoot;
+	}
+
+	/*
+	 * (non-javadoc)
+	 * merges the statistics of every label into its root; roots are always smaller than the labels below them
+	 */
+	private void resolveLabels() {
+		for (int label = 1; label <= numOfLabels; label++) {
+			int root = find(label);
+			if (root == label)
+				continue;
+
+			if (isBackground[label]) {
+				touchesBorder[root] |= touchesBorder[label];
+				continue;
+			}
+
+			minX[root] = Math.min(minX[root], minX[label]);
+			minY[root] = Math.min(minY[root], minY[label]);
+			maxX[root] = Math.max(maxX[root], maxX[label]);
+			maxY[root] = Math.max(maxY[root], maxY[label]);
+			pixelCount[root] += pixelCount[label];
+			sumX[root] += sumX[label];
+			sumY[root] += sumY[label];
+			if (firstY[label] < firstY[root] || (firstY[label] == firstY[root] && firstX[label] < firstX[root])) {
+				firstX[root] = firstX[label];
+				firstY[root] = firstY[label];
+				leftBackground[root] = leftBackground[label];
+			}
+		}
+	}
+
+	/*
+	 * (non-javadoc)
+	 * every foreground region is a blob unless it lies within a hole of another region,
+	 * i.e. unless the background left of its first pixel does not touch the border of the frame
+	 */
+	private void collectBlobs() {
+		for (int label = 1; label <= numOfLabels; label++) {
+			if (isBackground[label] || parent[label] != label)
+				continue;
+			if (!touchesBorder[find(leftBackground[label])])
+				continue;
+
+			if (numOfBlobs == blobLabel.length) {
+				int capacity = Math.max(16, 2 * blobLabel.length);
+				blobLabel = Arrays.copyOf(blobLabel, capacity);
+				blobArea = Arrays.copyOf(blobArea, capacity);
+				blobLowestX = Arrays.copyOf(blobLowestX, capacity);
+				blobLowestY = Arrays.copyOf(blobLowestY, capacity);
+			}
+			blobLabel[numOfBlobs] = label;
+			traceBorder(numOfBlobs, firstX[label], firstY[label]);
+			numOfBlobs++;
+		}
+	}
+
+	/*
+	 * (non-javadoc)
+	 * follows the outer border of the blob starting at its first pixel like findContours does (Suzuki85);
+	 * the area of the polygon is calculated using the shoelace formula and the lowest point is the first
+	 * point of the border having the highest y-coordinate (see ColorBasedTracker.getLowestPointOfContour)
+	 */
+	private void traceBorder(int blob, int startX, int startY) {
+		blobLowestX[blob] = startX;
+		blobLowestY[blob] = startY;
+		blobArea[blob] = 0;
+
+		// search clockwise, starting at the west neighbour, for the last pixel of the border
+		int lastDirection = -1;
+		for (int i = 0; i < 8 && lastDirection == -1; i++) {
+			int direction = (WEST - i + 8) & 7;
+			if (mask[(startY + DY[direction]) * width + startX + DX[direction]] != 0)
+				lastDirection = direction;
+		}
+		if (lastDirection == -1)
+			return; // single pixel
+
+		int lastX = startX + DX[lastDirection];
+		int lastY = startY + DY[lastDirection];
+
+		// the border never touches the frame's border, so all neighbours are within the frame
+		int x = startX;
+		int y = startY;
+		int previousDirection = lastDirection;
+		long doubleArea = 0;
+		while (true) {
+			int direction = previousDirection;
+			do {
+				direction = (direction + 1) & 7;
+			} while (mask[(y + DY[direction]) * width + x + DX[direction]] == 0);
+
+			int nextX = x + DX[direction];
+			int nextY = y + DY[direction];
+			doubleArea += (long) x * nextY - (long) nextX * y;
+
+			if (nextX == startX && nextY == startY && x == lastX && y == lastY)
+				break;
+
+			if (nextY > blobLowestY[blob]) {
+				blobLowestX[blob] = nextX;
+				blobLowestY[blob] = nextY;
+			}
+			previousDirection = (direction + 4) & 7;
+			x = nextX;
+			y = nextY;
+		}
+		blobArea[blob] = Math.abs(doubleArea) / 2.0;
+	}
+
+	/**
+	 * @return the number of blobs found in the last frame
+	 */
+	public int getNumOfBlobs() {
+		return numOfBlobs;
+	}
+
+	/**
+	 * @return the area of the polygon spanned by the outer border of the blob (like <code>Imgproc.contourArea</code>)
+	 */
+	public double getBlobArea(int blob) {
+		checkBlob(blob);
+		return blobArea[blob];
+	}
+
+	/**
+	 * @return the number of pixels of the blob (after dilation)
+	 */
+	public int getBlobPixelCount(int blob) {
+		checkBlob(blob);
+		return pixelCount[blobLabel[blob]];
+	}
+
+	public Rect getBlobBoundingRect(int blob) {
+		checkBlob(blob);
+		int label = blobLabel[blob];
+		return new Rect(originX + minX[label], originY + minY[label], maxX[label] - minX[label] + 1,
+				maxY[label] - minY[label] + 1);
+	}
+
+	/**
+	 * @return the mean of the coordinates of all pixels of the blob
+	 */
+	public Point getBlobCentroid(int blob) {
+		checkBlob(blob);
+		int label = blobLabel[blob];
+		return new Point(originX + (double) sumX[label] / pixelCount[label],
+				originY + (double) sumY[label] / pixelCount[label]);
+	}
+
+	public Point getBlobLowestPoint(int blob) {
+		checkBlob(blob);
+		return new Point(originX + blobLowestX[blob], originY + blobLowestY[blob]);
+	}
+
+	private void checkBlob(int blob) {
+		if (blob < 0 || blob >= numOfBlobs)
+			throw new IndexOutOfBoundsException("blob: " + blob + ", number of blobs: " + numOfBlobs);
+	}
+
+	public Scalar getColorForTrackingHSV() {
+		return colorForTrackingHSV;
+	}
+
+	public void setColorForTrackingHSV(Scalar colorForTrackingHSV) {
+		this.colorForTrackingHSV = colorForTrackingHSV;
+		initializeBounds();
+	}
+
+	public Scalar getColorRadius() {
+		return colorRadius;
+	}
+
+	public void setColorRadius(Scalar colorRadius) {
+		this.colorRadius = colorRadius;
+		if (colorForTrackingHSV != null)
+			initializeBounds();
+	}
+
+	/**
+	 * @return the surrounding of the rectangle
+	 */
+	public List<Rect> getBoundingRects() {
+		return boundingRects;
+	}
+
+	public List<Point> getTrackPath() {
+		return trackPath;
+	}
+
+	/**
+	 * enables/disables the region-of-interest mode, see {@link ColorBasedTracker#setRegionOfInterestTracking(boolean)};
+	 * it applies to the <code>calcCenterOfMass...</code>- and <code>getLowestBoundOfContours...</code>-methods,
+	 * the <code>findBlobs...</code>-methods always process the whole frame
+	 */
+	public void setRegionOfInterestTracking(boolean regionOfInterestTracking) {
+		this.regionOfInterestTracking = regionOfInterestTracking;
+	}
+
+	public boolean isRegionOfInterestTracking() {
+		return regionOfInterestTracking;
+	}
+
+	/**
+	 * @return the search window used for the last frame or null if the whole frame has been processed
+	 */
+	public Rect getSearchWindow() {
+		return searchWindow;
+	}
+
+	public void release() {
+		width = 0;
+		height = 0;
+		frame = new byte[0];
+		mask = new byte[0];
+		for (int i = 0; i < dilatedRows.length; i++)
+			dilatedRows[i] = new byte[0];
+		previousLabels = new int[0];
+		currentLabels = new int[0];
+		numOfLabels = 0;
+		numOfBlobs = 0;
+		searchWindow = null;
+		growLabels(0);
+	}
+}
@@ -0,0 +1,137 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+import org.opencv.core.Scalar;
+
+/**
+ * Decides whether a pixel of an NV21 (YUV420sp) camera frame lies within the HSV-range used for tracking,
+ * without converting the frame to RGBA and HSV first.
+ *
+ * The conversions mirror what the pipeline did per frame so far (integer arithmetic of OpenCV 2.4):
+ * <code>JavaCameraFrame.rgba()</code> converts the NV21 data with <code>COLOR_YUV2BGR_NV12</code>
+ * (i.e. the interleaved chroma bytes are read in NV12 order and the channels in BGR order) and the result is then
+ * converted using <code>COLOR_RGB2HSV_FULL</code>. The range check is the one of <code>Core.inRange</code>.
+ *
+ * The table is indexed by the upper {@value #BITS_PER_CHANNEL} bits of Y and of both chroma bytes, every cell
+ * is evaluated at its center; so building it takes a few milliseconds only and it needs 32KB, but pixels
+ * that are within half a cell of the range's bounds may be classified differently than by the exact conversion.
+ */
+public class Nv21ColorLookupTable {
+	public static final int BITS_PER_CHANNEL = 6;
+	private static final int SHIFT = 8 - BITS_PER_CHANNEL;
+
+	// ITU-R BT.601 coefficients as used by OpenCV's YUV420sp conversion
+	private static final int ITUR_BT_601_CY = 1220542;
+	private static final int ITUR_BT_601_CUB = 2116026;
+	private static final int ITUR_BT_601_CUG = -409993;
+	private static final int ITUR_BT_601_CVG = -852492;
+	private static final int ITUR_BT_601_CVR = 1673527;
+	private static final int ITUR_BT_601_SHIFT = 20;
+
+	private static final int HSV_SHIFT = 12;
+	private static final int[] SDIV_TABLE = new int[256];
+	private static final int[] HDIV_TABLE = new int[256];
+	static {
+		for (int i = 1; i < 256; i++) {
+			SDIV_TABLE[i] = (int) Math.rint((255 << HSV_SHIFT) / (1. * i));
+			HDIV_TABLE[i] = (int) Math.rint((256 << HSV_SHIFT) / (6. * i));
+		}
+	}
+
+	private final long[] isInRange = new long[(1 << (3 * BITS_PER_CHANNEL)) / 64];
+
+	/**
+	 * (re-)builds the table for the supplied color and radius (both in HSV-color space, see {@link ColorBasedTracker})
+	 */
+	public void initialize(Scalar colorForTrackingHSV, Scalar colorRadius) {
+		int[] lowerBound = new int[3];
+		int[] upperBound = new int[3];
+		for (int channel = 0; channel < 3; channel++) {
+			lowerBound[channel] = saturate(colorForTrackingHSV.val[channel] - colorRadius.val[channel]);
+			upperBound[channel] = saturate(colorForTrackingHSV.val[channel] + colorRadius.val[channel]);
+		}
+
+		int[] hsv = new int[3];
+		int center = SHIFT > 0 ? 1 << (SHIFT - 1) : 0;
+		int cells = 1 << BITS_PER_CHANNEL;
+		for (int y = 0; y < cells; y++) {
+			for (int first = 0; first < cells; first++) {
+				for (int second = 0; second < cells; second++) {
+					toHsv((y << SHIFT) | center, (first << SHIFT) | center, (second << SHIFT) | center, hsv);
+
+					int index = indexOf(y, first, second);
+					boolean inRange = true;
+					for (int channel = 0; channel < 3; channel++)
+						inRange &= hsv[channel] >= lowerBound[channel] && hsv[channel] <= upperBound[channel];
+
+					if (inRange)
+						isInRange[index >>> 6] |= 1L << index;
+					else
+						isInRange[index >>> 6] &= ~(1L << index);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param y
+	 *  the luma byte of the pixel (0-255)
+	 * @param first
+	 *  the first byte of the interleaved chroma pair of the pixel (V in NV21; 0-255)
+	 * @param second
+	 *  the second byte of the interleaved chroma pair of the pixel (U in NV21; 0-255)
+	 */
+	public boolean isInRange(int y, int first, int second) {
+		int index = indexOf(y >>> SHIFT, first >>> SHIFT, second >>> SHIFT);
+		return (isInRange[index >>> 6] & (1L << index)) != 0;
+	}
+
+	private static int indexOf(int y, int first, int second) {
+		return (((y << BITS_PER_CHANNEL) | first) << BITS_PER_CHANNEL) | second;
+	}
+
+	private static int saturate(double value) {
+		return (int) Math.max(0, Math.min(255, Math.rint(value)));
+	}
+
+	private static int saturate(int value) {
+		return value < 0 ? 0 : (value > 255 ? 255 : value);
+	}
+
+	/*
+	 * (non-javadoc)
+	 * COLOR_YUV2BGR_NV12 (reading first as U and second as V) followed by COLOR_RGB2HSV_FULL on the BGR result
+	 */
+	private static void toHsv(int y, int first, int second, int[] hsv) {
+		int u = first - 128;
+		int v = second - 128;
+		int ruv = (1 << (ITUR_BT_601_SHIFT - 1)) + ITUR_BT_601_CVR * v;
+		int guv = (1 << (ITUR_BT_601_SHIFT - 1)) + ITUR_BT_601_CVG * v + ITUR_BT_601_CUG * u;
+		int buv = (1 << (ITUR_BT_601_SHIFT - 1)) + ITUR_BT_601_CUB * u;
+		int yy = Math.max(0, y - 16) * ITUR_BT_601_CY;
+
+		// the BGR image is treated as RGB afterwards, so red and blue are swapped
+		int r = saturate((yy + buv) >> ITUR_BT_601_SHIFT);
+		int g = saturate((yy + guv) >> ITUR_BT_601_SHIFT);
+		int b = saturate((yy + ruv) >> ITUR_BT_601_SHIFT);
+
+		int max = Math.max(r, Math.max(g, b));
+		int min = Math.min(r, Math.min(g, b));
+		int diff = max - min;
+
+		int s = (diff * SDIV_TABLE[max] + (1 << (HSV_SHIFT - 1))) >> HSV_SHIFT;
+		int h;
+		if (max == r)
+			h = g - b;
+		else if (max == g)
+			h = b - r + 2 * diff;
+		else
+			h = r - g + 4 * diff;
+		h = (h * HDIV_TABLE[diff] + (1 << (HSV_SHIFT - 1))) >> HSV_SHIFT;
+		if (h < 0)
+			h += 256;
+
+		hsv[0] = saturate(h);
+		hsv[1] = s;
+		hsv[2] = max;
+	}
+}
@@ -0,0 +1,92 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+import java.util.List;
+
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+/**
+ * the search window of the region-of-interest mode of {@link ColorBasedTracker} and {@link ConnectedComponentsTracker}
+ */
+final class RegionOfInterest {
+
+	/** minimal margin [px] around the predicted position of the target */
+	private static final int MINIMAL_SEARCH_MARGIN = 16;
+	/** the search window's size is rounded up to a multiple of this, so its buffers don't have to be reallocated every frame */
+	private static final int SEARCH_WINDOW_GRANULARITY = 32;
+	/** the whole frame is scanned at least every this many frames, so other blobs are found again */
+	static final int FULL_SCAN_INTERVAL = 30;
+
+	private RegionOfInterest() {
+	}
+
+	/**
+	 * predicts the region the target will be in by moving the bounding rectangles of the last frame
+	 * along the motion of the last two points of the track path and enlarging them by a margin
+	 * @return
+	 *  the search window or null iff there is nothing to predict from (or the window would be almost as big as the frame)
+	 */
+	static Rect predictSearchWindow(List<Rect> boundingRects, List<Point> trackPath, int frameWidth, int frameHeight) {
+		if(boundingRects.isEmpty())
+			return null;
+
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for(Rect rect : boundingRects) {
+			minX = Math.min(minX, rect.x);
+			minY = Math.min(minY, rect.y);
+			maxX = Math.max(maxX, rect.x + rect.width);
+			maxY = Math.max(maxY, rect.y + rect.height);
+		}
+
+		int dx = 0, dy = 0;
+		if(trackPath.size() >= 2) {
+			Point last = trackPath.get(trackPath.size() - 1);
+			Point secondLast = trackPath.get(trackPath.size() - 2);
+			dx = (int) (last.x - secondLast.x);
+			dy = (int) (last.y - secondLast.y);
+		}
+
+		int marginX = Math.max(MINIMAL_SEARCH_MARGIN, (maxX - minX) / 2) + Math.abs(dx);
+		int marginY = Math.max(MINIMAL_SEARCH_MARGIN, (maxY - minY) / 2) + Math.abs(dy);
+
+		int width = roundUpToGranularity(maxX - minX + 2 * marginX);
+		int height = roundUpToGranularity(maxY - minY + 2 * marginY);
+		if(2 * width * height > frameWidth * frameHeight)
+			return null;
+
+		int x = (minX + maxX) / 2 + dx - width / 2;
+		int y = (minY + maxY) / 2 + dy - height / 2;
+
+		// keep the window's size but move it into the frame
+		width = Math.min(width, frameWidth);
+		height = Math.min(height, frameHeight);
+		x = Math.max(0, Math.min(x, frameWidth - width));
+		y = Math.max(0, Math.min(y, frameHeight - height));
+
+		return new Rect(x, y, width, height);
+	}
+
+	private static int roundUpToGranularity(int length) {
+		return (length + SEARCH_WINDOW_GRANULARITY - 1) / SEARCH_WINDOW_GRANULARITY * SEARCH_WINDOW_GRANULARITY;
+	}
+
+	/**
+	 * like <code>findContours</code> the trackers clear the 1-pixel border of the window, so a target reaching
+	 * into it touches the window's border
+	 * @return
+	 *  whether the bounding rectangle of a target found within the search window touches a border of the window
+	 *  that is not a border of the frame (i.e. the target might extend beyond the window)
+	 */
+	static boolean isCutOff(Rect rect, Rect searchWindow, int frameWidth, int frameHeight) {
+		if(rect.x <= searchWindow.x + 1 && searchWindow.x > 0)
+			return true;
+		if(rect.y <= searchWindow.y + 1 && searchWindow.y > 0)
+			return true;
+		if(rect.x + rect.width >= searchWindow.x + searchWindow.width - 1 && searchWindow.x + searchWindow.width < frameWidth)
+			return true;
+		if(rect.y + rect.height >= searchWindow.y + searchWindow.height - 1 && searchWindow.y + searchWindow.height < frameHeight)
+			return true;
+		return false;
+	}
+}
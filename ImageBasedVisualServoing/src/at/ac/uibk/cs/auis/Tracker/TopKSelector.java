@@ -0,0 +1,139 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+/**
+ * Selects the indices of the k largest values out of a stream of (value, index)-pairs
+ * in O(n log k) without boxing anything: a min-heap of size k is kept in primitive arrays,
+ * its root is the smallest of the k largest values seen so far.
+ * Equal values are not dropped; among them the one offered first (i.e. the smaller index) ranks higher.
+ * 
+ * The selector is meant to be reused for every frame, it only allocates when k grows.
+ */
+public class TopKSelector {
+	private double[] values = new double[0];
+	private int[] indices = new int[0];
+	private int k;
+	private int size;
+
+	public TopKSelector() {
+	}
+
+	public TopKSelector(int k) {
+		reset(k);
+	}
+
+	/**
+	 * removes all elements and sets the number of elements to keep
+	 */
+	public void reset(int k) {
+		if (k < 0)
+			throw new IllegalArgumentException("k must not be negative");
+		if (values.length < k) {
+			values = new double[k];
+			indices = new int[k];
+		}
+		this.k = k;
+		this.size = 0;
+	}
+
+	public void offer(double value, int index) {
+		if (size < k) {
+			values[size] = value;
+			indices[size] = index;
+			siftUp(size++);
+		} else if (k > 0 && isLess(values[0], indices[0], value, index)) {
+			values[0] = value;
+			indices[0] = index;
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * @return the number of selected elements, i.e. min(k, number of offered elements)
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * sorts the selected elements by rank (largest first); has to be called before {@link #getIndex(int)}
+	 * and {@link #getValue(int)}; no further elements may be offered afterwards (without calling {@link #reset(int)})
+	 */
+	public void sort() {
+		// k is small (usually 1 or 2), so an insertion sort is sufficient
+		for (int i = 1; i < size; i++) {
+			double value = values[i];
+			int index = indices[i];
+			int j = i - 1;
+			while (j >= 0 && isLess(values[j], indices[j], value, index)) {
+				values[j + 1] = values[j];
+				indices[j + 1] = indices[j];
+				j--;
+			}
+			values[j + 1] = value;
+			indices[j + 1] = index;
+		}
+	}
+
+	/**
+	 * @return the index of the element with the supplied rank (0 is the largest one)
+	 */
+	public int getIndex(int rank) {
+		if (rank < 0 || rank >= size)
+			throw new IndexOutOfBoundsException("rank: " + rank + ", size: " + size);
+		return indices[rank];
+	}
+
+	/**
+	 * @return the value of the element with the supplied rank (0 is the largest one)
+	 */
+	public double getValue(int rank) {
+		if (rank < 0 || rank >= size)
+			throw new IndexOutOfBoundsException("rank: " + rank + ", size: " + size);
+		return values[rank];
+	}
+
+	/*
+	 * (non-javadoc)
+	 * orders by value; ties are broken by index, the bigger index being the lesser element
+	 */
+	private static boolean isLess(double lhsValue, int lhsIndex, double rhsValue, int rhsIndex) {
+		if (lhsValue != rhsValue)
+			return lhsValue < rhsValue;
+		return lhsIndex > rhsIndex;
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!isLess(values[i], indices[i], values[parent], indices[parent]))
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int left = 2 * i + 1;
+			if (left >= size)
+				break;
+			int smallest = left;
+			int right = left + 1;
+			if (right < size && isLess(values[right], indices[right], values[left], indices[left]))
+				smallest = right;
+			if (!isLess(values[smallest], indices[smallest], values[i], indices[i]))
+				break;
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+
+	private void swap(int i, int j) {
+		double value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+		int index = indices[i];
+		indices[i] = indices[j];
+		indices[j] = index;
+	}
+}
@@ -0,0 +1,51 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+/**
+ * common interface of all trackers that search for blobs of a given color (in HSV-color space)
+ */
+public interface Tracker {
+
+	/**
+	 * calculates the center of mass using <code>colorForTrackingHSV</code> and <code>colorRadius</code> as radius (in HSV-color space)
+	 * @param hsv
+	 *  the frame of which the center of mass should be calculated off
+	 * @return
+	 *  the center of mass as a point in pixel coordinates (i.e. integer)
+	 * @throws IllegalArgumentException
+	 *  iff there is no blob of the tracked color in the frame
+	 */
+	public Point calcCenterOfMass(Mat hsv);
+
+	/**
+	 * calculates the lowest points (i.e. the points that SHOULD touch the ground) of
+	 * @code numOfContours -Points and returns them as an array (which HAS have size numOfContours iff that many contours exist)
+	 */
+	public Point[] getLowestBoundOfContours(Mat hsv, int numOfContours);
+
+	/**
+	 * @return the bounding rectangles of the blobs found in the last frame
+	 */
+	public List<Rect> getBoundingRects();
+
+	public List<Point> getTrackPath();
+
+	public Scalar getColorForTrackingHSV();
+
+	public void setColorForTrackingHSV(Scalar colorForTrackingHSV);
+
+	public Scalar getColorRadius();
+
+	public void setColorRadius(Scalar colorRadius);
+
+	/**
+	 * frees the memory held by this tracker; it can still be used afterwards
+	 */
+	public void release();
+}
@@ -0,0 +1,104 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Calibration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+
+import at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common.CalibrationHelper;
+import at.ac.uibk.cs.auis.Tracker.OpenCvNativeLibrary;
+
+/**
+ * solves calibrations from noisy detections of a board seen through a known homography; needs OpenCV's
+ * native library (for <code>findHomography</code>)
+ */
+public class ChessboardCalibrationSessionTest {
+	private static final int COLUMNS = 7;
+	private static final int ROWS = 5;
+	private static final double SQUARE_SIZE = 2.5; // cm
+	private static final int FRAMES = 10;
+	private static final double NOISE = 0.3; // px
+
+	// ground plane (cm) to image plane (px)
+	private static final double[] HOMOGRAPHY = { 20, 2, 100, 1, -15, 400, 0.001, 0.002, 1 };
+
+	private List<Point> worldCoordinates;
+	private ChessboardCalibrationSession session;
+
+	@Before
+	public void setUp() {
+		OpenCvNativeLibrary.assumeLoaded();
+		worldCoordinates = new ArrayList<Point>();
+		for (int row = 0; row < ROWS; row++) {
+			for (int column = 0; column < COLUMNS; column++)
+				worldCoordinates.add(new Point(column * SQUARE_SIZE, row * SQUARE_SIZE));
+		}
+		session = new ChessboardCalibrationSession(worldCoordinates, FRAMES);
+	}
+
+	private Point[] detect(Random random, double offset) {
+		Point[] corners = new Point[worldCoordinates.size()];
+		for (int i = 0; i < corners.length; i++) {
+			Point world = worldCoordinates.get(i);
+			double w = HOMOGRAPHY[6] * world.x + HOMOGRAPHY[7] * world.y + HOMOGRAPHY[8];
+			double x = (HOMOGRAPHY[0] * world.x + HOMOGRAPHY[1] * world.y + HOMOGRAPHY[2]) / w;
+			double y = (HOMOGRAPHY[3] * world.x + HOMOGRAPHY[4] * world.y + HOMOGRAPHY[5]) / w;
+			corners[i] = new Point(x + offset + NOISE * random.nextGaussian(), y + NOISE * random.nextGaussian());
+		}
+		return corners;
+	}
+
+	@Test
+	public void averagedAndSingleFrameAreScoredOnTheSameFrames() {
+		Random random = new Random(4711);
+		List<Point[]> frames = new ArrayList<Point[]>();
+		for (int frame = 0; frame < FRAMES; frame++) {
+			// the board has been moved in the last frame
+			Point[] corners = detect(random, frame == FRAMES - 1 ? 10 : 0);
+			frames.add(corners);
+			session.addFrame(new MatOfPoint2f(corners));
+		}
+
+		ChessboardCalibrationSession.Statistics statistics = session.solve();
+		assertEquals(FRAMES - 1, statistics.getFramesUsed());
+		assertEquals(1, statistics.getFramesRejected());
+
+		// the errors are those of the corners of every used frame (which are stored as float)
+		CalibrationHelper calibrationHelper = statistics.getCalibrationHelper();
+		double sum = 0;
+		double max = 0;
+		for (Point[] corners : frames.subList(0, FRAMES - 1)) {
+			for (int i = 0; i < corners.length; i++) {
+				Point projected = calibrationHelper.calculateGroundPlaneCoordinates(corners[i]);
+				Point world = worldCoordinates.get(i);
+				double error = Math.hypot(projected.x - world.x, projected.y - world.y);
+				sum += error * error;
+				max = Math.max(max, error);
+			}
+		}
+		assertEquals(Math.sqrt(sum / ((FRAMES - 1) * worldCoordinates.size())), statistics.getRmsError(), 1e-6);
+		assertEquals(max, statistics.getMaxError(), 1e-6);
+
+		// the noise of a single frame is in the single-frame calibration, averaging reduces it
+		assertTrue(statistics.toString(), statistics.getRmsError() < statistics.getSingleFrameRmsError());
+		assertTrue(statistics.toString(), statistics.getRmsResidual() < statistics.getRmsError());
+	}
+
+	@Test
+	public void singleFrame() {
+		ChessboardCalibrationSession session = new ChessboardCalibrationSession(worldCoordinates, 1);
+		session.addFrame(new MatOfPoint2f(detect(new Random(4711), 0)));
+
+		ChessboardCalibrationSession.Statistics statistics = session.solve();
+		assertEquals(1, statistics.getFramesUsed());
+		assertEquals(statistics.getRmsResidual(), statistics.getRmsError(), 1e-9);
+		assertEquals(statistics.getRmsError(), statistics.getSingleFrameRmsError(), 1e-9);
+	}
+}
@@ -0,0 +1,170 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Point;
+
+import at.ac.uibk.cs.auis.Tracker.OpenCvNativeLibrary;
+
+/**
+ * writes and reads calibrations; every failure has to be reported as {@link IOException}, which is all the
+ * activity handles. Needs OpenCV's native library (the world coordinates are kept in a <code>MatOfPoint2f</code>).
+ */
+public class CalibrationFileTest {
+	private static final double[] HOMOGRAPHY = { 0.05, 0.01, -5, 0.002, -0.07, 28, 0.0001, 0.0002, 1 };
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		OpenCvNativeLibrary.assumeLoaded();
+		file = File.createTempFile("calibration", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		if (file != null)
+			file.delete();
+	}
+
+	private static CalibrationHelper createCalibration(GroundPlaneLookupTable lookupTable) {
+		List<Point> imagePlane = new ArrayList<Point>();
+		List<Point> world = new ArrayList<Point>();
+		for (int i = 0; i < 4; i++) {
+			imagePlane.add(new Point(100 + 200 * (i & 1), 100 + 150 * (i >> 1)));
+			world.add(new Point(10 * (i & 1), 10 * (i >> 1)));
+		}
+		return new CalibrationHelper(imagePlane, world, HOMOGRAPHY, lookupTable);
+	}
+
+	private byte[] write(CalibrationHelper calibrationHelper) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CalibrationFile.write(calibrationHelper, out);
+		return out.toByteArray();
+	}
+
+	private CalibrationHelper read(byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return CalibrationFile.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		CalibrationHelper calibrationHelper = read(write(createCalibration(null)));
+		assertArrayEquals(HOMOGRAPHY, calibrationHelper.getProjector().getHomography(), 0);
+		assertEquals(new Point(300, 250), calibrationHelper.getImagePlaneCoordinates().get(3));
+		assertEquals(new Point(10, 10), calibrationHelper.getWorldCoordinates(4)); // 1-based
+		assertNull(calibrationHelper.getLookupTable());
+	}
+
+	@Test
+	public void roundTripWithLookupTable() throws IOException {
+		CalibrationHelper written = createCalibration(null);
+		written.buildLookupTable(64, 48, 8);
+		GroundPlaneLookupTable lookupTable = read(write(written)).getLookupTable();
+		assertEquals(64, lookupTable.getWidth());
+		assertEquals(48, lookupTable.getHeight());
+		assertEquals(8, lookupTable.getStep());
+		assertArrayEquals(written.getLookupTable().getGridX(), lookupTable.getGridX(), 0);
+		assertArrayEquals(written.getLookupTable().getGridY(), lookupTable.getGridY(), 0);
+	}
+
+	@Test
+	public void lookupTableNotMatchingItsSizeIsAnIOException() throws IOException {
+		CalibrationHelper written = createCalibration(null);
+		written.buildLookupTable(64, 48, 8);
+		byte[] data = write(written);
+
+		// a table of the same number of grid-points, but another shape: the checksum is fine, the size is not
+		ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		int lookupTableOffset = 5 * 4 + 9 * 8 + 16 * 8;
+		assertEquals(64, buffer.getInt(lookupTableOffset));
+		buffer.putInt(lookupTableOffset, 32);
+		buffer.putInt(lookupTableOffset + 4, 96);
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length - 4);
+		buffer.putInt(data.length - 4, (int) crc.getValue());
+
+		try {
+			read(data);
+			fail("the lookup table does not match its size");
+		} catch (IOException e) {
+		}
+
+		// a step of 0 is rejected as well
+		buffer.putInt(lookupTableOffset + 8, 0);
+		crc.reset();
+		crc.update(data, 0, data.length - 4);
+		buffer.putInt(data.length - 4, (int) crc.getValue());
+		try {
+			read(data);
+			fail("the step must be positive");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void corruptFileIsAnIOException() throws IOException {
+		byte[] data = write(createCalibration(null));
+		data[40] ^= 1;
+		try {
+			read(data);
+			fail("the checksum does not match");
+		} catch (IOException e) {
+		}
+		try {
+			read(Arrays.copyOf(data, 50));
+			fail("the file is truncated");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void calibrationWithoutHomographyIsAnIOException() throws IOException {
+		// collinear or identical points: findHomography yields a matrix of NaNs or zeros
+		Point[][] degenerate = { { new Point(0, 0), new Point(1, 1), new Point(2, 2), new Point(3, 3) },
+				{ new Point(1, 1), new Point(1, 1), new Point(1, 1), new Point(1, 1), new Point(1, 1) } };
+		for (Point[] imagePlane : degenerate) {
+			List<Point> world = new ArrayList<Point>();
+			for (int i = 0; i < imagePlane.length; i++)
+				world.add(new Point(10 * (i % 2), 10 * (i / 2)));
+			CalibrationHelper calibrationHelper = new CalibrationHelper(world);
+			for (int i = 0; i < imagePlane.length; i++)
+				calibrationHelper.addImagePlaneCoordinates(i, imagePlane[i]);
+
+			try {
+				write(calibrationHelper);
+				fail(Arrays.toString(calibrationHelper.getProjector().getHomography()));
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Robot;
+
+import ioio.lib.impl.IOIOEmulator;
+
+/**
+ * Mimics the robot's motor controller (I2C-slave 0x69) on an {@link IOIOEmulator}, so that {@link Robot} and
+ * its {@link TwiCommandQueue} can be run and load-tested without the robot.
+ *
+ * Understands the commands the robot sends: 0x1C (move by the argument in cm), 0x1D (rotate by the argument in degree)
+ * and 0x10 (read the 8 sensor-bytes, see {@link #setSensors(byte[])}). Misbehaviour can be scripted: every n-th command
+ * is not acknowledged or its result gets lost, and every command may take a fixed time.
+ *
+ * Lives in the test source folder, which is compiled to bin/test-classes together with IOIOLib's test folder
+ * (linked as ioio_test), so it is not packaged into the APK. Used by {@link EmulatedMotorControllerTest} and
+ * {@link MotorControllerLoadTest}.
+ */
+public class EmulatedMotorController implements IOIOEmulator.TwiDevice {
+	public static final int ADDRESS = 0x69;
+
+	private static final byte GET_SENSORS = 0x10;
+	private static final byte MOVE = 0x1C;
+	private static final byte ROTATE = 0x1D;
+
+	private final RobotPosition _position = new RobotPosition();
+	private final byte[] _sensors = new byte[8];
+	private int _nackEvery;
+	private int _loseEvery;
+	private long _latencyMs;
+	private long _commands;
+	private long _unknownCommands;
+
+	/**
+	 * adds the controller to the supplied TWI-module of the emulator
+	 */
+	public static EmulatedMotorController attach(IOIOEmulator emulator, int twiNum) {
+		EmulatedMotorController controller = new EmulatedMotorController();
+		emulator.addTwiDevice(twiNum, ADDRESS, controller);
+		return controller;
+	}
+
+	@Override
+	public synchronized int writeRead(byte[] writeData, int writeSize, byte[] readData, int readSize) {
+		_commands++;
+		if (_latencyMs > 0) {
+			try {
+				Thread.sleep(_latencyMs);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (_loseEvery > 0 && _commands % _loseEvery == 0)
+			return IOIOEmulator.TWI_NO_RESPONSE;
+		if (_nackEvery > 0 && _commands % _nackEvery == 0)
+			return IOIOEmulator.TWI_NACK;
+		if (writeSize == 0)
+			return IOIOEmulator.TWI_NACK;
+
+		switch (writeData[0]) {
+		case GET_SENSORS:
+			for (int i = 0; i < readSize; i++)
+				readData[i] = i < _sensors.length ? _sensors[i] : 0;
+			break;
+		case MOVE:
+			if (writeSize > 1)
+				_position.xPos += writeData[1];
+			break;
+		case ROTATE:
+			if (writeSize > 1)
+				_position.anglePos += writeData[1];
+			break;
+		default:
+			_unknownCommands++;
+			return IOIOEmulator.TWI_NACK;
+		}
+		return IOIOEmulator.TWI_ACK;
+	}
+
+	/**
+	 * sets the values returned by the next sensor-reads (at most 8 bytes)
+	 */
+	public synchronized void setSensors(byte[] sensors) {
+		System.arraycopy(sensors, 0, _sensors, 0, Math.min(sensors.length, _sensors.length));
+	}
+
+	/**
+	 * @param nackEvery
+	 *  every nackEvery-th command is not acknowledged (0 for never)
+	 * @param loseEvery
+	 *  the result of every loseEvery-th command is not sent (0 for never)
+	 */
+	public synchronized void setFailures(int nackEvery, int loseEvery) {
+		_nackEvery = nackEvery;
+		_loseEvery = loseEvery;
+	}
+
+	/**
+	 * @param latencyMs
+	 *  the time every command takes; delays the responses to all later commands of the emulated board, too
+	 */
+	public synchronized void setLatency(long latencyMs) {
+		_latencyMs = latencyMs;
+	}
+
+	/**
+	 * @return the sum of all moves and rotations executed so far
+	 */
+	public synchronized RobotPosition getPosition() {
+		return new RobotPosition(_position.xPos, _position.yPos, _position.anglePos);
+	}
+
+	public synchronized long getCommands() {
+		return _commands;
+	}
+
+	public synchronized long getUnknownCommands() {
+		return _unknownCommands;
+	}
+}
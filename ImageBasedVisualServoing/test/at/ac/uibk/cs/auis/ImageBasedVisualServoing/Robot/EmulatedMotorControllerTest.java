@@ -0,0 +1,130 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Robot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import ioio.lib.api.TwiMaster;
+import ioio.lib.impl.IOIOEmulator;
+import ioio.lib.impl.IOIOImpl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives a {@link TwiCommandQueue} (set up like {@link Robot} does) against the {@link EmulatedMotorController}
+ * on an {@link IOIOEmulator}.
+ */
+public class EmulatedMotorControllerTest {
+	private static final int TWI_NUM = 1;
+	private static final long TIMEOUT_MS = 5000;
+
+	private IOIOEmulator _emulator;
+	private EmulatedMotorController _controller;
+	private IOIOImpl _ioio;
+	private TwiCommandQueue _queue;
+
+	@Before
+	public void connect() throws Exception {
+		_emulator = new IOIOEmulator();
+		_controller = EmulatedMotorController.attach(_emulator, TWI_NUM);
+		_ioio = new IOIOImpl(_emulator.createConnection());
+		_ioio.waitForConnect();
+		_queue = new TwiCommandQueue(_ioio, TWI_NUM, TwiMaster.Rate.RATE_100KHz, EmulatedMotorController.ADDRESS, 4,
+				100);
+	}
+
+	@After
+	public void disconnect() throws Exception {
+		_queue.close();
+		_ioio.disconnect();
+		_ioio.waitForDisconnect();
+	}
+
+	private void waitUntilIdle() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (_queue.getPendingCommands() > 0) {
+			assertTrue("commands still pending", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void executesMotions() throws Exception {
+		_queue.submitMotion((byte) 0x1C, (byte) 10);
+		_queue.submitMotion((byte) 0x1D, (byte) 90);
+		_queue.submitMotion((byte) 0x1C, (byte) -3);
+		waitUntilIdle();
+
+		RobotPosition position = _controller.getPosition();
+		assertEquals(7, position.xPos);
+		assertEquals(90, position.anglePos);
+		assertEquals(0, _queue.getFailedCommands());
+	}
+
+	@Test
+	public void readsSensors() throws Exception {
+		final byte[] sensors = { 1, 2, 3, 4, 5, 6, 7, 8 };
+		_controller.setSensors(sensors);
+		final byte[][] received = new byte[1][];
+		assertTrue(_queue.submitRead((byte) 0x10, 8, new TwiCommandQueue.ReadListener() {
+			@Override
+			public void onRead(byte opcode, boolean success, byte[] response) {
+				if (success)
+					received[0] = response.clone();
+			}
+		}));
+		waitUntilIdle();
+
+		assertArrayEquals(sensors, received[0]);
+	}
+
+	@Test
+	public void countsUnacknowledgedCommands() throws Exception {
+		_controller.setFailures(2, 0);
+		for (int i = 0; i < 10; i++) {
+			_queue.submitMotion((byte) (i % 2 == 0 ? 0x1C : 0x1D), (byte) 1);
+			waitUntilIdle();
+		}
+
+		assertEquals(10, _controller.getCommands());
+		assertEquals(5, _queue.getFailedCommands());
+		assertEquals(0, _queue.getTimedOutCommands());
+	}
+
+	@Test
+	public void recoversFromLostResponses() throws Exception {
+		final byte[] sensors = { 42, 0, 0, 0, 0, 0, 0, 1 };
+		_controller.setSensors(sensors);
+		_controller.setFailures(0, 5);
+		final AtomicInteger reads = new AtomicInteger();
+		final AtomicInteger wrongReads = new AtomicInteger();
+		TwiCommandQueue.ReadListener listener = new TwiCommandQueue.ReadListener() {
+			@Override
+			public void onRead(byte opcode, boolean success, byte[] response) {
+				if (!success)
+					return;
+				reads.incrementAndGet();
+				for (int i = 0; i < sensors.length; i++) {
+					if (response[i] != sensors[i])
+						wrongReads.incrementAndGet();
+				}
+			}
+		};
+
+		// a motion's response taken for a read (or vice versa) would have the wrong size
+		for (int i = 0; i < 50; i++) {
+			_queue.submitMotion((byte) 0x1C, (byte) 1);
+			_queue.submitRead((byte) 0x10, 8, listener);
+			_queue.submitMotion((byte) 0x1D, (byte) 1);
+			Thread.sleep(2);
+		}
+		waitUntilIdle();
+
+		assertTrue(_queue.getReopenings() > 0);
+		assertTrue(reads.get() > 0);
+		assertEquals(0, wrongReads.get());
+	}
+}
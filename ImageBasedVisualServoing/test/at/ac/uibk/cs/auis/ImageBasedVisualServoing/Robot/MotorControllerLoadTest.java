@@ -0,0 +1,88 @@
+package at.ac.uibk.cs.auis.ImageBasedVisualServoing.Robot;
+
+import ioio.lib.api.TwiMaster;
+import ioio.lib.impl.IOIOEmulator;
+import ioio.lib.impl.IOIOImpl;
+import ioio.lib.impl.ModuleStats;
+
+/**
+ * Load test of the robot's I2C path without the robot: like {@link Robot}, a {@link TwiCommandQueue} sends
+ * motions (0x1C, 0x1D) and sensor-reads (0x10) to the {@link EmulatedMotorController} at 0x69, here as fast as
+ * the queue accepts them. Reports the commands executed per second, the latency of the sensor-reads and the
+ * TWI-module's statistics (see {@link IOIOImpl#getTwiStats(int)}).
+ *
+ * Usage: MotorControllerLoadTest [seconds [latency of the controller in ms [nack every n-th [lose every n-th]]]]
+ */
+public class MotorControllerLoadTest {
+	private static final int TWI_NUM = 1;
+	private static final int MAX_COMMANDS_IN_FLIGHT = 4; // see Robot
+	private static final long TWI_TIMEOUT_MS = 100;
+
+	private static long _readRequestedNanos;
+	private static long _readLatencySumNanos;
+	private static long _readLatencyMaxNanos;
+	private static long _reads;
+	private static long _failedReads;
+
+	public static void main(String[] args) throws Exception {
+		long durationMs = args.length > 0 ? Long.parseLong(args[0]) * 1000 : 3000;
+		long latencyMs = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		int nackEvery = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		int loseEvery = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+		IOIOEmulator emulator = new IOIOEmulator();
+		EmulatedMotorController controller = EmulatedMotorController.attach(emulator, TWI_NUM);
+		controller.setLatency(latencyMs);
+		controller.setFailures(nackEvery, loseEvery);
+
+		IOIOImpl ioio = new IOIOImpl(emulator.createConnection());
+		ioio.waitForConnect();
+		TwiCommandQueue queue = new TwiCommandQueue(ioio, TWI_NUM, TwiMaster.Rate.RATE_100KHz,
+				EmulatedMotorController.ADDRESS, MAX_COMMANDS_IN_FLIGHT, TWI_TIMEOUT_MS);
+		TwiCommandQueue.ReadListener listener = new TwiCommandQueue.ReadListener() {
+			@Override
+			public void onRead(byte opcode, boolean success, byte[] response) {
+				synchronized (MotorControllerLoadTest.class) {
+					long latency = System.nanoTime() - _readRequestedNanos;
+					_readLatencySumNanos += latency;
+					_readLatencyMaxNanos = Math.max(_readLatencyMaxNanos, latency);
+					_reads++;
+					if (!success)
+						_failedReads++;
+				}
+			}
+		};
+
+		long start = System.currentTimeMillis();
+		long end = start + durationMs;
+		int i = 0;
+		while (System.currentTimeMillis() < end) {
+			synchronized (MotorControllerLoadTest.class) {
+				long requested = System.nanoTime();
+				if (queue.submitRead((byte) 0x10, 8, listener))
+					_readRequestedNanos = requested;
+			}
+			queue.submitMotion((byte) 0x1C, (byte) 1);
+			queue.submitMotion((byte) 0x1D, (byte) (i++ % 2 == 0 ? 1 : -1));
+			// keep the queue short, as the robot's control loop does
+			while (queue.getPendingCommands() > 2 * MAX_COMMANDS_IN_FLIGHT)
+				Thread.sleep(0, 100000);
+		}
+		long elapsedMs = System.currentTimeMillis() - start;
+
+		queue.close();
+		ModuleStats stats = ioio.getTwiStats(TWI_NUM);
+		ioio.disconnect();
+		ioio.waitForDisconnect();
+
+		synchronized (MotorControllerLoadTest.class) {
+			System.out.printf("commands executed: %d/s (coalesced: %d, failed: %d, timed out: %d, reopenings: %d)%n",
+					controller.getCommands() * 1000 / elapsedMs, queue.getCoalescedCommands(),
+					queue.getFailedCommands(), queue.getTimedOutCommands(), queue.getReopenings());
+			System.out.printf("sensor-reads: %d/s (failed: %d), latency mean %dus, max %dus%n",
+					_reads * 1000 / elapsedMs, _failedReads, _reads == 0 ? 0 : _readLatencySumNanos / _reads / 1000,
+					_readLatencyMaxNanos / 1000);
+			System.out.println(stats);
+		}
+	}
+}
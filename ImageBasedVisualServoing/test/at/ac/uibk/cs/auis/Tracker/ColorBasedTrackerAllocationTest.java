@@ -0,0 +1,139 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+/**
+ * counts what {@link ColorBasedTracker} allocates per frame once it has warmed up: the masks must not be
+ * reallocated (their native data stays at the same address) and the heap allocated by the tracking thread
+ * must stay within what the class comment lists, i.e. a fixed amount plus a small amount per contour,
+ * independent of the resolution. Needs OpenCV's native library and a JVM which counts the bytes allocated
+ * per thread (<code>com.sun.management.ThreadMXBean</code>).
+ */
+public class ColorBasedTrackerAllocationTest {
+	private static final int WARM_UP_FRAMES = 200;
+	private static final int FRAMES = 500;
+	/** heap per frame without any contour: findContours' temporary Mat and list, the results */
+	private static final long FIXED_BYTES_PER_FRAME = 512;
+	/** heap per contour and frame: the Mat and MatOfPoint created by OpenCV's Java bindings */
+	private static final long BYTES_PER_CONTOUR = 192;
+
+	private com.sun.management.ThreadMXBean threadMXBean;
+	private ColorBasedTracker tracker;
+
+	@Before
+	public void setUp() {
+		OpenCvNativeLibrary.assumeLoaded();
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+		threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+		tracker = new ColorBasedTracker();
+		tracker.setColorForTrackingHSV(SyntheticFrame.TARGET);
+	}
+
+	@After
+	public void tearDown() {
+		if (tracker != null)
+			tracker.release();
+	}
+
+	private static SyntheticFrame frameWithBlobs(int width, int height, int numOfBlobs) {
+		SyntheticFrame frame = new SyntheticFrame(width, height).fill(40, 40, 30, 20);
+		Random random = new Random(numOfBlobs);
+		// 2x2 blobs on a grid of 6 pixels, so they do not merge when dilated
+		for (int i = 0; i < numOfBlobs; i++)
+			frame.fill(100 + random.nextInt(36) * 6, 6 + random.nextInt(36) * 6, 2, 2);
+		return frame;
+	}
+
+	/**
+	 * @return the mean number of bytes allocated by this thread per frame after warming up
+	 */
+	private long measureBytesPerFrame(Mat hsv) {
+		for (int i = 0; i < WARM_UP_FRAMES; i++)
+			tracker.getLowestBoundOfContours(hsv, 2);
+
+		long threadId = Thread.currentThread().getId();
+		long before = threadMXBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < FRAMES; i++)
+			tracker.getLowestBoundOfContours(hsv, 2);
+		return (threadMXBean.getThreadAllocatedBytes(threadId) - before) / FRAMES;
+	}
+
+	@Test
+	public void masksAreNotReallocated() {
+		Mat hsv = frameWithBlobs(320, 240, 20).toMat();
+		tracker.getLowestBoundOfContours(hsv, 2);
+		long blackWhiteMask = tracker.getBlackWhiteMask().dataAddr();
+		long dilatedMask = tracker.getDilatedMask().dataAddr();
+
+		for (int i = 0; i < FRAMES; i++)
+			tracker.getLowestBoundOfContours(hsv, 2);
+
+		assertEquals(blackWhiteMask, tracker.getBlackWhiteMask().dataAddr());
+		assertEquals(dilatedMask, tracker.getDilatedMask().dataAddr());
+		hsv.release();
+	}
+
+	@Test
+	public void heapPerFrame() {
+		Mat withoutNoise = frameWithBlobs(320, 240, 0).toMat();
+		Mat withNoise = frameWithBlobs(320, 240, 100).toMat();
+
+		long fixed = measureBytesPerFrame(withoutNoise);
+		int numOfContours = tracker.getContour().size();
+		long withContours = measureBytesPerFrame(withNoise);
+		int numOfNoisyContours = tracker.getContour().size();
+		System.out.println("ColorBasedTracker: " + fixed + " bytes per frame with " + numOfContours + " contour(s), "
+				+ withContours + " bytes with " + numOfNoisyContours + " contours");
+
+		assertTrue(fixed + " bytes per frame", fixed <= FIXED_BYTES_PER_FRAME + numOfContours * BYTES_PER_CONTOUR);
+		long perContour = (withContours - fixed) / (numOfNoisyContours - numOfContours);
+		assertTrue(perContour + " bytes per contour", perContour <= BYTES_PER_CONTOUR);
+		withoutNoise.release();
+		withNoise.release();
+	}
+
+	@Test
+	public void heapPerFrameDoesNotDependOnResolution() {
+		Mat small = frameWithBlobs(320, 240, 10).toMat();
+		Mat large = frameWithBlobs(640, 480, 10).toMat();
+
+		// the first measurement also lets the JIT settle, its escape analysis removes some allocations
+		measureBytesPerFrame(small);
+		long smallBytes = measureBytesPerFrame(small);
+		int numOfContours = tracker.getContour().size();
+		long largeBytes = measureBytesPerFrame(large);
+
+		assertEquals(numOfContours, tracker.getContour().size());
+		// the JIT removes some allocations at times, so only an increase counts
+		assertTrue(smallBytes + " bytes per frame at 320x240, " + largeBytes + " at 640x480",
+				largeBytes <= smallBytes + 64);
+		small.release();
+		large.release();
+	}
+
+	@Test
+	public void heapPerFrameInRegionOfInterestMode() {
+		tracker.setRegionOfInterestTracking(true);
+		Mat hsv = frameWithBlobs(640, 480, 0).toMat();
+
+		long bytes = measureBytesPerFrame(hsv);
+		System.out.println("ColorBasedTracker (region of interest): " + bytes + " bytes per frame");
+
+		// the search window, its submat and the bounding rectangles checked against the window
+		assertTrue(bytes + " bytes per frame", bytes <= FIXED_BYTES_PER_FRAME + 4 * BYTES_PER_CONTOUR);
+		hsv.release();
+	}
+}
@@ -0,0 +1,264 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+/**
+ * checks the lowest points, bounding rectangles and the ordering of the blobs found by
+ * {@link ConnectedComponentsTracker} in synthetic frames; all blobs grow by one pixel as the mask is dilated.
+ * {@link #sameResultsAsColorBasedTracker()} compares it with {@link ColorBasedTracker} and
+ * {@link #sameResultsForNv21AsForTheConvertedFrame()} its NV21-path with tracking the frame converted by OpenCV;
+ * both need OpenCV's native library, all other tests run on the JVM only.
+ */
+public class ConnectedComponentsTrackerTest {
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+
+	private ConnectedComponentsTracker tracker;
+
+	@Before
+	public void setUp() {
+		tracker = new ConnectedComponentsTracker();
+		tracker.setColorForTrackingHSV(SyntheticFrame.TARGET);
+	}
+
+	private Point[] track(SyntheticFrame frame, int numOfContours) {
+		return tracker.getLowestBoundOfContours(frame.hsv, frame.width, frame.height, 3, numOfContours);
+	}
+
+	@Test
+	public void rectangle() {
+		Point[] lowestPoints = track(new SyntheticFrame(WIDTH, HEIGHT).fill(10, 20, 10, 10), 1);
+
+		assertEquals(new Point(9, 30), lowestPoints[0]);
+		assertEquals(new Rect(9, 19, 12, 12), tracker.getBoundingRects().get(0));
+		assertEquals(1, tracker.getNumOfBlobs());
+		assertEquals(11 * 11, tracker.getBlobArea(0), 0);
+		assertEquals(12 * 12, tracker.getBlobPixelCount(0));
+		assertEquals(new Point(14.5, 24.5), tracker.getBlobCentroid(0));
+	}
+
+	@Test
+	public void blobWithinRingIsSkipped() {
+		SyntheticFrame frame = new SyntheticFrame(WIDTH, HEIGHT).ring(40, 40, 40, 5).fill(55, 55, 10, 10);
+		Point[] lowestPoints = track(frame, 2);
+
+		assertEquals(1, tracker.getNumOfBlobs());
+		assertEquals(new Point(39, 80), lowestPoints[0]);
+		assertNull(lowestPoints[1]);
+		assertEquals(1, tracker.getBoundingRects().size());
+		assertEquals(new Rect(39, 39, 42, 42), tracker.getBoundingRects().get(0));
+		// the hole does not count: the area is the one of the outer border
+		assertEquals(41 * 41, tracker.getBlobArea(0), 0);
+	}
+
+	@Test
+	public void uShape() {
+		Point[] lowestPoints = track(new SyntheticFrame(WIDTH, HEIGHT).u(100, 50, 30, 40, 6), 1);
+
+		assertEquals(new Point(99, 90), lowestPoints[0]);
+		assertEquals(new Rect(99, 49, 32, 42), tracker.getBoundingRects().get(0));
+		// the outer border runs into the U: the area is that of the rectangle less the notch between the legs
+		// (17 wide, 33 deep and a diagonal step at both of its lower corners)
+		assertEquals(31 * 41 - (17 * 33 + 16), tracker.getBlobArea(0), 0);
+	}
+
+	@Test
+	public void invertedUShapeYieldsTheFirstLowestPointOfTheBorder() {
+		// both legs end on the same row; the border is followed down the left leg first
+		Point[] lowestPoints = track(new SyntheticFrame(WIDTH, HEIGHT).invertedU(100, 50, 30, 40, 6), 1);
+
+		assertEquals(new Point(99, 90), lowestPoints[0]);
+		assertEquals(new Rect(99, 49, 32, 42), tracker.getBoundingRects().get(0));
+	}
+
+	@Test
+	public void largestBlobsFirst() {
+		SyntheticFrame frame = new SyntheticFrame(WIDTH, HEIGHT).fill(10, 10, 10, 10).fill(50, 10, 30, 30)
+				.fill(100, 100, 20, 20);
+		Point[] lowestPoints = track(frame, 3);
+
+		assertEquals(new Point(49, 40), lowestPoints[0]);
+		assertEquals(new Point(99, 120), lowestPoints[1]);
+		assertEquals(new Point(9, 20), lowestPoints[2]);
+		List<Rect> boundingRects = tracker.getBoundingRects();
+		assertEquals(new Rect(49, 9, 32, 32), boundingRects.get(0));
+		assertEquals(new Rect(99, 99, 22, 22), boundingRects.get(1));
+		assertEquals(new Rect(9, 9, 12, 12), boundingRects.get(2));
+	}
+
+	@Test
+	public void equalAreasAreOrderedByTheirFirstPixel() {
+		// both blobs are kept; the one starting first in raster order (the upper one) ranks first
+		SyntheticFrame frame = new SyntheticFrame(WIDTH, HEIGHT).fill(10, 100, 10, 10).fill(200, 50, 10, 10);
+		Point[] lowestPoints = track(frame, 2);
+
+		assertEquals(new Point(199, 60), lowestPoints[0]);
+		assertEquals(new Point(9, 110), lowestPoints[1]);
+		assertEquals(tracker.getBlobArea(0), tracker.getBlobArea(1), 0);
+	}
+
+	@Test
+	public void frameBorderIsIgnored() {
+		// like findContours, the 1-pixel border of the frame is cleared
+		SyntheticFrame frame = new SyntheticFrame(WIDTH, HEIGHT).fill(0, 0, 10, 10).fill(WIDTH - 5, HEIGHT - 5, 5, 5);
+		Point[] lowestPoints = track(frame, 2);
+
+		assertEquals(new Point(1, 10), lowestPoints[0]);
+		assertEquals(new Point(WIDTH - 6, HEIGHT - 2), lowestPoints[1]);
+		assertEquals(new Rect(1, 1, 10, 10), tracker.getBoundingRects().get(0));
+		assertEquals(new Rect(WIDTH - 6, HEIGHT - 6, 5, 5), tracker.getBoundingRects().get(1));
+	}
+
+	@Test
+	public void lessBlobsThanRequested() {
+		Point[] lowestPoints = track(new SyntheticFrame(WIDTH, HEIGHT), 2);
+
+		assertEquals(2, lowestPoints.length);
+		assertNull(lowestPoints[0]);
+		assertNull(lowestPoints[1]);
+		assertEquals(0, tracker.getBoundingRects().size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void centerOfMassOfEmptyFrame() {
+		SyntheticFrame frame = new SyntheticFrame(WIDTH, HEIGHT);
+		tracker.calcCenterOfMass(frame.hsv, frame.width, frame.height, 3);
+	}
+
+	@Test
+	public void sameResultsAsColorBasedTracker() {
+		OpenCvNativeLibrary.assumeLoaded();
+		ColorBasedTracker colorBasedTracker = new ColorBasedTracker();
+		colorBasedTracker.setColorForTrackingHSV(SyntheticFrame.TARGET);
+
+		Random random = new Random(4711);
+		for (int i = 0; i < 50; i++) {
+			SyntheticFrame frame = new SyntheticFrame(WIDTH, HEIGHT).noise(random, 300, 0);
+			// shapes of different area, so the order does not depend on how ties are broken
+			for (int shape = 0; shape < 6; shape++) {
+				int x = random.nextInt(WIDTH - 40);
+				int y = random.nextInt(HEIGHT - 40);
+				switch (shape % 3) {
+				case 0:
+					frame.fill(x, y, 5 + 7 * shape, 4 + 5 * shape);
+					break;
+				case 1:
+					frame.ring(x, y, 20 + 3 * shape, 3);
+					break;
+				default:
+					frame.u(x, y, 15 + 3 * shape, 25, 4);
+					break;
+				}
+			}
+
+			Mat hsv = frame.toMat();
+			for (int numOfContours = 1; numOfContours <= 3; numOfContours++) {
+				Point[] expected = colorBasedTracker.getLowestBoundOfContours(hsv, numOfContours);
+				Point[] actual = tracker.getLowestBoundOfContours(hsv, numOfContours);
+				String message = frame + ", " + numOfContours + " contours";
+				assertEquals(message, expected.length, actual.length);
+				for (int j = 0; j < expected.length; j++)
+					assertEquals(message, expected[j], actual[j]);
+				assertEquals(message, colorBasedTracker.getBoundingRects(), tracker.getBoundingRects());
+			}
+			hsv.release();
+		}
+		colorBasedTracker.release();
+	}
+
+	@Test
+	public void sameResultsForNv21AsForTheConvertedFrame() {
+		OpenCvNativeLibrary.assumeLoaded();
+		ConnectedComponentsTracker nv21Tracker = new ConnectedComponentsTracker();
+		nv21Tracker.setColorForTrackingHSV(SyntheticFrame.TARGET);
+		byte[] hsv = new byte[WIDTH * HEIGHT * 3];
+
+		Random random = new Random(4711);
+		for (int i = 0; i < 20; i++) {
+			SyntheticFrame frame = new SyntheticFrame(WIDTH, HEIGHT).noise(random, 300, 0);
+			for (int shape = 0; shape < 6; shape++)
+				frame.fill(random.nextInt(WIDTH - 40), random.nextInt(HEIGHT - 40), 5 + 7 * shape, 4 + 5 * shape);
+			byte[] nv21 = frame.toNv21();
+			Mat converted = SyntheticFrame.toHsv(nv21, WIDTH, HEIGHT);
+			converted.get(0, 0, hsv);
+			converted.release();
+
+			for (int numOfContours = 1; numOfContours <= 3; numOfContours++) {
+				String message = frame + ", " + numOfContours + " contours";
+				assertArrayEquals(message, track(hsv, numOfContours),
+						nv21Tracker.getLowestBoundOfContoursFromNv21(nv21, WIDTH, HEIGHT, numOfContours));
+				assertEquals(message, tracker.getBoundingRects(), nv21Tracker.getBoundingRects());
+			}
+		}
+	}
+
+	private Point[] track(byte[] hsv, int numOfContours) {
+		return tracker.getLowestBoundOfContours(hsv, WIDTH, HEIGHT, 3, numOfContours);
+	}
+
+	@Test
+	public void regionOfInterestTrackingYieldsTheSameResults() {
+		ConnectedComponentsTracker roiTracker = new ConnectedComponentsTracker();
+		roiTracker.setColorForTrackingHSV(SyntheticFrame.TARGET);
+		roiTracker.setRegionOfInterestTracking(true);
+
+		Random random = new Random(4711);
+		int framesWithinSearchWindow = 0;
+		for (int i = 0; i < 60; i++) {
+			// a target moving down to the right and noise all over the frame
+			SyntheticFrame frame = new SyntheticFrame(WIDTH, HEIGHT).noise(random, 300, 0).fill(20 + 3 * i, 10 + 2 * i, 30, 20);
+			byte[] nv21 = frame.toNv21();
+			String message = "frame " + i;
+
+			Point[] expected = track(frame, 1);
+			assertArrayEquals(message, expected, roiTracker.getLowestBoundOfContours(frame.hsv, WIDTH, HEIGHT, 3, 1));
+			assertEquals(message, tracker.getBoundingRects(), roiTracker.getBoundingRects());
+			if (roiTracker.getSearchWindow() != null)
+				framesWithinSearchWindow++;
+
+			expected = tracker.getLowestBoundOfContoursFromNv21(nv21, WIDTH, HEIGHT, 1);
+			assertArrayEquals(message, expected, roiTracker.getLowestBoundOfContoursFromNv21(nv21, WIDTH, HEIGHT, 1));
+			assertEquals(message, tracker.getBoundingRects(), roiTracker.getBoundingRects());
+		}
+		// the first frame of every RegionOfInterest.FULL_SCAN_INTERVAL frames is a full-frame scan
+		assertEquals(58, framesWithinSearchWindow);
+	}
+
+	@Test
+	public void searchWindowIsAbandonedWhenTheTargetIsLost() {
+		tracker.setRegionOfInterestTracking(true);
+		track(new SyntheticFrame(WIDTH, HEIGHT).fill(20, 20, 10, 10), 1);
+		assertNull(tracker.getSearchWindow());
+
+		track(new SyntheticFrame(WIDTH, HEIGHT).fill(22, 20, 10, 10), 1);
+		Rect searchWindow = tracker.getSearchWindow();
+		assertNotNull(searchWindow);
+
+		// the target has jumped out of the window: the whole frame is scanned
+		Point[] lowestPoints = track(new SyntheticFrame(WIDTH, HEIGHT).fill(200, 150, 10, 10), 1);
+		assertNull(tracker.getSearchWindow());
+		assertEquals(new Point(199, 160), lowestPoints[0]);
+
+		// the target is cut off by the window's border: the whole frame is scanned
+		// (after the jump the window would be too large, it takes another frame until the target is at rest)
+		track(new SyntheticFrame(WIDTH, HEIGHT).fill(200, 150, 10, 10), 1);
+		track(new SyntheticFrame(WIDTH, HEIGHT).fill(200, 150, 10, 10), 1);
+		searchWindow = tracker.getSearchWindow();
+		assertNotNull(searchWindow);
+		lowestPoints = track(new SyntheticFrame(WIDTH, HEIGHT).fill(searchWindow.x + searchWindow.width - 5, 150, 40, 10), 1);
+		assertNull(tracker.getSearchWindow());
+		assertEquals(new Rect(searchWindow.x + searchWindow.width - 6, 149, 42, 12), tracker.getBoundingRects().get(0));
+	}
+}
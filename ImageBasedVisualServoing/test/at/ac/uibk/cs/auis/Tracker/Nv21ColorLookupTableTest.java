@@ -0,0 +1,93 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+/**
+ * compares the classification of {@link Nv21ColorLookupTable} with <code>inRange</code> on the frame converted
+ * like the pipeline does; needs OpenCV's native library
+ */
+public class Nv21ColorLookupTableTest {
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+	private static final Scalar RADIUS = new Scalar(25, 25, 25, 0);
+	/** pixels within this distance [HSV-levels] of the range's bounds may be classified differently (half a cell) */
+	private static final int MAXIMAL_DISTANCE_OF_MISCLASSIFIED_PIXELS = 8;
+
+	private Nv21ColorLookupTable lookupTable;
+
+	@Before
+	public void setUp() {
+		OpenCvNativeLibrary.assumeLoaded();
+		lookupTable = new Nv21ColorLookupTable();
+		lookupTable.initialize(SyntheticFrame.TARGET, RADIUS);
+	}
+
+	@Test
+	public void syntheticFrameIsClassifiedExactly() {
+		Random random = new Random(4711);
+		for (int i = 0; i < 10; i++) {
+			// edges at odd coordinates get intermediate chroma
+			SyntheticFrame frame = new SyntheticFrame(WIDTH, HEIGHT).noise(random, 300, 20).fill(101, 51, 33, 27);
+			byte[] nv21 = frame.toNv21();
+			assertEquals(frame.toString(), 0, countMisclassifiedPixels(nv21, 0));
+		}
+	}
+
+	@Test
+	public void misclassifiedPixelsAreNearTheBoundsOfTheRange() {
+		// random luma and chroma around the target's, so about a quarter of the pixels is close to the range
+		Random random = new Random(4711);
+		byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+		int misclassified = 0;
+		for (int i = 0; i < 10; i++) {
+			for (int j = 0; j < nv21.length; j++)
+				nv21[j] = (byte) (j < WIDTH * HEIGHT ? random.nextInt(256) : 78 + random.nextInt(100));
+			misclassified += countMisclassifiedPixels(nv21, MAXIMAL_DISTANCE_OF_MISCLASSIFIED_PIXELS);
+		}
+		// about 0.1% of the pixels, i.e. some 30% of those within the range
+		assertTrue(misclassified + " pixels", misclassified < 10 * WIDTH * HEIGHT / 500);
+	}
+
+	/*
+	 * (non-javadoc)
+	 * fails iff a misclassified pixel is farther than maximalDistance away from the bounds in every channel
+	 */
+	private int countMisclassifiedPixels(byte[] nv21, int maximalDistance) {
+		Mat converted = SyntheticFrame.toHsv(nv21, WIDTH, HEIGHT);
+		byte[] hsv = new byte[WIDTH * HEIGHT * 3];
+		converted.get(0, 0, hsv);
+		converted.release();
+
+		int misclassified = 0;
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				int offset = (y * WIDTH + x) * 3;
+				boolean inRange = true;
+				int distance = Integer.MAX_VALUE;
+				for (int channel = 0; channel < 3; channel++) {
+					int value = hsv[offset + channel] & 0xff;
+					int lowerBound = (int) (SyntheticFrame.TARGET.val[channel] - RADIUS.val[channel]);
+					int upperBound = (int) (SyntheticFrame.TARGET.val[channel] + RADIUS.val[channel]);
+					inRange &= value >= lowerBound && value <= upperBound;
+					distance = Math.min(distance, Math.min(Math.abs(value - lowerBound), Math.abs(value - upperBound)));
+				}
+
+				int chroma = WIDTH * HEIGHT + (y >> 1) * WIDTH + (x & ~1);
+				if (lookupTable.isInRange(nv21[y * WIDTH + x] & 0xff, nv21[chroma] & 0xff, nv21[chroma + 1] & 0xff) != inRange) {
+					assertTrue("pixel (" + x + ", " + y + ") is " + distance + " away from the bounds",
+							distance <= maximalDistance);
+					misclassified++;
+				}
+			}
+		}
+		return misclassified;
+	}
+}
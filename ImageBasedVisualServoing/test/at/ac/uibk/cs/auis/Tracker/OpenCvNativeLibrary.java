@@ -0,0 +1,28 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+import org.junit.Assume;
+import org.opencv.core.Core;
+
+/**
+ * loads OpenCV's native library for the tests comparing a tracker with {@link ColorBasedTracker} (and for the
+ * other tests calling into OpenCV); these tests are skipped if it is not on <code>java.library.path</code>
+ * (e.g. a desktop build of OpenCV 2.4)
+ */
+public class OpenCvNativeLibrary {
+	private static Boolean isLoaded;
+
+	private OpenCvNativeLibrary() {
+	}
+
+	public static synchronized void assumeLoaded() {
+		if (isLoaded == null) {
+			try {
+				System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+				isLoaded = true;
+			} catch (UnsatisfiedLinkError e) {
+				isLoaded = false;
+			}
+		}
+		Assume.assumeTrue(isLoaded);
+	}
+}
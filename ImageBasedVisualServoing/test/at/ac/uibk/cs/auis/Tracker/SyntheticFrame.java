@@ -0,0 +1,159 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * an HSV-frame (3 channels, interleaved) made of filled shapes on a uniform background, for the tracker tests
+ */
+class SyntheticFrame {
+	static final Scalar BACKGROUND = new Scalar(0, 0, 0);
+	static final Scalar TARGET = new Scalar(100, 200, 200);
+
+	final int width;
+	final int height;
+	final byte[] hsv;
+
+	SyntheticFrame(int width, int height) {
+		this.width = width;
+		this.height = height;
+		hsv = new byte[width * height * 3];
+		fill(0, 0, width, height, BACKGROUND);
+	}
+
+	/**
+	 * fills the rectangle (clipped to the frame) with the supplied color
+	 */
+	SyntheticFrame fill(int x, int y, int width, int height, Scalar color) {
+		for (int row = Math.max(0, y); row < Math.min(this.height, y + height); row++) {
+			for (int col = Math.max(0, x); col < Math.min(this.width, x + width); col++) {
+				int offset = (row * this.width + col) * 3;
+				for (int channel = 0; channel < 3; channel++)
+					hsv[offset + channel] = (byte) color.val[channel];
+			}
+		}
+		return this;
+	}
+
+	SyntheticFrame fill(int x, int y, int width, int height) {
+		return fill(x, y, width, height, TARGET);
+	}
+
+	/**
+	 * a square ring of the target color with the supplied outer size and thickness
+	 */
+	SyntheticFrame ring(int x, int y, int size, int thickness) {
+		fill(x, y, size, size, TARGET);
+		return fill(x + thickness, y + thickness, size - 2 * thickness, size - 2 * thickness, BACKGROUND);
+	}
+
+	/**
+	 * a U of the target color, open to the top: two legs of the supplied thickness joined at the bottom
+	 */
+	SyntheticFrame u(int x, int y, int width, int height, int thickness) {
+		fill(x, y, thickness, height);
+		fill(x + width - thickness, y, thickness, height);
+		return fill(x, y + height - thickness, width, thickness);
+	}
+
+	/**
+	 * an upside-down U (open to the bottom), so both legs end on the same row
+	 */
+	SyntheticFrame invertedU(int x, int y, int width, int height, int thickness) {
+		fill(x, y, thickness, height);
+		fill(x + width - thickness, y, thickness, height);
+		return fill(x, y, width, thickness);
+	}
+
+	/**
+	 * scatters single pixels of the target color (noise blobs) and a few rectangles of random size
+	 */
+	SyntheticFrame noise(Random random, int numOfPixels, int numOfRectangles) {
+		for (int i = 0; i < numOfPixels; i++)
+			fill(random.nextInt(width), random.nextInt(height), 1, 1);
+		for (int i = 0; i < numOfRectangles; i++)
+			fill(random.nextInt(width), random.nextInt(height), 2 + random.nextInt(40), 2 + random.nextInt(40));
+		return this;
+	}
+
+	/**
+	 * the frame as the camera would deliver it (NV21): the inverse of the conversion done by the pipeline,
+	 * i.e. of <code>COLOR_YUV2BGR_NV12</code> followed by <code>COLOR_RGB2HSV_FULL</code> (see {@link Nv21ColorLookupTable});
+	 * the chroma of every 2x2 pixels is averaged, so the colors are only approximately those of the HSV-frame
+	 * and edges not aligned to 2 pixels get intermediate colors
+	 */
+	byte[] toNv21() {
+		byte[] nv21 = new byte[width * height * 3 / 2];
+		int[] chromaSums = new int[width];
+		double[] rgb = new double[3];
+		for (int row = 0; row < height; row++) {
+			if ((row & 1) == 0)
+				Arrays.fill(chromaSums, 0);
+			for (int col = 0; col < width; col++) {
+				int offset = (row * width + col) * 3;
+				toRgb(hsv[offset] & 0xff, hsv[offset + 1] & 0xff, hsv[offset + 2] & 0xff, rgb);
+				// the pipeline takes the decoded blue channel for red and vice versa
+				double r = rgb[2], g = rgb[1], b = rgb[0];
+				nv21[row * width + col] = (byte) Math.round(16 + 0.257 * r + 0.504 * g + 0.098 * b);
+				// the pipeline reads the chroma pairs in NV12 order: U first
+				chromaSums[col & ~1] += (int) Math.round(128 - 0.148 * r - 0.291 * g + 0.439 * b);
+				chromaSums[col | 1] += (int) Math.round(128 + 0.439 * r - 0.368 * g - 0.071 * b);
+			}
+			if ((row & 1) == 1) {
+				int chromaOffset = width * height + (row >> 1) * width;
+				for (int col = 0; col < width; col++)
+					nv21[chromaOffset + col] = (byte) Math.max(0, Math.min(255, (chromaSums[col] + 2) / 4));
+			}
+		}
+		return nv21;
+	}
+
+	/*
+	 * (non-javadoc)
+	 * HSV (full range, i.e. the hue is scaled to 0-255) to RGB
+	 */
+	private static void toRgb(int h, int s, int v, double[] rgb) {
+		double hue = h * 6 / 256.0;
+		double chroma = v * s / 255.0;
+		// red, green and blue are at 5, 3 and 1 sectors before the hue
+		for (int channel = 0; channel < 3; channel++) {
+			double k = (5 - 2 * channel + hue) % 6;
+			rgb[channel] = v - chroma * Math.max(0, Math.min(1, Math.min(k, 4 - k)));
+		}
+	}
+
+	/**
+	 * a copy of the frame (CV_8UC3); needs OpenCV's native library
+	 */
+	Mat toMat() {
+		Mat mat = new Mat(height, width, CvType.CV_8UC3);
+		mat.put(0, 0, hsv);
+		return mat;
+	}
+
+	/**
+	 * converts an NV21-frame to HSV like the pipeline does (<code>JavaCameraFrame.rgba()</code>, then
+	 * <code>COLOR_RGB2HSV_FULL</code>); needs OpenCV's native library
+	 */
+	static Mat toHsv(byte[] nv21, int width, int height) {
+		Mat yuv = new Mat(height * 3 / 2, width, CvType.CV_8UC1);
+		yuv.put(0, 0, nv21);
+		Mat rgba = new Mat();
+		Imgproc.cvtColor(yuv, rgba, Imgproc.COLOR_YUV2BGR_NV12, 4);
+		Mat hsv = new Mat();
+		Imgproc.cvtColor(rgba, hsv, Imgproc.COLOR_RGB2HSV_FULL);
+		yuv.release();
+		rgba.release();
+		return hsv;
+	}
+
+	@Override
+	public String toString() {
+		return width + "x" + height + " frame, hash " + Arrays.hashCode(hsv);
+	}
+}
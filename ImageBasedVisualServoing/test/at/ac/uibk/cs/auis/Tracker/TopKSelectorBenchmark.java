@@ -0,0 +1,123 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Microbenchmark of {@link TopKSelector} against the selection <code>ColorBasedTracker.findLargestContours</code>
+ * did before: every area was put into a <code>TreeMap&lt;Double, ...&gt;</code> ordered by <code>(int)(rhs - lhs)</code>
+ * and the first k entries were taken. The frames are the contour areas of a few targets and hundreds of noise blobs
+ * (as <code>findContours</code> yields them for a noisy mask), so <code>contourArea</code> is not part of the time.
+ *
+ * Usage: TopKSelectorBenchmark [number of frames per round [rounds]]
+ */
+public class TopKSelectorBenchmark {
+	private static final int[] NUM_OF_BLOBS = { 10, 100, 300, 1000 };
+	private static final int[] K = { 1, 2 };
+
+	private static long blackhole;
+
+	public static void main(String[] args) {
+		int numOfFrames = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		Random random = new Random(4711);
+		for (int numOfBlobs : NUM_OF_BLOBS) {
+			double[][] frames = new double[numOfFrames][];
+			for (int i = 0; i < numOfFrames; i++)
+				frames[i] = createFrame(random, numOfBlobs);
+
+			for (int k : K) {
+				double treeMap = Double.MAX_VALUE;
+				double heap = Double.MAX_VALUE;
+				// the best round of each, the first rounds warm up the JIT
+				for (int round = 0; round < rounds; round++) {
+					treeMap = Math.min(treeMap, measureTreeMap(frames, k));
+					heap = Math.min(heap, measureHeap(frames, k));
+				}
+				System.out.printf("%4d blobs, k = %d: TreeMap %8.2f us/frame, TopKSelector %6.2f us/frame (%.0fx)%n",
+						numOfBlobs, k, treeMap, heap, treeMap / heap);
+			}
+		}
+		if (blackhole == 42)
+			System.out.println();
+	}
+
+	/*
+	 * (non-javadoc)
+	 * the areas of two targets and numOfBlobs - 2 noise blobs; the contour of a blob of a few pixels has an area
+	 * of a few pixels, a multiple of 0.5
+	 */
+	static double[] createFrame(Random random, int numOfBlobs) {
+		double[] areas = new double[numOfBlobs];
+		for (int i = 0; i < numOfBlobs; i++)
+			areas[i] = random.nextInt(40) / 2.0;
+		areas[random.nextInt(numOfBlobs)] = 500 + random.nextInt(2000) / 2.0;
+		areas[random.nextInt(numOfBlobs)] = 500 + random.nextInt(2000) / 2.0;
+		return areas;
+	}
+
+	private static double measureTreeMap(double[][] frames, int k) {
+		long start = System.nanoTime();
+		for (double[] areas : frames)
+			blackhole += selectWithTreeMap(areas, k)[0];
+		return (System.nanoTime() - start) / 1000.0 / frames.length;
+	}
+
+	private static double measureHeap(double[][] frames, int k) {
+		TopKSelector selector = new TopKSelector();
+		long start = System.nanoTime();
+		for (double[] areas : frames)
+			blackhole += selectWithHeap(selector, areas, k)[0];
+		return (System.nanoTime() - start) / 1000.0 / frames.length;
+	}
+
+	/**
+	 * the selection as it was: areas less than 1 apart compare as equal, so all but one of them are dropped
+	 * @return
+	 *  the indices of the k largest areas (largest first), padded with -1
+	 */
+	static int[] selectWithTreeMap(double[] areas, int k) {
+		Map<Double, Integer> lookup = new TreeMap<Double, Integer>(new Comparator<Double>() {
+
+			@Override
+			public int compare(Double lhs, Double rhs) {
+				return (int) (rhs - lhs);
+			}
+
+		});
+		for (int i = 0; i < areas.length; i++)
+			lookup.put(areas[i], i);
+
+		int[] largest = new int[k];
+		Arrays.fill(largest, -1);
+		int i = 0;
+		for (Map.Entry<Double, Integer> entry : lookup.entrySet()) {
+			if (i == k)
+				break;
+			largest[i++] = entry.getValue();
+		}
+		return largest;
+	}
+
+	/**
+	 * the selection as <code>findLargestContours</code> does it now
+	 * @return
+	 *  the indices of the k largest areas (largest first), padded with -1
+	 */
+	static int[] selectWithHeap(TopKSelector selector, double[] areas, int k) {
+		selector.reset(k);
+		for (int i = 0; i < areas.length; i++)
+			selector.offer(areas[i], i);
+		selector.sort();
+
+		int[] largest = new int[k];
+		Arrays.fill(largest, -1);
+		for (int i = 0; i < selector.size(); i++)
+			largest[i] = selector.getIndex(i);
+		return largest;
+	}
+}
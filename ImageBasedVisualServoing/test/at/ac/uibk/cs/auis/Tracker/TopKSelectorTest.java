@@ -0,0 +1,115 @@
+package at.ac.uibk.cs.auis.Tracker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * checks {@link TopKSelector} against sorting all values; the selection it replaced is
+ * {@link TopKSelectorBenchmark#selectWithTreeMap(double[], int)}
+ */
+public class TopKSelectorTest {
+	private TopKSelector selector;
+
+	@Before
+	public void setUp() {
+		selector = new TopKSelector();
+	}
+
+	private int[] select(double[] values, int k) {
+		return TopKSelectorBenchmark.selectWithHeap(selector, values, k);
+	}
+
+	@Test
+	public void largestFirst() {
+		assertArrayEquals(new int[] { 3, 0, 4 }, select(new double[] { 50, 10, 20, 90, 30 }, 3));
+		assertEquals(90, selector.getValue(0), 0);
+		assertEquals(30, selector.getValue(2), 0);
+	}
+
+	@Test
+	public void valuesLessThanOneApartAreKept() {
+		double[] areas = { 10.5, 3, 10, 10.9, 0.5, 0 };
+		assertArrayEquals(new int[] { 3, 0, 2, 1 }, select(areas, 4));
+		assertArrayEquals(new int[] { 1, 4, 5 }, Arrays.copyOfRange(select(areas, 6), 3, 6));
+
+		// the TreeMap compared (int)(rhs - lhs): 10, 10.5 and 10.9 were one key, so were 0.5 and 0;
+		// of each only the contour put last was kept
+		assertArrayEquals(new int[] { 3, 1, 5, -1 }, TopKSelectorBenchmark.selectWithTreeMap(areas, 4));
+	}
+
+	@Test
+	public void tiesAreRankedByIndex() {
+		double[] areas = { 4, 8, 4, 8, 4 };
+		assertArrayEquals(new int[] { 1, 3, 0, 2, 4 }, select(areas, 5));
+		// the heap keeps the first of the equal values when it is full
+		assertArrayEquals(new int[] { 1, 3, 0 }, select(areas, 3));
+		assertArrayEquals(new int[] { 0, 1, 2 }, select(new double[] { 1, 1, 1, 1, 1 }, 3));
+	}
+
+	@Test
+	public void moreRequestedThanOffered() {
+		assertArrayEquals(new int[] { 1, 0, -1, -1 }, select(new double[] { 1, 2 }, 4));
+		assertEquals(2, selector.size());
+		assertArrayEquals(new int[] { -1, -1 }, select(new double[0], 2));
+		assertEquals(0, selector.size());
+	}
+
+	@Test
+	public void nothingIsSelectedForKZero() {
+		assertArrayEquals(new int[0], select(new double[] { 1, 2 }, 0));
+		assertEquals(0, selector.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeK() {
+		selector.reset(-1);
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void rankBeyondSize() {
+		select(new double[] { 1, 2 }, 4);
+		selector.getIndex(2);
+	}
+
+	@Test
+	public void reusedWithSmallerK() {
+		select(new double[] { 5, 6, 7, 8 }, 4);
+		assertArrayEquals(new int[] { 2 }, select(new double[] { 1, 2, 3 }, 1));
+		assertEquals(1, selector.size());
+	}
+
+	@Test
+	public void sameAsSortingNoisyFrames() {
+		Random random = new Random(4711);
+		for (int frame = 0; frame < 200; frame++) {
+			double[] areas = TopKSelectorBenchmark.createFrame(random, 2 + random.nextInt(500));
+			Integer[] byRank = new Integer[areas.length];
+			for (int i = 0; i < areas.length; i++)
+				byRank[i] = i;
+			final double[] values = areas;
+			// larger values first, ties by index
+			Arrays.sort(byRank, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer lhs, Integer rhs) {
+					int byValue = Double.compare(values[rhs], values[lhs]);
+					return byValue != 0 ? byValue : lhs - rhs;
+				}
+			});
+
+			for (int k = 1; k <= 5; k++) {
+				int[] expected = new int[Math.min(k, areas.length)];
+				for (int i = 0; i < expected.length; i++)
+					expected[i] = byRank[i];
+				assertArrayEquals("frame " + frame + ", k = " + k, expected,
+						Arrays.copyOf(select(areas, k), expected.length));
+			}
+		}
+	}
+}
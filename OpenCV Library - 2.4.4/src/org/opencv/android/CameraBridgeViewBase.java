@@ -15,6 +15,7 @@ import android.content.DialogInterface;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -26,6 +27,8 @@ import android.view.SurfaceView;
  * call external listener to make any adjustments to the frame and then draw the resulting
  * frame to the screen.
  * The clients shall implement CvCameraViewListener.
+ * Drawing can be limited to a lower frame rate or disabled (see {@link #setRenderFrameRate(int)}) and can be
+ * done on a separate thread (see {@link #setPipelinedRendering(boolean)}), so it does not throttle the processing.
  */
 public abstract class CameraBridgeViewBase extends SurfaceView implements SurfaceHolder.Callback {
 
@@ -34,6 +37,11 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
     private static final int STOPPED = 0;
     private static final int STARTED = 1;
 
+    /** Every processed frame is drawn */
+    public static final int RENDER_EVERY_FRAME = -1;
+    /** No frame is drawn, e.g. for headless runs */
+    public static final int RENDER_DISABLED = 0;
+
     private int mState = STOPPED;
     private Bitmap mCacheBitmap;
     private CvCameraViewListener2 mListener;
@@ -49,6 +57,19 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
     protected boolean mEnabled;
     protected FpsMeter mFpsMeter = null;
 
+    private int mRenderFrameRate = RENDER_EVERY_FRAME;
+    private boolean mPipelinedRendering;
+    private long mLastRenderTime;
+    private boolean mRenderingCurrentFrame;
+    // hand-off between the processing thread and the render thread (pipelined rendering only)
+    private final Object mRenderLock = new Object();
+    private Thread mRenderThread;
+    private boolean mStopRenderThread;
+    private Mat mRenderFrame;
+    private boolean mRenderFrameValid;
+    private boolean mRenderPending;
+    private boolean mRenderBusy;
+
     public CameraBridgeViewBase(Context context, int cameraId) {
         super(context);
         mCameraIndex = cameraId;
@@ -173,6 +194,24 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         public Mat gray();
     };
 
+    /**
+     * Frame which additionally provides the raw data delivered by the camera, so it can be processed
+     * without converting it to RGBA first.
+     * Attention: Do not use objects, that represents this interface out of onCameraFrame callback!
+     */
+    public interface CvCameraViewNv21Frame extends CvCameraViewFrame {
+
+        /**
+         * This method returns the frame in NV21 format: width*height bytes of luma followed by
+         * interleaved V and U bytes (one pair per 2x2 pixels); the array must not be modified
+         */
+        public byte[] nv21();
+
+        public int width();
+
+        public int height();
+    };
+
     public void surfaceChanged(SurfaceHolder arg0, int arg1, int arg2, int arg3) {
         Log.d(TAG, "call surfaceChanged event");
         synchronized(mSyncObject) {
@@ -267,6 +306,39 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         mMaxHeight = maxHeight;
     }
 
+    /**
+     * This method limits the rate at which processed frames are drawn; the processing itself is not limited.
+     * @param framesPerSecond - the maximum number of frames drawn per second, RENDER_EVERY_FRAME (default) or
+     * RENDER_DISABLED
+     */
+    public void setRenderFrameRate(int framesPerSecond) {
+        if (framesPerSecond < RENDER_EVERY_FRAME)
+            throw new IllegalArgumentException("Invalid render frame rate " + framesPerSecond);
+        mRenderFrameRate = framesPerSecond;
+    }
+
+    public int getRenderFrameRate() {
+        return mRenderFrameRate;
+    }
+
+    /**
+     * This method enables drawing on a separate thread: the processing thread only hands the frame returned by
+     * the listener over (a copy of it) and continues with the next camera frame. While the previous frame is
+     * still being drawn, no further frame is handed over.
+     * It takes effect when the view is started the next time.
+     */
+    public void setPipelinedRendering(boolean pipelined) {
+        mPipelinedRendering = pipelined;
+    }
+
+    /**
+     * This method can be called from onCameraFrame: it returns whether the Mat returned for the current frame
+     * will be drawn. If not, the listener can skip preparing it (and return null).
+     */
+    public boolean isRenderingCurrentFrame() {
+        return mRenderingCurrentFrame;
+    }
+
     public void SetCaptureFormat(int format)
     {
         mPreviewFormat = format;
@@ -335,8 +407,13 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
     // NOTE: The order of bitmap constructor and camera connection is important for android 4.1.x
     // Bitmap must be constructed before surface
     private void onEnterStartedState() {
+        /* The render thread has to be running before the first frame is delivered */
+        if (mPipelinedRendering)
+            startRenderThread();
+
         /* Connect camera */
         if (!connectCamera(getWidth(), getHeight())) {
+            stopRenderThread();
             AlertDialog ad = new AlertDialog.Builder(getContext()).create();
             ad.setCancelable(false); // This blocks the 'BACK' button
             ad.setMessage("It seems that you device does not support camera (or it is locked). Application will be closed.");
@@ -353,6 +430,7 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
 
     private void onExitStartedState() {
         disconnectCamera();
+        stopRenderThread();
         if (mCacheBitmap != null) {
             mCacheBitmap.recycle();
         }
@@ -367,12 +445,50 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
     protected void deliverAndDrawFrame(CvCameraViewFrame frame) {
         Mat modified;
 
+        long now = SystemClock.uptimeMillis();
+        mRenderingCurrentFrame = isRenderDue(now);
+
         if (mListener != null) {
             modified = mListener.onCameraFrame(frame);
         } else {
-            modified = frame.rgba();
+            modified = mRenderingCurrentFrame ? frame.rgba() : null;
+        }
+
+        if (!mRenderingCurrentFrame)
+            return;
+        mLastRenderTime = now;
+
+        if (mRenderThread != null) {
+            synchronized (mRenderLock) {
+                mRenderFrameValid = modified != null;
+                if (mRenderFrameValid) {
+                    if (mRenderFrame == null)
+                        mRenderFrame = new Mat();
+                    modified.copyTo(mRenderFrame);
+                }
+                mRenderPending = true;
+                mRenderLock.notify();
+            }
+        } else {
+            drawFrame(modified);
         }
+    }
+
+    private boolean isRenderDue(long now) {
+        if (mRenderFrameRate == RENDER_DISABLED)
+            return false;
 
+        if (mRenderThread != null) {
+            synchronized (mRenderLock) {
+                if (mRenderPending || mRenderBusy)
+                    return false;
+            }
+        }
+
+        return mRenderFrameRate == RENDER_EVERY_FRAME || now - mLastRenderTime >= 1000 / mRenderFrameRate;
+    }
+
+    private void drawFrame(Mat modified) {
         boolean bmpValid = true;
         if (modified != null) {
             try {
@@ -399,6 +515,68 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         }
     }
 
+    private void startRenderThread() {
+        synchronized (mRenderLock) {
+            mStopRenderThread = false;
+            mRenderPending = false;
+            mRenderBusy = false;
+        }
+        mRenderThread = new Thread(new RenderWorker());
+        mRenderThread.start();
+    }
+
+    private void stopRenderThread() {
+        if (mRenderThread == null)
+            return;
+
+        synchronized (mRenderLock) {
+            mStopRenderThread = true;
+            mRenderLock.notify();
+        }
+        try {
+            mRenderThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            mRenderThread = null;
+        }
+
+        if (mRenderFrame != null) {
+            mRenderFrame.release();
+            mRenderFrame = null;
+        }
+    }
+
+    private class RenderWorker implements Runnable {
+
+        public void run() {
+            while (true) {
+                synchronized (mRenderLock) {
+                    while (!mStopRenderThread && !mRenderPending) {
+                        try {
+                            mRenderLock.wait();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    if (mStopRenderThread)
+                        break;
+
+                    mRenderPending = false;
+                    mRenderBusy = true;
+                }
+
+                /* mRenderFrame is not touched by the processing thread while mRenderBusy is set */
+                drawFrame(mRenderFrameValid ? mRenderFrame : null);
+
+                synchronized (mRenderLock) {
+                    mRenderBusy = false;
+                }
+            }
+            Log.d(TAG, "Finish render thread");
+        }
+    }
+
     /**
      * This method is invoked shall perform concrete operation to initialize the camera.
      * CONTRACT: as a result of this method variables mFrameWidth and mFrameHeight MUST be
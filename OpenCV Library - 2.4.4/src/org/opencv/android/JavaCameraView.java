@@ -24,15 +24,36 @@ import org.opencv.imgproc.Imgproc;
  * disconnectCamera - closes the camera and stops preview.
  * When frame is delivered via callback from Camera - it processed via OpenCV to be
  * converted to RGBA32 and then passed to the external callback for modifications if required.
+ * The conversion (as well as copying the frame into a Mat) is done lazily, only if the callback
+ * asks for rgba() or gray(); the raw NV21 data is available via {@link CvCameraViewNv21Frame}.
+ * Frames are buffered in a ring of slots (see {@link #setFrameBufferCount(int)}); what happens if the
+ * processing thread cannot keep up is defined by {@link #setFramePolicy(int)}.
  */
 public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallback {
 
     private static final int MAGIC_TEXTURE_ID = 10;
     private static final String TAG = "JavaCameraView";
 
-    private byte mBuffer[];
+    /** Only the most recent frame is processed; older frames waiting for processing are overwritten */
+    public static final int FRAME_POLICY_LATEST_FRAME_WINS = 0;
+    /** Every frame is processed in order; frames arriving while all slots are in use are dropped */
+    public static final int FRAME_POLICY_PROCESS_EVERY_FRAME = 1;
+
+    private static final int CAMERA_BUFFER_COUNT = 2;
+
+    private byte mBuffers[][];
     private Mat[] mFrameChain;
-    private int mChainIdx = 0;
+    private byte[][] mFrameBuffers;
+    private int mFrameBufferCount = 3;
+    private int mFramePolicy = FRAME_POLICY_LATEST_FRAME_WINS;
+    // slots waiting for processing (ring, oldest first) and free slots (stack)
+    private int[] mPendingSlots;
+    private int mPendingHead;
+    private int mPendingCount;
+    private int[] mFreeSlots;
+    private int mFreeCount;
+    private long mDroppedFrameCount;
+    private long mOverwrittenFrameCount;
     private Thread mThread;
     private boolean mStopThread;
 
@@ -62,6 +83,46 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         Log.d(TAG, "Java camera view ctor");
     }
 
+    /**
+     * This method sets the number of frame slots (at least 2) used between the camera and the processing thread.
+     * It takes effect when the camera is connected the next time.
+     */
+    public void setFrameBufferCount(int count) {
+        if (count < 2)
+            throw new IllegalArgumentException("At least 2 frame buffers are needed, got " + count);
+        synchronized (this) {
+            mFrameBufferCount = count;
+        }
+    }
+
+    /**
+     * This method sets the policy applied if frames arrive faster than they are processed:
+     * FRAME_POLICY_LATEST_FRAME_WINS (default) or FRAME_POLICY_PROCESS_EVERY_FRAME
+     */
+    public void setFramePolicy(int policy) {
+        if (policy != FRAME_POLICY_LATEST_FRAME_WINS && policy != FRAME_POLICY_PROCESS_EVERY_FRAME)
+            throw new IllegalArgumentException("Unknown frame policy " + policy);
+        synchronized (this) {
+            mFramePolicy = policy;
+        }
+    }
+
+    /**
+     * This method returns the number of frames which have not been processed because all slots were in use
+     * (FRAME_POLICY_PROCESS_EVERY_FRAME)
+     */
+    public synchronized long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * This method returns the number of frames which have not been processed because a newer frame
+     * has arrived in the meantime (FRAME_POLICY_LATEST_FRAME_WINS)
+     */
+    public synchronized long getOverwrittenFrameCount() {
+        return mOverwrittenFrameCount;
+    }
+
     protected boolean initializeCamera(int width, int height) {
         Log.d(TAG, "Initialize java camera");
         boolean result = true;
@@ -136,18 +197,29 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
                     int size = mFrameWidth * mFrameHeight;
                     size  = size * ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8;
-                    mBuffer = new byte[size];
-
-                    mCamera.addCallbackBuffer(mBuffer);
+                    /* the camera fills one buffer while the previous one is copied into the ring */
+                    mBuffers = new byte[CAMERA_BUFFER_COUNT][size];
+                    for (byte[] buffer : mBuffers)
+                        mCamera.addCallbackBuffer(buffer);
                     mCamera.setPreviewCallbackWithBuffer(this);
 
-                    mFrameChain = new Mat[2];
-                    mFrameChain[0] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
-                    mFrameChain[1] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
+                    mFrameChain = new Mat[mFrameBufferCount];
+                    mFrameBuffers = new byte[mFrameBufferCount][size];
+                    mPendingSlots = new int[mFrameBufferCount];
+                    mFreeSlots = new int[mFrameBufferCount];
+                    for (int i = 0; i < mFrameBufferCount; i++) {
+                        mFrameChain[i] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
+                        mFreeSlots[i] = i;
+                    }
+                    mPendingHead = 0;
+                    mPendingCount = 0;
+                    mFreeCount = mFrameBufferCount;
+                    mDroppedFrameCount = 0;
+                    mOverwrittenFrameCount = 0;
 
                     AllocateCache();
 
-                    mCameraFrame = new JavaCameraFrame(mFrameChain[mChainIdx], mFrameWidth, mFrameHeight);
+                    mCameraFrame = new JavaCameraFrame(mFrameWidth, mFrameHeight);
 
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
                         mSurfaceTexture = new SurfaceTexture(MAGIC_TEXTURE_ID);
@@ -178,9 +250,11 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
             }
             mCamera = null;
             if (mFrameChain != null) {
-                mFrameChain[0].release();
-                mFrameChain[1].release();
+                for (Mat frame : mFrameChain)
+                    frame.release();
+                mFrameChain = null;
             }
+            mFrameBuffers = null;
             if (mCameraFrame != null)
                 mCameraFrame.release();
         }
@@ -235,32 +309,91 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         Log.i(TAG, "Frame size  is " + frame.length);
         synchronized (this)
         {
-            mFrameChain[1 - mChainIdx].put(0, 0, frame);
-            this.notify();
+            if (mFrameBuffers != null) {
+                int slot = -1;
+                if (mFreeCount > 0) {
+                    slot = mFreeSlots[--mFreeCount];
+                } else if (mFramePolicy == FRAME_POLICY_LATEST_FRAME_WINS && mPendingCount > 0) {
+                    slot = pollPendingSlot();
+                    mOverwrittenFrameCount++;
+                } else {
+                    mDroppedFrameCount++;
+                }
+
+                if (slot != -1) {
+                    byte[] buffer = mFrameBuffers[slot];
+                    System.arraycopy(frame, 0, buffer, 0, Math.min(frame.length, buffer.length));
+                    mPendingSlots[(mPendingHead + mPendingCount) % mPendingSlots.length] = slot;
+                    mPendingCount++;
+                    this.notify();
+                }
+            }
+            if (mCamera != null)
+                mCamera.addCallbackBuffer(frame);
         }
-        if (mCamera != null)
-            mCamera.addCallbackBuffer(mBuffer);
     }
 
-    private class JavaCameraFrame implements CvCameraViewFrame
+    /**
+     * Called when the lock of this is held
+     */
+    private int pollPendingSlot() {
+        int slot = mPendingSlots[mPendingHead];
+        mPendingHead = (mPendingHead + 1) % mPendingSlots.length;
+        mPendingCount--;
+        return slot;
+    }
+
+    private class JavaCameraFrame implements CvCameraViewNv21Frame
     {
         public Mat gray() {
-            return mYuvFrameData.submat(0, mHeight, 0, mWidth);
+            return yuv().submat(0, mHeight, 0, mWidth);
         }
 
         public Mat rgba() {
-            Imgproc.cvtColor(mYuvFrameData, mRgba, Imgproc.COLOR_YUV2BGR_NV12, 4);
+            if (!mRgbaValid) {
+                Imgproc.cvtColor(yuv(), mRgba, Imgproc.COLOR_YUV2BGR_NV12, 4);
+                mRgbaValid = true;
+            }
             return mRgba;
         }
 
-        public JavaCameraFrame(Mat Yuv420sp, int width, int height) {
+        public byte[] nv21() {
+            return mNv21;
+        }
+
+        public int width() {
+            return mWidth;
+        }
+
+        public int height() {
+            return mHeight;
+        }
+
+        public JavaCameraFrame(int width, int height) {
             super();
             mWidth = width;
             mHeight = height;
-            mYuvFrameData = Yuv420sp;
             mRgba = new Mat();
         }
 
+        /**
+         * Points this frame to the next camera frame; the data is copied into the Mat on demand only
+         */
+        public void setFrame(Mat Yuv420sp, byte[] nv21) {
+            mYuvFrameData = Yuv420sp;
+            mNv21 = nv21;
+            mYuvValid = false;
+            mRgbaValid = false;
+        }
+
+        private Mat yuv() {
+            if (!mYuvValid) {
+                mYuvFrameData.put(0, 0, mNv21);
+                mYuvValid = true;
+            }
+            return mYuvFrameData;
+        }
+
         public void release() {
             mRgba.release();
         }
@@ -269,7 +402,10 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         }
 
         private Mat mYuvFrameData;
+        private byte[] mNv21;
+        private boolean mYuvValid;
         private Mat mRgba;
+        private boolean mRgbaValid;
         private int mWidth;
         private int mHeight;
     };
@@ -277,22 +413,36 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
     private class CameraWorker implements Runnable {
 
         public void run() {
-            do {
+            while (true) {
+                int slot;
                 synchronized (JavaCameraView.this) {
-                    try {
-                        JavaCameraView.this.wait();
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
+                    /* the condition is checked under the lock, so a notify can not get lost */
+                    while (!mStopThread && mPendingCount == 0) {
+                        try {
+                            JavaCameraView.this.wait();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
                     }
+                    if (mStopThread)
+                        break;
+
+                    if (mFramePolicy == FRAME_POLICY_LATEST_FRAME_WINS) {
+                        while (mPendingCount > 1) {
+                            mFreeSlots[mFreeCount++] = pollPendingSlot();
+                            mOverwrittenFrameCount++;
+                        }
+                    }
+                    slot = pollPendingSlot();
                 }
 
-                if (!mStopThread) {
-                    if (!mFrameChain[mChainIdx].empty())
-                        deliverAndDrawFrame(mCameraFrame);
-                    mChainIdx = 1 - mChainIdx;
+                mCameraFrame.setFrame(mFrameChain[slot], mFrameBuffers[slot]);
+                deliverAndDrawFrame(mCameraFrame);
+
+                synchronized (JavaCameraView.this) {
+                    mFreeSlots[mFreeCount++] = slot;
                 }
-            } while (!mStopThread);
+            }
             Log.d(TAG, "Finish processing thread");
         }
     }
@@ -5422,6 +5422,7 @@ public class Imgproc {
         Mat contours_mat = new Mat();
         findContours_0(image.nativeObj, contours_mat.nativeObj, hierarchy.nativeObj, mode, method, offset.x, offset.y);
         Converters.Mat_to_vector_vector_Point(contours_mat, contours);
+        contours_mat.release();
         return;
     }
 
@@ -5499,6 +5500,7 @@ public class Imgproc {
         Mat contours_mat = new Mat();
         findContours_1(image.nativeObj, contours_mat.nativeObj, hierarchy.nativeObj, mode, method);
         Converters.Mat_to_vector_vector_Point(contours_mat, contours);
+        contours_mat.release();
         return;
     }
 
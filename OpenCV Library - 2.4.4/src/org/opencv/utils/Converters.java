@@ -501,6 +501,7 @@ public class Converters {
         for (Mat mi : mats) {
             MatOfPoint pt = new MatOfPoint(mi);
             pts.add(pt);
+            mi.release();
         }
     }
 